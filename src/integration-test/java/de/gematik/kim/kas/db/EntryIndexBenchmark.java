@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.persistence.CollectionTable;
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+/**
+ * Seeds an H2 file database with entries and reports the latency of the cleanup, quota and
+ * segment queries of {@link EntryRepository}, first without and then with the indexes declared
+ * on {@link Entry}. The indexes are read from the annotations, so the benchmark always measures
+ * the indexes the application creates. It is not run by the build, start it with
+ * <pre>
+ *   mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/classpath.txt
+ *   java -cp target/test-classes:target/classes:$(cat target/classpath.txt) \
+ *       de.gematik.kim.kas.db.EntryIndexBenchmark [rows] [database]
+ * </pre>
+ * The defaults are 10,000,000 rows and {@code target/entry-index-benchmark}. The entries belong
+ * to 10,000 owners and were created over the last 400 days with a delete time 90 days later.
+ * Entries expired for more than a day are marked deleted, as the cleanup would have done, and
+ * every other entry is packed into one of 1,000 segments.
+ */
+public class EntryIndexBenchmark {
+
+  private static final int OWNERS = 10_000;
+  private static final int SEGMENTS = 1_000;
+  private static final int SEED_CHUNK = 1_000_000;
+  private static final int PAGE_SIZE = 100;
+  private static final int WARMUP_RUNS = 1;
+  private static final int RUNS = 10;
+
+  private final Connection connection;
+  private final LocalDateTime now = LocalDateTime.now().withNano(0);
+
+  private EntryIndexBenchmark(Connection connection) {
+    this.connection = connection;
+  }
+
+  public static void main(String[] args) throws SQLException {
+    long rows = args.length > 0 ? Long.parseLong(args[0]) : 10_000_000L;
+    String database = args.length > 1 ? args[1] : "target/entry-index-benchmark";
+    // Results must not be reused between runs, and building an index on millions of rows takes
+    // longer than old chunks are retained by default
+    try (Connection connection = DriverManager.getConnection("jdbc:h2:file:./" + database
+        + ";OPTIMIZE_REUSE_RESULTS=0;RETENTION_TIME=3600000", "sa", "")) {
+      EntryIndexBenchmark benchmark = new EntryIndexBenchmark(connection);
+      benchmark.seed(rows);
+      Map<String, double[]> before = benchmark.measure();
+      benchmark.createIndexes();
+      Map<String, double[]> after = benchmark.measure();
+      benchmark.report(before, after);
+    }
+  }
+
+  private void seed(long rows) throws SQLException {
+    long start = System.nanoTime();
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("drop table if exists entry_recipients");
+      statement.execute("drop table if exists entry");
+      statement.execute("create table entry (id bigint not null, created timestamp not null,"
+          + " delete_time timestamp not null, deleted boolean not null, etag varchar(255),"
+          + " file_name varchar(255) not null, number_of_downloads integer not null,"
+          + " owner varchar(255) not null, path varchar(255), segment bigint,"
+          + " segment_offset bigint, size bigint not null, primary key (id))");
+      statement.execute("create table entry_recipients (entry_id bigint not null,"
+          + " recipients varchar(255))");
+    }
+    String insertEntries = "insert into entry select x, created,"
+        + " dateadd('DAY', 90, created), dateadd('DAY', 91, created) < ?, null,"
+        + " random_uuid(), 0, concat('owner', mod(x, " + OWNERS + "), '@gematik.test'),"
+        + " null, case when mod(x, 2) = 0 then mod(x, " + SEGMENTS + ") end,"
+        + " case when mod(x, 2) = 0 then x * 1024 end, 1024 + mod(x * 31, 100000)"
+        + " from (select x, dateadd('SECOND', -mod(x * 7919, 34560000), ?) created"
+        + " from system_range(?, ?))";
+    String insertRecipients = "insert into entry_recipients select x,"
+        + " concat('recipient', mod(x * 17, " + OWNERS + "), '@gematik.test')"
+        + " from system_range(?, ?)";
+    try (PreparedStatement entries = connection.prepareStatement(insertEntries);
+        PreparedStatement recipients = connection.prepareStatement(insertRecipients)) {
+      for (long first = 1; first <= rows; first += SEED_CHUNK) {
+        long last = Math.min(first + SEED_CHUNK - 1, rows);
+        entries.setTimestamp(1, Timestamp.valueOf(now));
+        entries.setTimestamp(2, Timestamp.valueOf(now));
+        entries.setLong(3, first);
+        entries.setLong(4, last);
+        entries.executeUpdate();
+        recipients.setLong(1, first);
+        recipients.setLong(2, last);
+        recipients.executeUpdate();
+        System.out.printf("Seeded %,d of %,d entries%n", last, rows);
+      }
+    }
+    try (Statement statement = connection.createStatement()) {
+      // Filling the unique index afterwards is much faster than inserting random file names
+      statement.execute("alter table entry add constraint uk_entry_file_name unique (file_name)");
+      statement.execute("analyze");
+    }
+    System.out.printf("Seeding took %,d s%n", (System.nanoTime() - start) / 1_000_000_000);
+  }
+
+  private void createIndexes() throws SQLException {
+    List<String> statements = new ArrayList<>();
+    for (Index index : Entry.class.getAnnotation(Table.class).indexes()) {
+      statements.add(createIndex(index, "entry"));
+    }
+    try {
+      CollectionTable recipients = Entry.class.getDeclaredField("recipients")
+          .getAnnotation(CollectionTable.class);
+      for (Index index : recipients.indexes()) {
+        statements.add(createIndex(index, recipients.name()));
+      }
+    } catch (NoSuchFieldException ex) {
+      throw new IllegalStateException("Entry has no recipients", ex);
+    }
+    try (Statement statement = connection.createStatement()) {
+      for (String sql : statements) {
+        long start = System.nanoTime();
+        statement.execute(sql);
+        System.out.printf("%s took %,d ms%n", sql, (System.nanoTime() - start) / 1_000_000);
+      }
+      statement.execute("analyze");
+    }
+  }
+
+  private static String createIndex(Index index, String table) {
+    String[] columns = index.columnList().split(",");
+    for (int i = 0; i < columns.length; i++) {
+      columns[i] = columns[i].trim().replaceAll("([a-z])([A-Z])", "$1_$2")
+          .toLowerCase(Locale.ROOT);
+    }
+    return "create index " + index.name() + " on " + table + " ("
+        + String.join(", ", columns) + ")";
+  }
+
+  /**
+   * Runs each query several times and returns the median and maximum latency in milliseconds.
+   */
+  private Map<String, double[]> measure() throws SQLException {
+    Timestamp today = Timestamp.valueOf(now);
+    Timestamp yearAgo = Timestamp.valueOf(now.minusYears(1));
+    Map<String, Query> queries = new LinkedHashMap<>();
+    queries.put("expired entries page", new Query("select * from entry where id > ?"
+        + " and delete_time < ? and deleted = false order by id limit " + PAGE_SIZE,
+        0L, today));
+    queries.put("expiries of the next hour", new Query("select id, delete_time from entry"
+        + " where deleted = false and id > ? and delete_time >= ? and delete_time < ?"
+        + " order by id limit " + PAGE_SIZE, 0L, today, Timestamp.valueOf(now.plusHours(1))));
+    queries.put("outdated entries page", new Query("select id from entry where id > ?"
+        + " and created < ? order by id limit " + PAGE_SIZE, 0L, yearAgo));
+    queries.put("used space of an owner", new Query("select owner, sum(size) from entry"
+        + " where deleted = false and owner in (?) group by owner", "owner42@gematik.test"));
+    queries.put("live entries of a segment", new Query("select id, segment_offset, size"
+        + " from entry where deleted = false and segment = ? and id > ? order by id limit "
+        + PAGE_SIZE, 42L, 0L));
+    queries.put("recipients of an entry", new Query("select recipients from entry_recipients"
+        + " where entry_id = ?", 4242L));
+    Map<String, double[]> latencies = new LinkedHashMap<>();
+    for (Map.Entry<String, Query> query : queries.entrySet()) {
+      latencies.put(query.getKey(), query.getValue().time());
+    }
+    return latencies;
+  }
+
+  private void report(Map<String, double[]> before, Map<String, double[]> after) {
+    System.out.printf("%n%-28s %14s %14s %14s %14s%n", "query", "median before",
+        "max before", "median after", "max after");
+    for (String query : before.keySet()) {
+      System.out.printf("%-28s %11.2f ms %11.2f ms %11.2f ms %11.2f ms%n", query,
+          before.get(query)[0], before.get(query)[1], after.get(query)[0], after.get(query)[1]);
+    }
+  }
+
+  private class Query {
+
+    private final String sql;
+    private final Object[] parameters;
+
+    private Query(String sql, Object... parameters) {
+      this.sql = sql;
+      this.parameters = parameters;
+    }
+
+    private double[] time() throws SQLException {
+      double[] millis = new double[RUNS];
+      try (PreparedStatement statement = connection.prepareStatement(sql)) {
+        for (int i = 0; i < parameters.length; i++) {
+          statement.setObject(i + 1, parameters[i]);
+        }
+        for (int run = -WARMUP_RUNS; run < RUNS; run++) {
+          long start = System.nanoTime();
+          try (ResultSet result = statement.executeQuery()) {
+            while (result.next()) {
+              // read the whole result, as the repository does
+            }
+          }
+          if (run >= 0) {
+            millis[run] = (System.nanoTime() - start) / 1_000_000.0;
+          }
+        }
+      }
+      Arrays.sort(millis);
+      return new double[]{millis[RUNS / 2], millis[RUNS - 1]};
+    }
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.db;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import de.gematik.kim.kas.KasApplication;
+import de.gematik.kim.kas.service.AmClient;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import javax.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.test.context.ActiveProfiles;
+
+@ActiveProfiles("it")
+@SpringBootTest(classes = KasApplication.class, properties = "gematik.kim.kas.cleanup-page-size=3")
+public class EntryRepositoryIT {
+
+  private static final String OWNER = "owner@gematik.test";
+
+  @MockBean
+  private AmClient amClient;
+  @Autowired
+  private EntryRepository entryRepository;
+  @Autowired
+  private EntityManagerFactory entityManagerFactory;
+  @Autowired
+  private JdbcTemplate jdbcTemplate;
+  private Statistics statistics;
+
+  @BeforeEach
+  public void enableStatistics() {
+    statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+    statistics.setStatisticsEnabled(true);
+    statistics.clear();
+  }
+
+  @AfterEach
+  public void disableStatistics() {
+    statistics.setStatisticsEnabled(false);
+  }
+
+  @Test
+  public void saveEntryWithManyRecipientsInBatches() {
+    List<String> recipients = IntStream.range(0, 50)
+        .mapToObj(i -> "recipient" + i + "@gematik.test")
+        .collect(Collectors.toList());
+
+    Entry entry = entryRepository.save(entry("manyRecipients", recipients));
+
+    assertTrue(statistics.getPrepareStatementCount() < 10,
+        statistics.getPrepareStatementCount() + " statements prepared for one upload");
+    assertEquals(50, jdbcTemplate.queryForObject(
+        "select count(*) from entry_recipients where entry_id = ?", Integer.class, entry.getId()));
+  }
+
+  @Test
+  public void allocateIdsInBlocks() {
+    Long first = entryRepository.save(entry("firstBlockEntry", List.of())).getId();
+    Long second = entryRepository.save(entry("secondBlockEntry", List.of())).getId();
+
+    assertEquals(first + 1, second);
+  }
+
+  @Test
+  public void allocateIdsAfterExistingRowsOfSingleStepSequence() {
+    long legacyMax = jdbcTemplate.queryForObject("select next value for hibernate_sequence",
+        Long.class) + 1000;
+    jdbcTemplate.execute("alter sequence hibernate_sequence restart with " + (legacyMax - 2)
+        + " increment by 1");
+    for (int i = 0; i < 3; i++) {
+      jdbcTemplate.update("insert into entry (id, file_name, owner, delete_time,"
+              + " number_of_downloads, deleted, created, size)"
+              + " values (next value for hibernate_sequence, ?, ?, ?, 0, false, ?, 1)",
+          "legacyEntry" + System.nanoTime(), OWNER, LocalDateTime.now().plusDays(1),
+          LocalDateTime.now());
+    }
+    new ResourceDatabasePopulator(new ClassPathResource("db/migration.sql"))
+        .execute(jdbcTemplate.getDataSource());
+
+    // More saves than one block, so at least one block is taken from the altered sequence
+    List<Long> ids = IntStream.range(0, 100)
+        .mapToObj(i -> entryRepository.save(entry("afterMigration", List.of())).getId())
+        .collect(Collectors.toList());
+
+    assertTrue(ids.get(ids.size() - 1) > legacyMax, ids.toString());
+  }
+
+  @Test
+  public void grantDownloadToOwnerAndRecipientsOnly() {
+    Entry entry = entry("grantedEntry", List.of("recipient@gematik.test"));
+    entry.setEtag("d2f1c0ffee");
+    entryRepository.save(entry);
+
+    DownloadGrant asRecipient = entryRepository.findDownloadGrant(entry.getFileName(),
+        "recipient@gematik.test").orElseThrow();
+    assertTrue(asRecipient.isAllowed());
+    assertEquals(entry.getId(), asRecipient.getId());
+    assertEquals(OWNER, asRecipient.getOwner());
+    assertEquals("d2f1c0ffee", asRecipient.getEtag());
+    assertTrue(entryRepository.findDownloadGrant(entry.getFileName(), OWNER).orElseThrow()
+        .isAllowed());
+    assertFalse(entryRepository.findDownloadGrant(entry.getFileName(), "stranger@gematik.test")
+        .orElseThrow().isAllowed());
+    assertTrue(entryRepository.findDownloadGrant("unknownFile", OWNER).isEmpty());
+    assertEquals(1, jdbcTemplate.queryForObject(
+        "select count(*) from entry_recipients where entry_id = ?", Integer.class, entry.getId()));
+  }
+
+  @Test
+  public void updatePathOnlyIfUnchangedAndNotDeleted() {
+    Entry entry = entryRepository.save(entry("movedEntry", List.of()));
+    Entry deleted = entry("deletedEntry", List.of());
+    deleted.setDeleted(true);
+    entryRepository.save(deleted);
+
+    assertEquals(1, entryRepository.updatePath(entry.getId(), "", "owner/ab/cd/movedEntry"));
+    assertEquals(0, entryRepository.updatePath(entry.getId(), "", "owner/ef/01/movedEntry"));
+    assertEquals(0, entryRepository.updatePath(deleted.getId(), "", "owner/ab/cd/deletedEntry"));
+    assertEquals("owner/ab/cd/movedEntry", entryRepository.findDownloadGrant(
+        entry.getFileName(), OWNER).orElseThrow().getPath());
+    assertTrue(entryRepository.findLocations(entry.getId() - 1, PageRequest.of(0, 10)).stream()
+        .noneMatch(location -> location.getId().equals(deleted.getId())));
+  }
+
+  @Test
+  public void sumLiveBytesAndMoveEntriesBetweenSegments() {
+    long segment = System.nanoTime();
+    Entry live = entry("liveSegmentEntry", List.of());
+    live.setSegment(segment);
+    live.setSegmentOffset(0L);
+    live.setSize(10L);
+    live = entryRepository.save(live);
+    Entry deleted = entry("deletedSegmentEntry", List.of());
+    deleted.setSegment(segment);
+    deleted.setSegmentOffset(10L);
+    deleted.setDeleted(true);
+    entryRepository.save(deleted);
+
+    assertEquals(10L, entryRepository.sumSizeBySegment().stream()
+        .filter(usage -> usage.getSegment() == segment)
+        .findFirst().orElseThrow().getLiveBytes());
+    assertEquals(List.of(live.getId()), entryRepository.findSegmentEntries(segment, 0L,
+        PageRequest.of(0, 10)).stream().map(SegmentEntry::getId).collect(Collectors.toList()));
+    assertEquals(1, entryRepository.moveToSegment(live.getId(), segment, segment + 1, 40L));
+    assertEquals(0, entryRepository.moveToSegment(live.getId(), segment, segment + 2, 80L));
+    assertEquals(0, entryRepository.moveToSegment(deleted.getId(), segment, segment + 1, 50L));
+    DownloadGrant grant = entryRepository.findDownloadGrant(live.getFileName(), OWNER)
+        .orElseThrow();
+    assertEquals(segment + 1, grant.getSegment());
+    assertEquals(40L, grant.getSegmentOffset());
+    assertTrue(entryRepository.findDownloadGrant(deleted.getFileName(), OWNER).isEmpty());
+  }
+
+  @Test
+  public void allocateIncreasingSegmentIds() {
+    long first = entryRepository.nextSegmentId();
+    long second = entryRepository.nextSegmentId();
+
+    assertTrue(second > first);
+  }
+
+  private static Entry entry(String fileName, List<String> recipients) {
+    Entry entry = new Entry(fileName + System.nanoTime(), LocalDateTime.now().plusDays(1), OWNER,
+        recipients);
+    entry.setSize(1L);
+    return entry;
+  }
+}
@@ -24,9 +24,10 @@ import static org.springframework.test.web.servlet.request.MockMvcRequestBuilder
 
 import de.gematik.kim.kas.KasApplication;
 import de.gematik.kim.kas.controller.FileController;
+import de.gematik.kim.kas.model.Attachment;
 import de.gematik.kim.kas.service.cron.AccessChecker;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 import java.util.concurrent.TimeUnit;
@@ -40,6 +41,7 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.expression.AccessException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -74,16 +76,20 @@ public class AccessCheckerIT {
   private AmClient amClient;
   @MockBean
   private FileLoadService fileLoadService;
+  @MockBean
+  private AttachmentIdFilter attachmentIdFilter;
 
   private MockHttpServletRequestBuilder request;
 
 
   @BeforeEach
-  public void prepareRequest() throws FileNotFoundException, AccessException {
+  public void prepareRequest() throws IOException, AccessException {
     File f = new File(
         "." + File.separator + "src" + File.separator + "test" + File.separator + "resources"
             + File.separator + "Test.txt");
-    when(fileLoadService.loadFile(any(), any())).thenReturn(f);
+    when(fileLoadService.loadFile(any(), any())).thenReturn(
+        Attachment.builder().id(1L).content(new FileSystemResource(f)).file(f).build());
+    when(attachmentIdFilter.mightExist(any())).thenReturn(true);
     request = get("/" + PREFIX + "/" + VERSION + "/attachment/" + "Test")
         .header("authorization",
             "Basic " + new String(Base64.getEncoder().encode("username:password".getBytes(
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.service.cron;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.verify;
+
+import de.gematik.kim.kas.KasApplication;
+import de.gematik.kim.kas.db.Entry;
+import de.gematik.kim.kas.db.EntryRepository;
+import de.gematik.kim.kas.db.OwnerUsage;
+import de.gematik.kim.kas.db.PendingQuotaReleaseRepository;
+import de.gematik.kim.kas.service.AmClient;
+import de.gematik.kim.kas.service.QuotaReleaseQueue;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.ScheduledAnnotationBeanPostProcessor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.test.context.ActiveProfiles;
+
+@ActiveProfiles("it")
+@SpringBootTest(classes = KasApplication.class, properties = "gematik.kim.kas.cleanup-page-size=3")
+public class DeleteFileJobIT {
+
+  private static final String OWNER = "owner@gematik.test";
+
+  @MockBean
+  private AmClient amClient;
+  @Autowired
+  private EntryRepository entryRepository;
+  @Autowired
+  private DeleteFileJob deleteFileJob;
+  @Autowired
+  private JdbcTemplate jdbcTemplate;
+  @Autowired
+  private QuotaReleaseQueue quotaReleaseQueue;
+  @Autowired
+  private PendingQuotaReleaseRepository releaseRepository;
+  @Autowired
+  private ThreadPoolTaskScheduler taskScheduler;
+  @Autowired
+  private ScheduledAnnotationBeanPostProcessor scheduledTasks;
+
+  @BeforeEach
+  public void clean() {
+    entryRepository.deleteAll();
+    releaseRepository.deleteAll();
+  }
+
+  @Test
+  public void deleteExpiredFilesAcrossPages() throws Exception {
+    List<Long> expired = IntStream.range(0, 7)
+        .mapToObj(i -> save("expired" + i, LocalDateTime.now().minusDays(1), LocalDateTime.now()))
+        .collect(Collectors.toList());
+    Long valid = save("valid", LocalDateTime.now().plusDays(1), LocalDateTime.now());
+
+    deleteFileJob.deleteOldFiles();
+    quotaReleaseQueue.drain();
+
+    expired.forEach(id -> assertTrue(entryRepository.findById(id).orElseThrow().isDeleted()));
+    assertFalse(entryRepository.findById(valid).orElseThrow().isDeleted());
+    verify(amClient, atLeastOnce()).releaseQuota(1, OWNER);
+    assertEquals(0, releaseRepository.count());
+  }
+
+  @Test
+  public void sumUsedSpacePerOwner() {
+    save("first", LocalDateTime.now().plusDays(1), LocalDateTime.now(), 5L);
+    save("second", LocalDateTime.now().plusDays(1), LocalDateTime.now(), 7L);
+    Entry deleted = entryRepository.findById(
+        save("third", LocalDateTime.now().plusDays(1), LocalDateTime.now(), 11L)).orElseThrow();
+    deleted.setDeleted(true);
+    entryRepository.save(deleted);
+
+    List<OwnerUsage> usage = entryRepository.sumSizeByOwnerInAndDeletedFalse(
+        List.of(OWNER, "unknown@gematik.test"));
+
+    assertEquals(1, usage.size());
+    assertEquals(OWNER, usage.get(0).getOwner());
+    assertEquals(12L, usage.get(0).getUsedSpace());
+  }
+
+  @Test
+  public void createIndexesForCleanupAndQuotaQueries() {
+    List<String> indexes = jdbcTemplate.queryForList(
+        "select lower(index_name) from information_schema.indexes", String.class);
+
+    assertTrue(indexes.containsAll(List.of("idx_entry_deleted_delete_time", "idx_entry_created",
+        "idx_entry_owner_deleted", "idx_entry_recipients_entry_id")), indexes.toString());
+  }
+
+  @Test
+  public void sumUsedSpaceUsingOwnerIndex() {
+    String plan = jdbcTemplate.queryForObject("explain select owner, sum(size) from entry"
+        + " where deleted = false and owner in ('" + OWNER + "') group by owner", String.class);
+
+    assertTrue(plan.toLowerCase().contains("idx_entry_owner_deleted"), plan);
+  }
+
+  @Test
+  public void deleteOutdatedEntriesWithRecipientsAcrossPages() {
+    LocalDateTime longAgo = LocalDateTime.now().minusYears(2);
+    IntStream.range(0, 5).forEach(i -> save("outdated" + i, longAgo, longAgo));
+    Long recent = save("recent", LocalDateTime.now().plusDays(1), LocalDateTime.now());
+
+    deleteFileJob.deleteOldFiles();
+
+    assertEquals(List.of(recent), entryRepository.findAll().stream().map(Entry::getId)
+        .collect(Collectors.toList()));
+  }
+
+  @Test
+  public void runEveryScheduledJobOnItsOwnThread() {
+    assertTrue(taskScheduler.getPoolSize() >= scheduledTasks.getScheduledTasks().size(),
+        "Scheduler pool is smaller than the number of scheduled jobs");
+  }
+
+  private Long save(String fileName, LocalDateTime deleteTime, LocalDateTime created) {
+    return save(fileName, deleteTime, created, 1L);
+  }
+
+  private Long save(String fileName, LocalDateTime deleteTime, LocalDateTime created,
+      long size) {
+    Entry entry = new Entry(fileName, deleteTime, OWNER, List.of("recipient@gematik.test"));
+    entry.setCreated(created);
+    entry.setSize(size);
+    return entryRepository.save(entry).getId();
+  }
+}
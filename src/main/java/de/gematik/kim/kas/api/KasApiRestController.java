@@ -19,11 +19,17 @@ package de.gematik.kim.kas.api;
 import static org.springframework.http.HttpStatus.CREATED;
 
 import de.gematik.kim.kas.api.response.ResponsesMap;
+import de.gematik.kim.kas.exceptions.AccountManagerUnavailableException;
 import de.gematik.kim.kas.model.AddAttachmentResponse;
+import de.gematik.kim.kas.model.Attachment;
 import de.gematik.kim.kas.model.ErrorResponse;
+import de.gematik.kim.kas.service.AttachmentCache;
+import de.gematik.kim.kas.service.AttachmentIdFilter;
+import de.gematik.kim.kas.service.DownloadCounter;
 import de.gematik.kim.kas.service.FileLoadService;
 import de.gematik.kim.kas.service.FileSaveService;
 import de.gematik.kim.kas.service.cron.AccessChecker;
+import de.gematik.kim.kas.storage.StorageObjectResource;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.enums.ParameterIn;
@@ -33,19 +39,26 @@ import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import java.io.File;
-import java.io.FileInputStream;
-import java.nio.file.Files;
+import java.io.IOException;
 import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.ResourceRegion;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.util.LinkedMultiValueMap;
-import org.springframework.util.MultiValueMap;
+import org.springframework.http.converter.ResourceRegionHttpMessageConverter;
+import org.springframework.http.server.ServletServerHttpResponse;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
@@ -64,9 +77,22 @@ import org.springframework.web.multipart.MultipartFile;
     description = "Storage for attachments of KIM messages")
 public class KasApiRestController {
 
+  static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+  static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+  static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+  static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
   private final AccessChecker accessChecker;
   private final FileSaveService fileSaveService;
   private final FileLoadService fileLoadService;
+  private final AttachmentCache attachmentCache;
+  private final AttachmentIdFilter attachmentIdFilter;
+  private final DownloadCounter downloadCounter;
+  private final ResourceRegionHttpMessageConverter regionConverter =
+      new ResourceRegionHttpMessageConverter();
+
+  @Value("${gematik.kim.kas.use-sendfile:true}")
+  private boolean useSendfile;
 
 
   /**
@@ -91,7 +117,8 @@ public class KasApiRestController {
       @ApiResponse(responseCode = "400", description = "Bad Request"),
       @ApiResponse(responseCode = "401", description = "Authorization failed"),
       @ApiResponse(responseCode = "413", description = "Payload to large"),
-      @ApiResponse(responseCode = "500", description = "Internal server error")
+      @ApiResponse(responseCode = "500", description = "Internal server error"),
+      @ApiResponse(responseCode = "503", description = "Account manager unavailable")
   })
   @PostMapping(value = "/attachment",
       consumes = {MediaType.MULTIPART_FORM_DATA_VALUE},
@@ -105,6 +132,12 @@ public class KasApiRestController {
     String url;
     try {
       url = fileSaveService.saveFile(messageID, recipients, expires, attachment);
+    } catch (AccountManagerUnavailableException ex) {
+      log.error("Add attachment failed -> {}", ex.getMessage());
+      HttpHeaders headers = new HttpHeaders();
+      headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()));
+      return new ResponseEntity(ErrorResponse.builder().message(ex.getMessage()).build(), headers,
+          ResponsesMap.map.get(ex.getClass()));
     } catch (Exception ex) {
       log.error("Add attachment failed -> {}", ex.getMessage());
       return new ResponseEntity(ErrorResponse.builder().message(ex.getMessage()).build(),
@@ -117,7 +150,8 @@ public class KasApiRestController {
   }
 
   /**
-   * Download data that was uploaded to the KAS.
+   * Download data that was uploaded to the KAS. Single or multiple byte ranges can be requested
+   * with the Range header, optionally guarded by If-Range with the ETag of the attachment.
    *
    * @param attachmentId UUID of the data
    * @return Binary stream of the requested data
@@ -129,7 +163,12 @@ public class KasApiRestController {
       @ApiResponse(responseCode = "200",
           description = "OK - Attachment was downloaded successfully",
           content = {@Content(mediaType = MediaType.APPLICATION_OCTET_STREAM_VALUE)}),
+      @ApiResponse(responseCode = "206",
+          description = "Partial Content - The requested byte ranges of the attachment",
+          content = {@Content(mediaType = MediaType.APPLICATION_OCTET_STREAM_VALUE),
+              @Content(mediaType = "multipart/byteranges")}),
       @ApiResponse(responseCode = "404", description = "Resources not found"),
+      @ApiResponse(responseCode = "416", description = "Range not satisfiable"),
       @ApiResponse(responseCode = "429", description = "Too many requests"),
       @ApiResponse(responseCode = "500", description = "Internal server error")
   })
@@ -137,20 +176,66 @@ public class KasApiRestController {
   public ResponseEntity<?> readAttachment(
       @Parameter(description = "Link-Reference auf den verschüsselten Anhang im Dienst", required = true) @PathVariable("attachmentId") String
           attachmentId,
-      @Parameter(in = ParameterIn.HEADER) @RequestHeader(value = "recipient") String recipient) {
-    if (!accessChecker.check(attachmentId)) {
-      return new ResponseEntity<>(ErrorResponse.builder().message("Too many requests").build(),
-          HttpStatus.TOO_MANY_REQUESTS);
+      @Parameter(in = ParameterIn.HEADER) @RequestHeader(value = "recipient") String recipient,
+      HttpServletRequest request, HttpServletResponse response) {
+    if (!attachmentIdFilter.mightExist(attachmentId)) {
+      log.info("Unknown attachment: {}", attachmentId);
+      return new ResponseEntity<>(
+          ErrorResponse.builder().message("No entry found for " + attachmentId).build(),
+          HttpStatus.NOT_FOUND);
+    }
+    // The weight of a partial download is only known after the lookup, so range requests are
+    // only checked against the limit here and counted once their ranges are known
+    boolean rangeRequest = request.getHeader(HttpHeaders.RANGE) != null;
+    if (rangeRequest ? !accessChecker.isAllowed(recipient, attachmentId)
+        : !accessChecker.check(recipient, attachmentId)) {
+      return tooManyRequests();
     }
     log.info("Get file: {}", attachmentId);
-    File file;
     try {
-      file = fileLoadService.loadFile(attachmentId, recipient);
-      log.info("Response 200: File found - {}", file.getAbsolutePath());
-      MultiValueMap<String, String> headers = new LinkedMultiValueMap<>();
-      headers.add(HttpHeaders.CONTENT_LENGTH, String.valueOf(Files.size(file.toPath())));
-      return new ResponseEntity<>(new InputStreamResource(new FileInputStream(file)), headers,
-          HttpStatus.OK);
+      Attachment attachment = fileLoadService.loadFile(attachmentId, recipient);
+      Resource content = attachment.getContent();
+      log.info("File found - {}", content.getDescription());
+      long length = content.contentLength();
+      HttpHeaders headers = new HttpHeaders();
+      headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+      headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+      if (attachment.getEtag() != null) {
+        headers.setETag("\"" + attachment.getEtag() + "\"");
+      }
+
+      List<HttpRange> ranges = List.of();
+      if (rangeRequest && isRangeApplicable(request, headers.getETag())) {
+        try {
+          ranges = HttpRange.parseRanges(request.getHeader(HttpHeaders.RANGE));
+        } catch (IllegalArgumentException ex) {
+          return rangeNotSatisfiable(headers, length, ex);
+        }
+      }
+      if (!ranges.isEmpty()) {
+        return readAttachmentRanges(recipient, attachmentId, attachment, length, ranges, headers,
+            request, response);
+      }
+      if (rangeRequest && !accessChecker.check(recipient, attachmentId)) {
+        return tooManyRequests();
+      }
+
+      log.info("Response 200: {} bytes", length);
+      downloadCounter.increment(attachment.getId());
+      headers.setContentLength(length);
+      Optional<Resource> cached = attachmentCache.get(attachmentId, attachment, length);
+      if (cached.isEmpty() && useSendfile(request, attachment)) {
+        prepareSendfile(request, attachment.getFile(), attachment.getOffset(),
+            attachment.getOffset() + length);
+        return new ResponseEntity<>(headers, HttpStatus.OK);
+      }
+      cached.ifPresent(resource -> attachmentCache.served(length));
+      Resource body = cached.isPresent() ? cached.get() : content;
+      // Spring would answer any other resource with 206 if the request has a Range header
+      if (rangeRequest) {
+        body = new InputStreamResource(body.getInputStream());
+      }
+      return new ResponseEntity<>(body, headers, HttpStatus.OK);
     } catch (Exception ex) {
       log.error("Read attachment faild -> {}", ex.getMessage());
       return new ResponseEntity<>(ErrorResponse.builder().message(ex.getMessage()).build(),
@@ -158,4 +243,103 @@ public class KasApiRestController {
     }
   }
 
+  /**
+   * Answers a request for one or more byte ranges of an attachment. A single range is sent as it
+   * is, several ranges are sent as multipart/byteranges. The request is limited by the share of
+   * the attachment it returns. It only counts as a download if it returns the last byte of the
+   * attachment, so a download resumed in several chunks counts once.
+   */
+  private ResponseEntity<?> readAttachmentRanges(String recipient, String attachmentId,
+      Attachment attachment, long length, List<HttpRange> ranges, HttpHeaders headers,
+      HttpServletRequest request, HttpServletResponse response) throws IOException {
+    List<ResourceRegion> regions;
+    try {
+      regions = HttpRange.toResourceRegions(ranges, attachment.getContent());
+    } catch (IllegalArgumentException ex) {
+      return rangeNotSatisfiable(headers, length, ex);
+    }
+    long servedBytes = regions.stream().mapToLong(ResourceRegion::getCount).sum();
+    if (!accessChecker.check(recipient, attachmentId, servedBytes, length)) {
+      return tooManyRequests();
+    }
+    log.info("Response 206: {} of {} bytes in {} range(s)", servedBytes, length, regions.size());
+    if (regions.stream().anyMatch(region -> region.getPosition() + region.getCount() == length)) {
+      downloadCounter.increment(attachment.getId());
+    }
+    Optional<Resource> cached = attachmentCache.get(attachmentId, attachment, length);
+    if (cached.isEmpty() && regions.size() == 1 && useSendfile(request, attachment)) {
+      ResourceRegion region = regions.get(0);
+      long end = region.getPosition() + region.getCount();
+      headers.set(HttpHeaders.CONTENT_RANGE,
+          "bytes " + region.getPosition() + "-" + (end - 1) + "/" + length);
+      headers.setContentLength(region.getCount());
+      prepareSendfile(request, attachment.getFile(), attachment.getOffset() + region.getPosition(),
+          attachment.getOffset() + end);
+      return new ResponseEntity<>(headers, HttpStatus.PARTIAL_CONTENT);
+    }
+    if (cached.isPresent()) {
+      regions = regions.stream()
+          .map(region -> new ResourceRegion(cached.get(), region.getPosition(), region.getCount()))
+          .collect(Collectors.toList());
+      attachmentCache.served(servedBytes);
+    } else if (attachment.getContent() instanceof StorageObjectResource) {
+      // Each region requests only its own bytes from the storage backend
+      StorageObjectResource object = (StorageObjectResource) attachment.getContent();
+      regions = regions.stream()
+          .map(region -> new ResourceRegion(object.upTo(region.getPosition() + region.getCount()),
+              region.getPosition(), region.getCount()))
+          .collect(Collectors.toList());
+    }
+    // The region converter sets Content-Range, Content-Length and the multipart boundary
+    ServletServerHttpResponse output = new ServletServerHttpResponse(response);
+    output.setStatusCode(HttpStatus.PARTIAL_CONTENT);
+    output.getHeaders().putAll(headers);
+    regionConverter.write(regions.size() == 1 ? regions.get(0) : regions,
+        MediaType.APPLICATION_OCTET_STREAM, output);
+    output.flush();
+    return null;
+  }
+
+  /**
+   * A Range header is only applied if there is no If-Range header or if it matches the strong
+   * ETag of the attachment. Otherwise the whole attachment is sent.
+   */
+  private boolean isRangeApplicable(HttpServletRequest request, String etag) {
+    String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+    return ifRange == null || (etag != null && etag.equals(ifRange.trim()));
+  }
+
+  private ResponseEntity<?> rangeNotSatisfiable(HttpHeaders headers, long length,
+      IllegalArgumentException ex) {
+    log.error("Read attachment faild -> {}", ex.getMessage());
+    headers.set(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+    return new ResponseEntity<>(headers, HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+  }
+
+  private ResponseEntity<?> tooManyRequests() {
+    return new ResponseEntity<>(ErrorResponse.builder().message("Too many requests").build(),
+        HttpStatus.TOO_MANY_REQUESTS);
+  }
+
+  /**
+   * Sendfile needs the attachment in a local file. Cached attachments are served from the cache
+   * instead.
+   */
+  private boolean useSendfile(HttpServletRequest request, Attachment attachment) {
+    return useSendfile && attachment.getFile() != null
+        && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTR));
+  }
+
+  /**
+   * Hands the file over to the servlet container, which writes it to the socket with sendfile, so
+   * the data is not copied through the heap of the application.
+   */
+  private void prepareSendfile(HttpServletRequest request, File file, long start, long end)
+      throws IOException {
+    request.setAttribute(SENDFILE_FILENAME_ATTR, file.getCanonicalPath());
+    request.setAttribute(SENDFILE_START_ATTR, start);
+    request.setAttribute(SENDFILE_END_ATTR, end);
+    log.info("Serving {} bytes with sendfile", end - start);
+  }
+
 }
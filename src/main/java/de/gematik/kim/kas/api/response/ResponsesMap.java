@@ -16,6 +16,7 @@
 
 package de.gematik.kim.kas.api.response;
 
+import de.gematik.kim.kas.exceptions.AccountManagerUnavailableException;
 import de.gematik.kim.kas.exceptions.CouldNotSaveException;
 import de.gematik.kim.kas.exceptions.FileToLargeException;
 import de.gematik.kim.kas.exceptions.InvalidEmailFoundException;
@@ -40,6 +41,7 @@ public class ResponsesMap {
     put(FileNotFoundException.class, HttpStatus.NOT_FOUND);
     put(AccessException.class, HttpStatus.UNAUTHORIZED);
     put(NotEnoughSpaceException.class, HttpStatus.INSUFFICIENT_STORAGE);
+    put(AccountManagerUnavailableException.class, HttpStatus.SERVICE_UNAVAILABLE);
   }};
 
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.configs;
+
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.httpcomponents.PoolingHttpClientConnectionManagerMetricsBinder;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * HTTP client used to talk to the account manager. Connections are kept alive and pooled, so auth
+ * and quota calls do not pay for a new TCP (and TLS) handshake each time.
+ */
+@Configuration
+public class AmHttpClientConfiguration {
+
+  @Value("${gematik.kim.kas.am-connect-timeout}")
+  private int connectTimeout;
+  @Value("${gematik.kim.kas.am-read-timeout}")
+  private int readTimeout;
+  @Value("${gematik.kim.kas.am-pool-max-total}")
+  private int maxTotal;
+  @Value("${gematik.kim.kas.am-pool-max-per-route}")
+  private int maxPerRoute;
+  @Value("${gematik.kim.kas.am-pool-idle-timeout}")
+  private long idleTimeout;
+
+  /**
+   * Connection pool for the account manager.
+   *
+   * @return PoolingHttpClientConnectionManager.
+   */
+  @Bean
+  public PoolingHttpClientConnectionManager amConnectionManager() {
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(maxTotal);
+    connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+    connectionManager.setValidateAfterInactivity(1000);
+    return connectionManager;
+  }
+
+  /**
+   * Pooled HTTP client with timeouts. Connections idle for longer than
+   * {@code am-pool-idle-timeout} milliseconds are closed in the background.
+   *
+   * @return CloseableHttpClient.
+   */
+  @Bean
+  public CloseableHttpClient amHttpClient(PoolingHttpClientConnectionManager amConnectionManager) {
+    return HttpClients.custom()
+        .setConnectionManager(amConnectionManager)
+        .setDefaultRequestConfig(RequestConfig.custom()
+            .setConnectTimeout(connectTimeout)
+            .setConnectionRequestTimeout(connectTimeout)
+            .setSocketTimeout(readTimeout)
+            .build())
+        .evictExpiredConnections()
+        .evictIdleConnections(idleTimeout, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  /**
+   * Exposes the pool statistics as {@code httpcomponents.httpclient.pool.*} metrics.
+   *
+   * @return MeterBinder.
+   */
+  @Bean
+  public MeterBinder amConnectionPoolMetrics(
+      PoolingHttpClientConnectionManager amConnectionManager) {
+    return new PoolingHttpClientConnectionManagerMetricsBinder(amConnectionManager, "am");
+  }
+}
@@ -29,9 +29,13 @@ import io.swagger.v3.oas.models.info.License;
 import io.swagger.v3.oas.models.servers.Server;
 import java.util.List;
 import java.util.stream.Collectors;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.actuate.trace.http.HttpTraceRepository;
 import org.springframework.context.annotation.Bean;
+import org.springframework.http.client.BufferingClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
@@ -108,8 +112,15 @@ public class KasApiRestConfiguration {
         .servers(servers);
   }
 
+  /**
+   * Client for the account manager, using the pooled {@code amHttpClient}.
+   *
+   * @return ApiClient.
+   */
   @Bean
-  public ApiClient getAMApiClient() {
-    return new ApiClient().setBasePath(amPath);
+  public ApiClient getAMApiClient(CloseableHttpClient amHttpClient) {
+    RestTemplate restTemplate = new RestTemplate(new BufferingClientHttpRequestFactory(
+        new HttpComponentsClientHttpRequestFactory(amHttpClient)));
+    return new ApiClient(restTemplate).setBasePath(amPath);
   }
 }
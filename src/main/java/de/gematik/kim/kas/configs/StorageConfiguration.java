@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.configs;
+
+import de.gematik.kim.kas.storage.FileSystemStorageBackend;
+import de.gematik.kim.kas.storage.S3StorageBackend;
+import de.gematik.kim.kas.storage.StorageBackend;
+import de.gematik.kim.kas.storage.StorageType;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Storage backend for the attachments, selected with {@code storage-backend}.
+ */
+@Configuration
+public class StorageConfiguration {
+
+  @Value("${gematik.kim.kas.storage-backend}")
+  private StorageType storageType;
+  @Value("${gematik.kim.kas.storage-path}")
+  private String storagePath;
+  @Value("${gematik.kim.kas.s3-endpoint}")
+  private String s3Endpoint;
+  @Value("${gematik.kim.kas.s3-region}")
+  private String s3Region;
+  @Value("${gematik.kim.kas.s3-bucket}")
+  private String s3Bucket;
+  @Value("${gematik.kim.kas.s3-access-key}")
+  private String s3AccessKey;
+  @Value("${gematik.kim.kas.s3-secret-key}")
+  private String s3SecretKey;
+  @Value("${gematik.kim.kas.s3-part-size}")
+  private long s3PartSize;
+  @Value("${gematik.kim.kas.s3-max-connections}")
+  private int s3MaxConnections;
+  @Value("${gematik.kim.kas.s3-connect-timeout}")
+  private int s3ConnectTimeout;
+  @Value("${gematik.kim.kas.s3-read-timeout}")
+  private int s3ReadTimeout;
+
+  /**
+   * Files below the storage path, or objects in an S3 bucket accessed through a pooled HTTP
+   * client.
+   *
+   * @return StorageBackend.
+   */
+  @Bean
+  public StorageBackend storageBackend() {
+    if (storageType != StorageType.S3) {
+      return new FileSystemStorageBackend(storagePath);
+    }
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(s3MaxConnections);
+    connectionManager.setDefaultMaxPerRoute(s3MaxConnections);
+    return new S3StorageBackend(HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        .setDefaultRequestConfig(RequestConfig.custom()
+            .setConnectTimeout(s3ConnectTimeout)
+            .setConnectionRequestTimeout(s3ConnectTimeout)
+            .setSocketTimeout(s3ReadTimeout)
+            .build())
+        .evictExpiredConnections()
+        .build(), s3Endpoint, s3Region, s3Bucket, s3AccessKey, s3SecretKey, s3PartSize);
+  }
+}
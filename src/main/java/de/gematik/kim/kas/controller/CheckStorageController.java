@@ -16,7 +16,9 @@
 
 package de.gematik.kim.kas.controller;
 
+import de.gematik.kim.kas.storage.StorageBackend;
 import java.io.File;
+import java.io.IOException;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -35,6 +37,13 @@ public class CheckStorageController implements InitializingBean {
   @Autowired
   ApplicationContext context;
 
+  @Autowired
+  StorageBackend storageBackend;
+
+  /**
+   * Checks the storage path, which holds the staging area and the segment files with every storage
+   * backend, and the storage backend itself.
+   */
   @Override
   public void afterPropertiesSet() throws Exception {
     File file = new File(storagePath);
@@ -42,6 +51,13 @@ public class CheckStorageController implements InitializingBean {
     if (!file.canWrite()) {
       log.error("Can not save file caused by permission denied!" + file.getAbsolutePath());
       SpringApplication.exit(context, () -> 1);
+      return;
+    }
+    try {
+      storageBackend.check();
+    } catch (IOException ex) {
+      log.error("Storage backend is not usable: {}", ex.getMessage());
+      SpringApplication.exit(context, () -> 1);
     }
   }
 }
@@ -16,34 +16,68 @@
 
 package de.gematik.kim.kas.controller;
 
-import static de.gematik.kim.kas.service.auth.AuthStrategy.MAIL;
-import static de.gematik.kim.kas.utils.StringFormater.formatMailToPath;
-
 import de.gematik.kim.kas.exceptions.CouldNotSaveException;
+import de.gematik.kim.kas.exceptions.FileToLargeException;
+import de.gematik.kim.kas.storage.StorageBackend;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+import javax.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
-import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Controller;
 
 @Controller
 @Slf4j
 public class FileController {
 
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final String STAGING_DIR = ".staging";
+
   private final String storagePath;
+  private final StorageLayout layout;
+  private final SegmentStore segmentStore;
+  private final StorageBackend storageBackend;
 
-  public FileController(@Value("${gematik.kim.kas.storage-path}") String storagePath) {
+  public FileController(@Value("${gematik.kim.kas.storage-path}") String storagePath,
+      @Value("${gematik.kim.kas.storage-layout}") StorageLayout layout,
+      SegmentStore segmentStore, StorageBackend storageBackend) {
     this.storagePath = storagePath;
+    this.layout = layout;
+    this.segmentStore = segmentStore;
+    this.storageBackend = storageBackend;
+  }
+
+  /**
+   * Path of a new attachment below the storage path, in the configured layout.
+   */
+  public String relativePath(String owner, String fileName) {
+    return layout.relativePath(owner, fileName);
   }
 
-  public void storeFile(byte[] file, String fileName) throws CouldNotSaveException {
+  /**
+   * Streams the data into the staging area. Staged files are not visible for downloads until
+   * they are published with {@link #publishFile(StagedFile, String)}.
+   *
+   * @param data    stream of the attachment
+   * @param maxSize maximum number of bytes accepted before the upload is aborted
+   */
+  public StagedFile stageFile(InputStream data, long maxSize)
+      throws CouldNotSaveException, FileToLargeException {
     try {
-      String userPath = formatMailToPath(MDC.get(MAIL));
-      checkPath(storagePath, userPath);
-      saveFile(file, storagePath + File.separator + userPath + File.separator + fileName);
+      checkPath(storagePath, STAGING_DIR);
+      Path path = Paths.get(storagePath, STAGING_DIR, UUID.randomUUID() + ".part");
+      return saveFile(data, path, maxSize);
     } catch (FileNotFoundException ex) {
       log.error(ex.getMessage());
       throw new CouldNotSaveException("Not enough space on disk");
@@ -53,19 +87,99 @@ public class FileController {
     }
   }
 
-  public File getFile(String resource, String owner) throws FileNotFoundException {
-    String filePath =
-        storagePath + File.separator + formatMailToPath(owner) + File.separator + resource;
-    File file = new File(filePath);
-    if (!file.exists()) {
-      throw new FileNotFoundException("The requested file does not exist.");
+  /**
+   * Stores a staged file in the storage backend under the given path and removes it from the
+   * staging area. The file becomes visible at once and complete.
+   */
+  public void publishFile(StagedFile staged, String path) throws CouldNotSaveException {
+    try {
+      storageBackend.put(path, staged.getPath());
+      log.info("File saved at {}", path);
+    } catch (IOException ex) {
+      log.error(ex.getMessage());
+      throw new CouldNotSaveException("Something went wrong while saving file.");
     }
-    log.info("Got file from {}", file.getAbsolutePath());
+    discardFile(staged);
+  }
+
+  /**
+   * Whether a staged file is small enough to be stored in a segment instead of its own file.
+   */
+  public boolean fitsSegment(StagedFile staged) {
+    return segmentStore.accepts(staged.getSize());
+  }
+
+  /**
+   * Appends a staged file to the active segment and removes it from the staging area.
+   */
+  public SegmentLocation publishToSegment(StagedFile staged) throws CouldNotSaveException {
+    try {
+      SegmentLocation location = segmentStore.append(staged.getPath());
+      log.info("File saved in segment {} at {}", location.getSegment(), location.getOffset());
+      discardFile(staged);
+      return location;
+    } catch (IOException ex) {
+      log.error(ex.getMessage());
+      throw new CouldNotSaveException("Something went wrong while saving file.");
+    }
+  }
+
+  public File getSegment(long segment) throws FileNotFoundException {
+    return segmentStore.getSegment(segment);
+  }
+
+  public void discardFile(StagedFile staged) {
+    try {
+      Files.deleteIfExists(staged.getPath());
+    } catch (IOException ex) {
+      log.error("Could not remove staged file {}: {}", staged.getPath(), ex.getMessage());
+    }
+  }
+
+  /**
+   * Removes files left in the staging area by uploads that were interrupted by a shutdown. Runs
+   * while the context is created, before the web server accepts uploads, so no staged file of a
+   * running upload is removed.
+   */
+  @PostConstruct
+  public void cleanStagingArea() {
+    File[] leftovers = new File(storagePath, STAGING_DIR).listFiles();
+    if (leftovers == null) {
+      return;
+    }
+    for (File leftover : leftovers) {
+      if (!leftover.delete()) {
+        log.warn("Could not remove staged file {}", leftover);
+      }
+    }
+    log.info("Removed {} staged files of interrupted uploads", leftovers.length);
+  }
+
+  public Resource getFile(String path) throws IOException {
+    Resource file = storageBackend.get(path);
+    log.info("Got file from {}", file.getDescription());
     return file;
   }
 
+  /**
+   * Deletes the file at the given path in the storage backend.
+   *
+   * @return true if the file existed
+   */
+  public boolean deleteFile(String path) throws IOException {
+    return storageBackend.delete(path);
+  }
+
+  /**
+   * Makes a stored file also available at another path. The file stays at its old path until it
+   * is deleted there.
+   */
+  public void copyFile(String from, String to) throws IOException {
+    storageBackend.copy(from, to);
+  }
+
   private void checkPath(String storagePath, String userPath) throws IOException {
-    File file = new File(storagePath + File.separator + userPath);
+    File file = Paths.get(storagePath, userPath).toFile();
     if (file.exists()) {
       return;
     }
@@ -74,11 +188,41 @@ public class FileController {
     }
   }
 
-  private void saveFile(byte[] data, String fileName) throws IOException {
-    try (FileOutputStream stream = new FileOutputStream(fileName)) {
-      stream.write(data);
+  private StagedFile saveFile(InputStream data, Path path, long maxSize)
+      throws IOException, FileToLargeException {
+    MessageDigest digest = sha256();
+    long written = 0;
+    try (OutputStream stream = Files.newOutputStream(path)) {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = data.read(buffer)) != -1) {
+        written += read;
+        if (written > maxSize) {
+          break;
+        }
+        stream.write(buffer, 0, read);
+        digest.update(buffer, 0, read);
+      }
+    } catch (IOException ex) {
+      Files.deleteIfExists(path);
+      throw ex;
+    }
+    if (written > maxSize) {
+      Files.deleteIfExists(path);
+      log.error("Error: Data too large, aborted upload after {} / {} bytes", written, maxSize);
+      throw new FileToLargeException("Payload to large");
+    }
+    log.debug("File staged at {}", path);
+    return new StagedFile(path, written,
+        String.format("%064x", new BigInteger(1, digest.digest())));
+  }
+
+  private MessageDigest sha256() throws IOException {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IOException("SHA-256 is not available", ex);
     }
-    log.info("File saved at {}", fileName);
   }
 
 
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.controller;
+
+import de.gematik.kim.kas.db.EntryRepository;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Packs attachments of up to {@code segment-max-attachment-size} bytes into segment files of
+ * about {@code segment-size} bytes below {@code storagePath/.segments}, so small attachments do
+ * not cost a file each. Attachments are only ever appended to the active segment. A new active
+ * segment is started when the current one is full and at every startup, so a segment that is not
+ * active never changes until it is compacted and deleted. Segment ids are taken from a persistent
+ * sequence, so a deleted segment's id is never given to a new segment.
+ */
+@Slf4j
+@Component
+public class SegmentStore {
+
+  private static final String SEGMENT_DIR = ".segments";
+  private static final String SUFFIX = ".seg";
+
+  private final String storagePath;
+  private final long maxAttachmentSize;
+  private final long segmentSize;
+  private final LongSupplier segmentIds;
+  private long activeId = -1;
+  private FileChannel active;
+
+  @Autowired
+  public SegmentStore(@Value("${gematik.kim.kas.storage-path}") String storagePath,
+      @Value("${gematik.kim.kas.segment-max-attachment-size}") long maxAttachmentSize,
+      @Value("${gematik.kim.kas.segment-size}") long segmentSize,
+      EntryRepository entryRepository) {
+    this(storagePath, maxAttachmentSize, segmentSize, entryRepository::nextSegmentId);
+  }
+
+  public SegmentStore(String storagePath, long maxAttachmentSize, long segmentSize,
+      LongSupplier segmentIds) {
+    this.storagePath = storagePath;
+    this.maxAttachmentSize = maxAttachmentSize;
+    this.segmentSize = segmentSize;
+    this.segmentIds = segmentIds;
+  }
+
+  /**
+   * Whether an attachment of the given size is stored in a segment.
+   */
+  public boolean accepts(long size) {
+    return size > 0 && size <= maxAttachmentSize;
+  }
+
+  /**
+   * Appends the content of a file to the active segment.
+   */
+  public synchronized SegmentLocation append(Path source) throws IOException {
+    try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+      return append(in, 0, in.size());
+    }
+  }
+
+  /**
+   * Appends a part of another segment to the active segment.
+   */
+  public synchronized SegmentLocation copy(long segment, long offset, long length)
+      throws IOException {
+    try (FileChannel in = FileChannel.open(path(segment), StandardOpenOption.READ)) {
+      return append(in, offset, length);
+    }
+  }
+
+  public File getSegment(long segment) throws FileNotFoundException {
+    File file = path(segment).toFile();
+    if (!file.exists()) {
+      throw new FileNotFoundException("The requested file does not exist.");
+    }
+    return file;
+  }
+
+  /**
+   * Id of the segment new attachments are appended to, -1 if there is none yet.
+   */
+  public synchronized long getActiveId() {
+    return activeId;
+  }
+
+  public List<Long> listSegments() throws IOException {
+    List<Long> segments = new ArrayList<>();
+    Path directory = Paths.get(storagePath, SEGMENT_DIR);
+    if (!Files.isDirectory(directory)) {
+      return segments;
+    }
+    try (Stream<Path> files = Files.list(directory)) {
+      files.map(file -> file.getFileName().toString())
+          .filter(name -> name.endsWith(SUFFIX))
+          .forEach(name -> segments.add(
+              Long.parseLong(name.substring(0, name.length() - SUFFIX.length()))));
+    }
+    segments.sort(null);
+    return segments;
+  }
+
+  public long size(long segment) throws IOException {
+    return Files.size(path(segment));
+  }
+
+  public synchronized boolean delete(long segment) throws IOException {
+    if (segment == activeId) {
+      throw new IOException("The active segment " + segment + " cannot be deleted");
+    }
+    return Files.deleteIfExists(path(segment));
+  }
+
+  @PreDestroy
+  public synchronized void close() throws IOException {
+    if (active != null) {
+      active.close();
+      active = null;
+    }
+  }
+
+  private SegmentLocation append(FileChannel in, long position, long length) throws IOException {
+    if (active == null || active.size() + length > segmentSize) {
+      roll();
+    }
+    long offset = active.size();
+    in.position(position);
+    try {
+      long written = 0;
+      while (written < length) {
+        long count = active.transferFrom(in, offset + written, length - written);
+        if (count <= 0) {
+          throw new IOException("Source ended after " + written + " of " + length + " bytes");
+        }
+        written += count;
+      }
+    } catch (IOException ex) {
+      active.truncate(offset);
+      throw ex;
+    }
+    return new SegmentLocation(activeId, offset);
+  }
+
+  private void roll() throws IOException {
+    close();
+    Files.createDirectories(Paths.get(storagePath, SEGMENT_DIR));
+    List<Long> segments = listSegments();
+    long highest = segments.isEmpty() ? -1 : segments.get(segments.size() - 1);
+    // Skips the ids of segments written before the sequence was introduced
+    do {
+      activeId = segmentIds.getAsLong();
+    } while (activeId <= highest);
+    active = FileChannel.open(path(activeId), StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    log.info("Started segment {}", activeId);
+  }
+
+  private Path path(long segment) {
+    return Paths.get(storagePath, SEGMENT_DIR, String.format("%012d%s", segment, SUFFIX));
+  }
+}
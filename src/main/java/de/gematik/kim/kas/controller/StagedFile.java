@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.controller;
+
+import java.nio.file.Path;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * An uploaded attachment written to the staging area but not yet visible for downloads.
+ */
+@Getter
+@RequiredArgsConstructor
+public class StagedFile {
+
+  private final Path path;
+  private final long size;
+  private final String etag;
+
+}
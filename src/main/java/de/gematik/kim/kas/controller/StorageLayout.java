@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.controller;
+
+import static de.gematik.kim.kas.utils.StringFormater.formatMailToPath;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Where an attachment is stored below the storage path. Paths use "/" as separator, so they can be
+ * stored in the database independent of the platform.
+ */
+public enum StorageLayout {
+
+  /**
+   * All attachments of an owner in one directory: {@code owner/fileName}.
+   */
+  FLAT {
+    @Override
+    public String relativePath(String owner, String fileName) {
+      return formatMailToPath(owner) + "/" + fileName;
+    }
+  },
+
+  /**
+   * Attachments of an owner spread over two levels of 256 directories, picked by a hash of the
+   * file name: {@code owner/ab/cd/fileName}.
+   */
+  SHARDED {
+    @Override
+    public String relativePath(String owner, String fileName) {
+      CRC32 crc = new CRC32();
+      crc.update(fileName.getBytes(StandardCharsets.UTF_8));
+      long hash = crc.getValue();
+      return String.format("%s/%02x/%02x/%s", formatMailToPath(owner), (hash >>> 24) & 0xFF,
+          (hash >>> 16) & 0xFF, fileName);
+    }
+  };
+
+  public abstract String relativePath(String owner, String fileName);
+
+  /**
+   * Path of an attachment. Entries stored before the path was recorded are in the flat layout.
+   *
+   * @param path recorded path of the entry, can be null
+   */
+  public static String locate(String path, String owner, String fileName) {
+    return path != null ? path : FLAT.relativePath(owner, fileName);
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.db;
+
+/**
+ * What is needed to serve a download: whether the requester may read the attachment, and where
+ * and in which version it is stored.
+ */
+public interface DownloadGrant {
+
+  Long getId();
+
+  String getOwner();
+
+  String getEtag();
+
+  String getPath();
+
+  Long getSize();
+
+  Long getSegment();
+
+  Long getSegmentOffset();
+
+  boolean isAllowed();
+}
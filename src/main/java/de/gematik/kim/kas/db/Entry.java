@@ -18,11 +18,17 @@ package de.gematik.kim.kas.db;
 
 import java.time.LocalDateTime;
 import java.util.List;
+import javax.persistence.CollectionTable;
 import javax.persistence.Column;
 import javax.persistence.ElementCollection;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.JoinColumn;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
 import javax.validation.constraints.NotNull;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
@@ -30,6 +36,12 @@ import lombok.Data;
 import lombok.NoArgsConstructor;
 
 @Entity
+@Table(indexes = {
+    @Index(name = "idx_entry_deleted_delete_time", columnList = "deleted, deleteTime"),
+    @Index(name = "idx_entry_created", columnList = "created"),
+    @Index(name = "idx_entry_owner_deleted", columnList = "owner, deleted, size"),
+    @Index(name = "idx_entry_segment_deleted", columnList = "segment, deleted")
+})
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
@@ -49,7 +61,8 @@ public class Entry {
   }
 
   @Id
-  @GeneratedValue
+  @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "entry_id")
+  @SequenceGenerator(name = "entry_id", sequenceName = "hibernate_sequence", allocationSize = 50)
   Long id;
 
   @NotNull
@@ -63,6 +76,8 @@ public class Entry {
   LocalDateTime deleteTime;
 
   @ElementCollection
+  @CollectionTable(name = "entry_recipients", joinColumns = @JoinColumn(name = "entry_id"),
+      indexes = @Index(name = "idx_entry_recipients_entry_id", columnList = "entry_id"))
   List<String> recipients;
 
   @NotNull
@@ -77,5 +92,23 @@ public class Entry {
   @NotNull
   Long size;
 
+  String etag;
+
+  /**
+   * Path of the file below the storage path. Null for entries stored before the storage layout
+   * could be configured, which are in the flat layout.
+   */
+  String path;
+
+  /**
+   * Segment file the attachment is packed into, null if it is stored in a file of its own.
+   */
+  Long segment;
+
+  /**
+   * Position of the attachment in its segment file. Its length is the size of the entry.
+   */
+  Long segmentOffset;
+
 }
 
@@ -17,22 +17,160 @@
 package de.gematik.kim.kas.db;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 @Repository
 public interface EntryRepository extends JpaRepository<Entry, Long> {
 
-  List<Entry> findByCreatedBefore(LocalDateTime date);
+  /**
+   * Keyset page of entries whose files have expired, ordered by id. Pass the id of the last entry
+   * of the previous page (or 0) to read the next page.
+   */
+  List<Entry> findByIdGreaterThanAndDeleteTimeBeforeAndDeletedFalseOrderByIdAsc(Long id,
+      LocalDateTime date, Pageable pageable);
 
-  List<Entry> findByDeleteTimeBeforeAndDeletedFalse(LocalDateTime date);
+  /**
+   * Keyset page of the not deleted entries with a delete time in {@code [from, until)}, ordered by
+   * id.
+   */
+  @Query("select e.id as id, e.deleteTime as deleteTime from Entry e where e.deleted = false"
+      + " and e.id > :id and e.deleteTime >= :from and e.deleteTime < :until order by e.id")
+  List<EntryExpiry> findExpiries(@Param("id") Long id, @Param("from") LocalDateTime from,
+      @Param("until") LocalDateTime until, Pageable pageable);
 
-  Optional<Entry> findEntryByFileName(String filename);
+  /**
+   * Keyset page of the ids and file names of the not deleted entries, ordered by id.
+   */
+  @Query("select e.id as id, e.fileName as fileName from Entry e where e.deleted = false"
+      + " and e.id > :id order by e.id")
+  List<EntryFileName> findFileNames(@Param("id") Long id, Pageable pageable);
 
-  boolean existsByFileName(String fileName);
+  /**
+   * Keyset page of the storage locations of the not deleted entries that are stored in a file of
+   * their own, ordered by id.
+   */
+  @Query("select e.id as id, e.owner as owner, e.fileName as fileName, e.path as path"
+      + " from Entry e where e.deleted = false and e.segment is null and e.id > :id"
+      + " order by e.id")
+  List<EntryLocation> findLocations(@Param("id") Long id, Pageable pageable);
 
-  List<Entry> findEntriesByOwnerAndDeletedFalse(String owner);
+  /**
+   * Records the new path of an entry, unless the entry was deleted or its path changed since it
+   * was read. An entry without path is passed with an empty previous path.
+   *
+   * @return 1 if the path was updated, 0 otherwise
+   */
+  @Transactional
+  @Modifying
+  @Query("update Entry e set e.path = :path where e.id = :id and e.deleted = false"
+      + " and coalesce(e.path, '') = :previous")
+  int updatePath(@Param("id") Long id, @Param("previous") String previous,
+      @Param("path") String path);
+
+  /**
+   * Bytes of the not deleted entries in each segment.
+   */
+  @Query("select e.segment as segment, sum(e.size) as liveBytes from Entry e"
+      + " where e.deleted = false and e.segment is not null group by e.segment")
+  List<SegmentUsage> sumSizeBySegment();
+
+  /**
+   * Next id for a segment file. Ids come from a sequence, so an id is never handed out twice,
+   * even after the segment with the highest id was deleted.
+   */
+  @Query(value = "select next value for segment_sequence", nativeQuery = true)
+  long nextSegmentId();
+
+  /**
+   * Keyset page of the not deleted entries in the given segment, ordered by id.
+   */
+  @Query("select e.id as id, e.segmentOffset as segmentOffset, e.size as size from Entry e"
+      + " where e.deleted = false and e.segment = :segment and e.id > :id order by e.id")
+  List<SegmentEntry> findSegmentEntries(@Param("segment") Long segment, @Param("id") Long id,
+      Pageable pageable);
+
+  /**
+   * Records that an entry was copied to another segment, unless it was deleted or moved since it
+   * was read.
+   *
+   * @return 1 if the entry was moved, 0 otherwise
+   */
+  @Transactional
+  @Modifying
+  @Query("update Entry e set e.segment = :segment, e.segmentOffset = :offset where e.id = :id"
+      + " and e.deleted = false and e.segment = :previous")
+  int moveToSegment(@Param("id") Long id, @Param("previous") Long previous,
+      @Param("segment") Long segment, @Param("offset") Long offset);
+
+  /**
+   * Keyset page of the ids of entries created before the given date, ordered by id.
+   */
+  @Query("select e.id from Entry e where e.id > :id and e.created < :date order by e.id")
+  List<Long> findIdsByIdGreaterThanAndCreatedBefore(@Param("id") Long id,
+      @Param("date") LocalDateTime date, Pageable pageable);
+
+  /**
+   * Marks the entry as deleted unless it already is.
+   *
+   * @return 1 if this call marked the entry, 0 otherwise
+   */
+  @Transactional
+  @Modifying
+  @Query("update Entry e set e.deleted = true where e.id = :id and e.deleted = false")
+  int markDeleted(@Param("id") Long id);
+
+  @Modifying
+  @Query(value = "delete from entry_recipients where entry_id in :ids", nativeQuery = true)
+  void deleteRecipientsByEntryIdIn(@Param("ids") Collection<Long> ids);
+
+  @Modifying
+  @Query("delete from Entry e where e.id in :ids")
+  int deleteByIdIn(@Param("ids") Collection<Long> ids);
+
+  /**
+   * Removes the given entries together with their recipients using two bulk statements in one
+   * transaction.
+   */
+  @Transactional
+  default int deleteEntriesInBatch(Collection<Long> ids) {
+    deleteRecipientsByEntryIdIn(ids);
+    return deleteByIdIn(ids);
+  }
+
+  /**
+   * Looks up the entry of the given file name and checks in the same query whether the requester
+   * is its owner or one of its recipients. Neither the entry nor its recipients are loaded. Deleted
+   * entries are not found, since the content of a deleted entry in a segment is only removed by
+   * the segment compaction.
+   */
+  @Query("select e.id as id, e.owner as owner, e.etag as etag, e.path as path,"
+      + " e.size as size, e.segment as segment, e.segmentOffset as segmentOffset,"
+      + " case when e.owner = :requester or exists (select x.id from Entry x join x.recipients r"
+      + " where x.id = e.id and r = :requester) then true else false end as allowed"
+      + " from Entry e where e.fileName = :fileName and e.deleted = false")
+  Optional<DownloadGrant> findDownloadGrant(@Param("fileName") String fileName,
+      @Param("requester") String requester);
+
+  @Modifying
+  @Query("update Entry e set e.numberOfDownloads = e.numberOfDownloads + :count"
+      + " where e.id in :ids")
+  int addDownloads(@Param("count") int count, @Param("ids") Collection<Long> ids);
+
+  /**
+   * Sums up the size of all not deleted entries per owner. Owners without such entries are not
+   * part of the result.
+   */
+  @Query("select e.owner as owner, sum(e.size) as usedSpace from Entry e"
+      + " where e.deleted = false and e.owner in :owners group by e.owner")
+  List<OwnerUsage> sumSizeByOwnerInAndDeletedFalse(@Param("owners") Collection<String> owners);
 
 }
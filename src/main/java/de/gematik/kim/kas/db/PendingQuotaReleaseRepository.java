@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.db;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+@Repository
+public interface PendingQuotaReleaseRepository extends
+    JpaRepository<PendingQuotaRelease, String> {
+
+  List<PendingQuotaRelease> findByDueBeforeOrderByDueAsc(LocalDateTime date, Pageable page);
+
+  @Modifying
+  @Query("update PendingQuotaRelease r set r.revision = r.revision + 1 where r.owner in :owners")
+  int increaseRevision(@Param("owners") Collection<String> owners);
+
+  @Transactional
+  @Modifying
+  @Query("delete from PendingQuotaRelease r where r.owner = :owner and r.revision = :revision")
+  int deleteByOwnerAndRevision(@Param("owner") String owner, @Param("revision") long revision);
+
+  @Transactional
+  @Modifying
+  @Query("update PendingQuotaRelease r set r.attempts = :attempts, r.due = :due "
+      + "where r.owner = :owner")
+  int postpone(@Param("owner") String owner, @Param("attempts") int attempts,
+      @Param("due") LocalDateTime due);
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.db;
+
+import java.time.LocalDateTime;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.validation.constraints.NotNull;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Marks an owner for whom quota was reserved at the account manager ahead of uploads. The row is
+ * written before the reservation and removed once the used space was reported back, so leases
+ * left over by a crash can be reconciled at startup.
+ */
+@Entity
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class QuotaLease {
+
+  @Id
+  String owner;
+
+  @NotNull
+  LocalDateTime expires;
+
+}
@@ -16,6 +16,7 @@
 
 package de.gematik.kim.kas.filter;
 
+import de.gematik.kim.kas.exceptions.AccountManagerUnavailableException;
 import de.gematik.kim.kas.service.auth.AuthStrategy;
 import de.gematik.kim.kas.service.auth.BasicAuthStrategy;
 import java.io.IOException;
@@ -25,6 +26,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.stereotype.Component;
 import org.springframework.web.servlet.HandlerInterceptor;
 
@@ -59,6 +61,10 @@ public class BaseAuthFilter implements HandlerInterceptor {
     }
     try {
       authStrategy.verifyAccount(request);
+    } catch (AccountManagerUnavailableException ex) {
+      response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()));
+      response.sendError(503, "Account manager unavailable");
+      return false;
     } catch (Exception ex) {
       response.sendError(401, "Authorization failed");
       response.getWriter().write("{message:\"" + ex.getMessage() + "\"}");
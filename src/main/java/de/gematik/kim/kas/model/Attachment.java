@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.model;
+
+import java.io.File;
+import lombok.Builder;
+import lombok.Data;
+import org.springframework.core.io.Resource;
+
+@Data
+@Builder
+public class Attachment {
+
+  /**
+   * Id of the entry of the attachment.
+   */
+  private Long id;
+
+  private Resource content;
+
+  /**
+   * Local file holding the attachment, so it can be sent with sendfile. Null if the attachment is
+   * not stored on the local file system.
+   */
+  private File file;
+
+  /**
+   * Position of the attachment in the file, which can hold other attachments as well.
+   */
+  private long offset;
+
+  /**
+   * Strong validator of the stored data. Can be null for attachments stored by older versions.
+   */
+  private String etag;
+}
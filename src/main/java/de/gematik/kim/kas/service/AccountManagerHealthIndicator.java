@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.service;
+
+import de.gematik.kim.kas.utils.CircuitBreaker;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.stereotype.Component;
+
+/**
+ * Reports the account manager circuit as {@code DEGRADED} while it is not closed. Downloads keep
+ * working in that state, so the overall health stays up.
+ */
+@Component
+@RequiredArgsConstructor
+public class AccountManagerHealthIndicator implements HealthIndicator {
+
+  public static final Status DEGRADED = new Status("DEGRADED",
+      "Account manager unavailable, uploads are rejected");
+
+  private final AmClient amClient;
+
+  @Override
+  public Health health() {
+    CircuitBreaker.State state = amClient.getCircuitState();
+    Health.Builder builder = state == CircuitBreaker.State.CLOSED ? Health.up()
+        : Health.status(DEGRADED);
+    return builder.withDetail("circuit", state).build();
+  }
+}
@@ -17,32 +17,100 @@
 package de.gematik.kim.kas.service;
 
 import de.gematik.kim.kas.am_api.KasAuthApi;
+import de.gematik.kim.kas.exceptions.AccountManagerUnavailableException;
 import de.gematik.kim.kas.exceptions.NotEnoughSpaceException;
 import de.gematik.kim.kas.model.RemainingQuotaInfo;
+import de.gematik.kim.kas.utils.CircuitBreaker;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import java.util.Objects;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import javax.naming.AuthenticationException;
 import javax.naming.CommunicationException;
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
 
+/**
+ * Calls the account manager. All calls share a circuit breaker and a bulkhead: while the account
+ * manager keeps failing, or too many calls are already waiting for it, further calls fail fast
+ * with an {@link AccountManagerUnavailableException} instead of tying up request threads.
+ */
 @Service
 @Slf4j
-@RequiredArgsConstructor
 public class AmClient {
 
   private final KasAuthApi kasAuthApi;
+  private final CircuitBreaker circuitBreaker;
+  private final Semaphore bulkhead;
+  private final long bulkheadWait;
+  private final int releaseAttempts;
+  private final long releaseBackoff;
+  private final Counter rejectedOpen;
+  private final Counter rejectedFull;
+
+  public AmClient(KasAuthApi kasAuthApi,
+      @Value("${gematik.kim.kas.am-breaker-failure-threshold}") int failureThreshold,
+      @Value("${gematik.kim.kas.am-breaker-open-duration}") long openDuration,
+      @Value("${gematik.kim.kas.am-max-concurrent-calls}") int maxConcurrentCalls,
+      @Value("${gematik.kim.kas.am-bulkhead-wait}") long bulkheadWait,
+      @Value("${gematik.kim.kas.am-release-attempts}") int releaseAttempts,
+      @Value("${gematik.kim.kas.am-release-backoff}") long releaseBackoff,
+      MeterRegistry meterRegistry) {
+    this.kasAuthApi = kasAuthApi;
+    this.circuitBreaker = new CircuitBreaker(failureThreshold, openDuration);
+    this.bulkhead = new Semaphore(maxConcurrentCalls);
+    this.bulkheadWait = bulkheadWait;
+    this.releaseAttempts = Math.max(1, releaseAttempts);
+    this.releaseBackoff = releaseBackoff;
+    this.rejectedOpen = Counter.builder("kas.am.calls.rejected")
+        .description("Account manager calls rejected without being sent")
+        .tag("reason", "circuit-open")
+        .register(meterRegistry);
+    this.rejectedFull = Counter.builder("kas.am.calls.rejected")
+        .description("Account manager calls rejected without being sent")
+        .tag("reason", "bulkhead-full")
+        .register(meterRegistry);
+    Gauge.builder("kas.am.circuit.state", circuitBreaker, cb -> cb.getState().ordinal())
+        .description("State of the account manager circuit: 0 closed, 1 half open, 2 open")
+        .register(meterRegistry);
+    Gauge.builder("kas.am.bulkhead.available", bulkhead, Semaphore::availablePermits)
+        .description("Free slots for concurrent account manager calls")
+        .register(meterRegistry);
+  }
+
+  public CircuitBreaker.State getCircuitState() {
+    return circuitBreaker.getState();
+  }
 
+  /**
+   * @throws AuthenticationException            if the account manager rejects the credentials or
+   *                                            cannot be asked. In the latter case the root cause
+   *                                            is set to the underlying error.
+   * @throws AccountManagerUnavailableException if the account manager is not asked at all
+   */
   public void basicAuth(String username, String password) throws AuthenticationException {
+    ResponseEntity<Void> response;
     try {
-      ResponseEntity<Void> response = kasAuthApi.basicAuthWithHttpInfo(username, password);
-      if (!response.getStatusCode().is2xxSuccessful()) {
-        throw new AuthenticationException("Authorization failed for " + username);
-      }
+      response = call(() -> kasAuthApi.basicAuthWithHttpInfo(username, password));
+    } catch (AccountManagerUnavailableException ex) {
+      throw ex;
     } catch (Exception ex) {
+      log.error("Authorization failed for {}", username);
+      AuthenticationException authEx = new AuthenticationException(
+          "Authorization failed for " + username);
+      authEx.setRootCause(ex);
+      throw authEx;
+    }
+    if (!response.getStatusCode().is2xxSuccessful()) {
       log.error("Authorization failed for {}", username);
       throw new AuthenticationException("Authorization failed for " + username);
     }
@@ -51,7 +119,7 @@ public class AmClient {
   public long checkAndGetRemainingQuota(long size, String username) throws NotEnoughSpaceException {
     ResponseEntity<RemainingQuotaInfo> response;
     try {
-      response = kasAuthApi.addResourceWithHttpInfo(username, String.valueOf(size));
+      response = call(() -> kasAuthApi.addResourceWithHttpInfo(username, String.valueOf(size)));
     } catch (HttpServerErrorException ex) {
       if (ex.getRawStatusCode() == HttpStatus.INSUFFICIENT_STORAGE.value()) {
         log.error("Not enough space left. {} bytes needed but {} left", size, ex.getResponseBodyAsString());
@@ -61,6 +129,8 @@ public class AmClient {
       } else {
         throw ex;
       }
+    } catch (AccountManagerUnavailableException ex) {
+      throw ex;
     } catch (Exception ex) {
       log.error("Internal error: ", ex);
       throw new RuntimeException("Internal error while requesting quota");
@@ -70,16 +140,95 @@ public class AmClient {
     return remainingQuota;
   }
 
+  /**
+   * Sets the used space of {@code username} at the account manager. The call is idempotent, so
+   * connection errors and server errors are retried with jittered backoff. No retries happen
+   * while the circuit is open.
+   */
   public String releaseQuota(long size, String username) throws CommunicationException {
     ResponseEntity<RemainingQuotaInfo> response;
-    try {
-      response = kasAuthApi.releaseResourceWithHttpInfo(username, String.valueOf(size));
-    } catch (Exception ex) {
-      log.error("Communication to accountmanager broken. ", ex);
-      throw new CommunicationException("Could not release space for " + username);
+    for (int attempt = 1; ; attempt++) {
+      try {
+        response = call(
+            () -> kasAuthApi.releaseResourceWithHttpInfo(username, String.valueOf(size)));
+        break;
+      } catch (Exception ex) {
+        if (attempt >= releaseAttempts || !isFailure(ex)) {
+          log.error("Communication to accountmanager broken. ", ex);
+          throw new CommunicationException("Could not release space for " + username);
+        }
+        log.warn("Release of space for {} failed ({}), retrying", username, ex.getMessage());
+        backoff(attempt, username);
+      }
     }
     Long remainingQuota = Objects.requireNonNull(response.getBody()).getRemainingQuota();
     log.info("Storage released for {}. New remain quota = {}", username, remainingQuota);
     return String.valueOf(remainingQuota);
   }
+
+  private <T> T call(Supplier<T> request) {
+    boolean permitted;
+    try {
+      permitted = bulkhead.tryAcquire(bulkheadWait, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      permitted = false;
+    }
+    if (!permitted) {
+      rejectedFull.increment();
+      throw new AccountManagerUnavailableException("Too many concurrent account manager calls",
+          1);
+    }
+    try {
+      long now = System.currentTimeMillis();
+      if (!circuitBreaker.tryAcquire(now)) {
+        rejectedOpen.increment();
+        long retryAfter = Math.max(1,
+            TimeUnit.MILLISECONDS.toSeconds(circuitBreaker.retryAfterMillis(now) + 999));
+        throw new AccountManagerUnavailableException("Account manager unavailable", retryAfter);
+      }
+      // Anything but a result or a regular answer counts as failure, also an Error, so a trial
+      // call in the half-open state always reports its outcome
+      boolean failure = true;
+      try {
+        T result = request.get();
+        failure = false;
+        return result;
+      } catch (RuntimeException ex) {
+        failure = isFailure(ex);
+        throw ex;
+      } finally {
+        if (failure) {
+          circuitBreaker.onFailure(System.currentTimeMillis());
+        } else {
+          circuitBreaker.onSuccess();
+        }
+      }
+    } finally {
+      bulkhead.release();
+    }
+  }
+
+  /**
+   * Only unreachable or broken account managers count as failures. Client errors and 507 are
+   * regular answers.
+   */
+  private static boolean isFailure(Exception ex) {
+    if (ex instanceof ResourceAccessException) {
+      return true;
+    }
+    return ex instanceof HttpServerErrorException
+        && ((HttpServerErrorException) ex).getRawStatusCode()
+        != HttpStatus.INSUFFICIENT_STORAGE.value();
+  }
+
+  private void backoff(int attempt, String username) throws CommunicationException {
+    long bound = releaseBackoff << Math.min(attempt - 1, 10);
+    try {
+      Thread.sleep(ThreadLocalRandom.current().nextLong(bound + 1));
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new CommunicationException("Could not release space for " + username);
+    }
+  }
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.service;
+
+import de.gematik.kim.kas.model.Attachment;
+import de.gematik.kim.kas.utils.ByteBufferResource;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+
+/**
+ * Keeps recently uploaded and recently read attachments in direct buffers, outside of the heap,
+ * up to {@code read-cache-max-bytes} in total. The least recently used attachments are evicted
+ * first. Attachments larger than {@code read-cache-max-file-size} are never cached. The cache is
+ * disabled if {@code read-cache-max-bytes} is 0.
+ * <p>
+ * Stored attachments never change, so an entry is only invalidated when the file is deleted.
+ * Concurrent misses of the same attachment read it only once and share the result.
+ */
+@Slf4j
+@Service
+public class AttachmentCache {
+
+  private final long maxBytes;
+  private final long maxFileSize;
+  private final Map<String, ByteBuffer> buffers = new LinkedHashMap<>(16, 0.75f, true);
+  private final ConcurrentMap<String, CompletableFuture<ByteBuffer>> loading =
+      new ConcurrentHashMap<>();
+  private long usedBytes;
+  private final Counter hits;
+  private final Counter misses;
+  private final Counter servedBytes;
+
+  public AttachmentCache(@Value("${gematik.kim.kas.read-cache-max-bytes}") long maxBytes,
+      @Value("${gematik.kim.kas.read-cache-max-file-size}") long maxFileSize,
+      MeterRegistry meterRegistry) {
+    if (maxFileSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(
+          "read-cache-max-file-size must not exceed " + Integer.MAX_VALUE + " bytes");
+    }
+    this.maxBytes = maxBytes;
+    this.maxFileSize = Math.min(maxFileSize, maxBytes);
+    this.hits = meterRegistry.counter("kas.read.cache.requests", "result", "hit");
+    this.misses = meterRegistry.counter("kas.read.cache.requests", "result", "miss");
+    this.servedBytes = meterRegistry.counter("kas.read.cache.served.bytes");
+    Gauge.builder("kas.read.cache.size.bytes", this, AttachmentCache::getUsedBytes)
+        .register(meterRegistry);
+    Gauge.builder("kas.read.cache.hit.ratio", this, AttachmentCache::getHitRatio)
+        .register(meterRegistry);
+  }
+
+  public boolean isEnabled() {
+    return maxBytes > 0;
+  }
+
+  /**
+   * Returns the cached attachment, or loads it into the cache if it fits. Attachments that do not
+   * fit are neither looked up nor counted.
+   *
+   * @param fileName   name of the attachment
+   * @param attachment where the attachment is stored, read on a cache miss
+   * @param size       size of the attachment in bytes
+   * @return the cached data or empty if the attachment is not cached
+   */
+  public Optional<Resource> get(String fileName, Attachment attachment, long size) {
+    if (!isEnabled() || !fits(size)) {
+      return Optional.empty();
+    }
+    ByteBuffer buffer;
+    synchronized (this) {
+      buffer = buffers.get(fileName);
+    }
+    if (buffer != null) {
+      hits.increment();
+    } else {
+      misses.increment();
+      buffer = loadOnce(fileName, attachment);
+    }
+    return Optional.ofNullable(buffer).map(data -> new ByteBufferResource(data, fileName));
+  }
+
+  /**
+   * Loads a newly uploaded attachment into the cache if it fits, as it is likely to be read by its
+   * recipients soon.
+   */
+  public void admit(String fileName, Attachment attachment) {
+    if (isEnabled()) {
+      loadOnce(fileName, attachment);
+    }
+  }
+
+  public synchronized void invalidate(String fileName) {
+    ByteBuffer buffer = buffers.remove(fileName);
+    if (buffer != null) {
+      usedBytes -= buffer.capacity();
+    }
+  }
+
+  /**
+   * Records bytes that were sent to a client from a cached attachment.
+   */
+  public void served(long bytes) {
+    servedBytes.increment(bytes);
+  }
+
+  public synchronized long getUsedBytes() {
+    return usedBytes;
+  }
+
+  private double getHitRatio() {
+    double requests = hits.count() + misses.count();
+    return requests == 0 ? 0 : hits.count() / requests;
+  }
+
+  /**
+   * Loads the attachment unless it is cached, or waits for a load of the same attachment that is
+   * already running.
+   */
+  private ByteBuffer loadOnce(String fileName, Attachment attachment) {
+    CompletableFuture<ByteBuffer> load = new CompletableFuture<>();
+    CompletableFuture<ByteBuffer> running = loading.putIfAbsent(fileName, load);
+    if (running != null) {
+      return running.join();
+    }
+    ByteBuffer buffer = null;
+    try {
+      synchronized (this) {
+        buffer = buffers.get(fileName);
+      }
+      if (buffer == null) {
+        buffer = load(fileName, attachment);
+      }
+    } finally {
+      loading.remove(fileName, load);
+      load.complete(buffer);
+    }
+    return buffer;
+  }
+
+  private ByteBuffer load(String fileName, Attachment attachment) {
+    Resource content = attachment.getContent();
+    ByteBuffer buffer;
+    try {
+      long size = content.contentLength();
+      if (!fits(size)) {
+        return null;
+      }
+      buffer = ByteBuffer.allocateDirect((int) size);
+      try (ReadableByteChannel channel = content.readableChannel()) {
+        int read;
+        do {
+          read = channel.read(buffer);
+        } while (read >= 0 && buffer.hasRemaining());
+      }
+    } catch (IOException ex) {
+      log.warn("Could not cache {}: {}", fileName, ex.getMessage());
+      return null;
+    }
+    if (buffer.hasRemaining()) {
+      return null;
+    }
+    buffer.flip();
+    put(fileName, buffer);
+    // The attachment may have been deleted and invalidated while it was read
+    if (!content.exists()) {
+      invalidate(fileName);
+    }
+    return buffer;
+  }
+
+  private boolean fits(long size) {
+    return size > 0 && size <= maxFileSize;
+  }
+
+  private synchronized void put(String fileName, ByteBuffer buffer) {
+    ByteBuffer previous = buffers.put(fileName, buffer);
+    if (previous != null) {
+      usedBytes -= previous.capacity();
+    }
+    usedBytes += buffer.capacity();
+    Iterator<ByteBuffer> eldest = buffers.values().iterator();
+    while (usedBytes > maxBytes && eldest.hasNext()) {
+      usedBytes -= eldest.next().capacity();
+      eldest.remove();
+    }
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.service;
+
+import de.gematik.kim.kas.db.EntryFileName;
+import de.gematik.kim.kas.db.EntryRepository;
+import de.gematik.kim.kas.utils.CountingBloomFilter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.stereotype.Service;
+
+/**
+ * Knows the file names of all stored attachments, so downloads of unknown attachment ids can be
+ * rejected without touching the database or the storage. The file names are kept in a
+ * {@link CountingBloomFilter} sized for {@code id-filter-expected-entries} names and a false
+ * positive rate of {@code id-filter-false-positive-rate}.
+ * <p>
+ * The filter is built from the database at startup and fed by uploads and deletions. Until it is
+ * built every id passes. Deletions are serialized with the pages the build reads, so a deleted
+ * name is only removed if the build already added it. Entries uploaded during the build can be
+ * added twice, which only leaves false positives. The filter only knows the attachments of this
+ * instance, so it is disabled by default and may only be enabled if a single instance uses the
+ * database.
+ */
+@Slf4j
+@Service
+public class AttachmentIdFilter {
+
+  private final EntryRepository entryRepository;
+  private final boolean enabled;
+  private final int pageSize;
+  private final CountingBloomFilter filter;
+  private final AtomicLong size = new AtomicLong();
+  private final Counter rejected;
+  private final Counter passed;
+  private final Counter falsePositives;
+  private volatile boolean ready;
+  private long builtUpToId = -1;
+
+  public AttachmentIdFilter(EntryRepository entryRepository,
+      @Value("${gematik.kim.kas.id-filter-enabled}") boolean enabled,
+      @Value("${gematik.kim.kas.id-filter-expected-entries}") long expectedEntries,
+      @Value("${gematik.kim.kas.id-filter-false-positive-rate}") double falsePositiveRate,
+      @Value("${gematik.kim.kas.cleanup-page-size}") int pageSize,
+      MeterRegistry meterRegistry) {
+    this.entryRepository = entryRepository;
+    this.enabled = enabled;
+    this.pageSize = pageSize;
+    this.filter = enabled ? new CountingBloomFilter(expectedEntries, falsePositiveRate) : null;
+    this.rejected = meterRegistry.counter("kas.id.filter.lookups", "result", "rejected");
+    this.passed = meterRegistry.counter("kas.id.filter.lookups", "result", "passed");
+    this.falsePositives = meterRegistry.counter("kas.id.filter.false.positives");
+    Gauge.builder("kas.id.filter.size", size, AtomicLong::get).register(meterRegistry);
+    Gauge.builder("kas.id.filter.false.positive.rate", this,
+        AttachmentIdFilter::getFalsePositiveRate).register(meterRegistry);
+    Gauge.builder("kas.id.filter.expected.false.positive.rate", this,
+        AttachmentIdFilter::getExpectedFalsePositiveRate).register(meterRegistry);
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void build() {
+    if (!enabled) {
+      return;
+    }
+    Pageable page = PageRequest.of(0, pageSize);
+    long lastId = 0;
+    List<EntryFileName> fileNames;
+    do {
+      synchronized (this) {
+        fileNames = entryRepository.findFileNames(lastId, page);
+        for (EntryFileName fileName : fileNames) {
+          add(fileName.getFileName());
+          lastId = fileName.getId();
+        }
+        builtUpToId = lastId;
+      }
+    } while (fileNames.size() == pageSize);
+    synchronized (this) {
+      ready = true;
+    }
+    log.info("Attachment id filter built with {} entries", size.get());
+  }
+
+  /**
+   * Checks whether an attachment with the given file name might exist.
+   *
+   * @return false if there is certainly no such attachment
+   */
+  public boolean mightExist(String fileName) {
+    if (!enabled || !ready) {
+      return true;
+    }
+    if (filter.mightContain(fileName)) {
+      passed.increment();
+      return true;
+    }
+    rejected.increment();
+    return false;
+  }
+
+  public void add(String fileName) {
+    if (enabled) {
+      filter.add(fileName);
+      size.incrementAndGet();
+    }
+  }
+
+  /**
+   * Runs a deletion and removes the file names of the entries it marked as deleted. The deletion
+   * must commit before it returns and report each entry to at most one call. While the filter is
+   * built, it does not run at the same time as a page read, so a file name is only removed if the
+   * build read its page before the deletion, and therefore added it.
+   *
+   * @param deletion marks entries as deleted and returns the file names of the marked entries by
+   *                 their ids
+   */
+  public void removeDeleted(Supplier<Map<Long, String>> deletion) {
+    if (!enabled) {
+      deletion.get();
+      return;
+    }
+    if (ready) {
+      deletion.get().values().forEach(this::remove);
+      return;
+    }
+    synchronized (this) {
+      Map<Long, String> deleted = deletion.get();
+      if (ready) {
+        deleted.values().forEach(this::remove);
+      } else {
+        deleted.forEach((id, fileName) -> {
+          if (id <= builtUpToId) {
+            remove(fileName);
+          }
+        });
+      }
+    }
+  }
+
+  private void remove(String fileName) {
+    filter.remove(fileName);
+    size.decrementAndGet();
+  }
+
+  /**
+   * Records that an id passed the filter but no attachment was found.
+   */
+  public void recordFalsePositive() {
+    if (enabled && ready) {
+      falsePositives.increment();
+    }
+  }
+
+  /**
+   * Share of the unknown ids that passed the filter.
+   */
+  private double getFalsePositiveRate() {
+    double unknown = falsePositives.count() + rejected.count();
+    return unknown == 0 ? 0 : falsePositives.count() / unknown;
+  }
+
+  private double getExpectedFalsePositiveRate() {
+    return enabled ? filter.expectedFalsePositiveRate(size.get()) : 0;
+  }
+}
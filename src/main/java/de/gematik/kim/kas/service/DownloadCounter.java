@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.service;
+
+import de.gematik.kim.kas.db.EntryRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Counts downloads in memory and writes them to the entries every
+ * {@code download-count-flush-interval} milliseconds and on shutdown, so downloads do not write
+ * and lock the entry row.
+ * <p>
+ * Counts are exact as long as the service shuts down gracefully: a counter taken out of the map
+ * during a flush is summed again at the next flush, which picks up increments that were still
+ * in flight, and counts that could not be written are kept for the next flush. A crash loses the
+ * downloads of at most one flush interval.
+ */
+@Slf4j
+@Service
+public class DownloadCounter {
+
+  private final EntryRepository entryRepository;
+  private final TransactionTemplate transaction;
+  private final Map<Long, LongAdder> counts = new ConcurrentHashMap<>();
+  private Map<Long, LongAdder> retired = Map.of();
+
+  public DownloadCounter(EntryRepository entryRepository,
+      PlatformTransactionManager transactionManager,
+      MeterRegistry meterRegistry) {
+    this.entryRepository = entryRepository;
+    this.transaction = new TransactionTemplate(transactionManager);
+    meterRegistry.gaugeMapSize("kas.downloads.pending.entries", List.of(), counts);
+  }
+
+  public void increment(Long id) {
+    counts.computeIfAbsent(id, key -> new LongAdder()).increment();
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    flush();
+  }
+
+  @Scheduled(fixedDelayString = "${gematik.kim.kas.download-count-flush-interval}")
+  public synchronized void flush() {
+    Map<Long, LongAdder> current = new HashMap<>();
+    for (Long id : counts.keySet()) {
+      LongAdder counter = counts.remove(id);
+      if (counter != null) {
+        current.put(id, counter);
+      }
+    }
+    Map<Long, Long> downloads = new HashMap<>();
+    retired.forEach((id, counter) -> downloads.merge(id, counter.sumThenReset(), Long::sum));
+    current.forEach((id, counter) -> downloads.merge(id, counter.sumThenReset(), Long::sum));
+    retired = current;
+    downloads.values().removeIf(count -> count == 0);
+    if (downloads.isEmpty()) {
+      return;
+    }
+    try {
+      write(downloads);
+      log.debug("Wrote download counts of {} entries", downloads.size());
+    } catch (DataAccessException ex) {
+      log.error("Could not write download counts, retrying later: {}", ex.getMessage());
+      downloads.forEach((id, count) -> counts.computeIfAbsent(id, key -> new LongAdder())
+          .add(count));
+    }
+  }
+
+  /**
+   * Writes the counts with one update per distinct count, as most entries were downloaded the same
+   * small number of times since the last flush.
+   */
+  private void write(Map<Long, Long> downloads) {
+    Map<Long, List<Long>> idsByCount = new HashMap<>();
+    downloads.forEach((id, count) -> idsByCount.computeIfAbsent(count, c -> new ArrayList<>())
+        .add(id));
+    transaction.executeWithoutResult(status -> idsByCount.forEach(
+        (count, ids) -> entryRepository.addDownloads(count.intValue(), ids)));
+  }
+}
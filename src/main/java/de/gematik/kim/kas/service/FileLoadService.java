@@ -17,13 +17,17 @@
 package de.gematik.kim.kas.service;
 
 import de.gematik.kim.kas.controller.FileController;
-import de.gematik.kim.kas.db.Entry;
+import de.gematik.kim.kas.controller.StorageLayout;
+import de.gematik.kim.kas.db.DownloadGrant;
 import de.gematik.kim.kas.db.EntryRepository;
+import de.gematik.kim.kas.model.Attachment;
+import de.gematik.kim.kas.utils.FileRegionResource;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.Optional;
-import javax.transaction.Transactional;
 import lombok.AllArgsConstructor;
+import org.springframework.core.io.Resource;
 import org.springframework.expression.AccessException;
 import org.springframework.stereotype.Service;
 
@@ -33,23 +37,40 @@ public class FileLoadService {
 
   private final FileController fileController;
   private final EntryRepository er;
+  private final AttachmentIdFilter attachmentIdFilter;
 
-  @Transactional
-  public File loadFile(String resource, String recipient)
-      throws FileNotFoundException, AccessException {
-    Optional<Entry> optionalEntry = er.findEntryByFileName(resource);
-    if (optionalEntry.isEmpty()) {
+  public Attachment loadFile(String resource, String recipient)
+      throws IOException, AccessException {
+    Optional<DownloadGrant> optionalGrant = er.findDownloadGrant(resource, recipient);
+    if (optionalGrant.isEmpty()) {
+      attachmentIdFilter.recordFalsePositive();
       throw new FileNotFoundException("No entry found for " + resource);
     }
-    Entry entry = optionalEntry.get();
-    entry.getRecipients().add(entry.getOwner());
-    if (!entry.getRecipients().contains(recipient)) {
+    DownloadGrant grant = optionalGrant.get();
+    if (!grant.isAllowed()) {
       throw new AccessException(recipient + " is no allowed recipient!");
     }
-    File file = fileController.getFile(resource, entry.getOwner());
-    entry.setNumberOfDownloads(entry.getNumberOfDownloads() + 1);
-
-    return file;
+    Attachment attachment;
+    if (grant.getSegment() != null) {
+      File segment = fileController.getSegment(grant.getSegment());
+      attachment = Attachment.builder()
+          .id(grant.getId())
+          .content(new FileRegionResource(segment, grant.getSegmentOffset(), grant.getSize()))
+          .file(segment)
+          .offset(grant.getSegmentOffset())
+          .etag(grant.getEtag())
+          .build();
+    } else {
+      Resource content = fileController.getFile(
+          StorageLayout.locate(grant.getPath(), grant.getOwner(), resource));
+      attachment = Attachment.builder()
+          .id(grant.getId())
+          .content(content)
+          .file(content.isFile() ? content.getFile() : null)
+          .etag(grant.getEtag())
+          .build();
+    }
+    return attachment;
   }
 
 }
@@ -20,6 +20,8 @@ import static de.gematik.kim.kas.service.auth.AuthStrategy.MAIL;
 
 import de.gematik.kim.kas.controller.FileController;
 import de.gematik.kim.kas.controller.MaxMailSizeController;
+import de.gematik.kim.kas.controller.SegmentLocation;
+import de.gematik.kim.kas.controller.StagedFile;
 import de.gematik.kim.kas.controller.UrlController;
 import de.gematik.kim.kas.db.Entry;
 import de.gematik.kim.kas.db.EntryRepository;
@@ -28,19 +30,22 @@ import de.gematik.kim.kas.exceptions.FileToLargeException;
 import de.gematik.kim.kas.exceptions.InvalidEmailFoundException;
 import de.gematik.kim.kas.exceptions.NotEnoughSpaceException;
 import de.gematik.kim.kas.exceptions.TimeParseException;
+import de.gematik.kim.kas.model.Attachment;
+import de.gematik.kim.kas.service.cron.ExpiryScheduler;
 import de.gematik.kim.kas.utils.DateParser;
+import de.gematik.kim.kas.utils.FileRegionResource;
+import de.gematik.kim.kas.utils.UuidV7Generator;
 import java.io.IOException;
+import java.io.InputStream;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.List;
-import java.util.UUID;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.MDC;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 import org.springframework.web.util.UriComponents;
@@ -54,54 +59,119 @@ public class FileSaveService {
   private final FileController fileController;
   private final EntryRepository er;
   private final UrlController urlController;
-  private final AmClient amClient;
+  private final QuotaLedger quotaLedger;
+  private final QuotaReleaseQueue quotaReleaseQueue;
+  private final ExpiryScheduler expiryScheduler;
+  private final AttachmentCache attachmentCache;
+  private final AttachmentIdFilter attachmentIdFilter;
+
+  private final UuidV7Generator idGenerator = new UuidV7Generator();
 
   @SuppressWarnings({"squid:S5843", "squid:S5998"})
   private final Pattern pattern = Pattern.compile(
       "^([a-zA-Z0-9_\\-\\.]+)@((\\[[0-9]{1,3}\\.[0-9]{1,3}\\.[0-9]{1,3}\\.)|(([a-zA-Z0-9\\-]+\\.)+))([a-zA-Z\\-]+|[0-9]{1,3})(\\]?)$");
 
-  @Transactional
+  /**
+   * Saves an attachment in stages, none of them holding a database connection while waiting for
+   * the network or the disk: the data is streamed to the staging area, the quota is reserved, the
+   * entry is committed in a short transaction and finally the file is published. If a stage
+   * fails, the work of the previous stages is undone.
+   */
   public String saveFile(String messageID, List<String> recipients, String expires,
       MultipartFile attachment)
       throws InvalidEmailFoundException, FileToLargeException, CouldNotSaveException, TimeParseException, NotEnoughSpaceException, IOException {
 
-    String fileName = getUniqueFileName();
     doChecks(recipients, expires, attachment);
-    amClient.checkAndGetRemainingQuota(attachment.getSize(), MDC.get(MAIL));
+    LocalDateTime deleteTime = parseMailDateFormatToLocalDateTime(expires);
+    String owner = MDC.get(MAIL);
+
+    StagedFile staged;
+    try (InputStream data = attachment.getInputStream()) {
+      staged = fileController.stageFile(data, maxMailSizeController.getMaxMailSize());
+    }
+
+    try {
+      quotaLedger.reserve(owner, staged.getSize());
+    } catch (NotEnoughSpaceException | RuntimeException ex) {
+      fileController.discardFile(staged);
+      throw ex;
+    }
+
+    // Small attachments are appended to a segment before the entry is saved. If saving fails, the
+    // appended data is not referenced by any entry and reclaimed by the segment compaction.
+    SegmentLocation segment = null;
+    if (fileController.fitsSegment(staged)) {
+      try {
+        segment = fileController.publishToSegment(staged);
+      } catch (CouldNotSaveException | RuntimeException ex) {
+        fileController.discardFile(staged);
+        quotaReleaseQueue.enqueue(List.of(owner), () -> {
+        });
+        throw ex;
+      }
+    }
 
-    er.save(Entry.builder()
+    String fileName = idGenerator.next().toString();
+    Entry entry = Entry.builder()
         .fileName(fileName)
-        .deleteTime(parseMailDateFormatToLocalDateTime(expires))
-        .owner(MDC.get(MAIL))
+        .path(segment == null ? fileController.relativePath(owner, fileName) : null)
+        .segment(segment == null ? null : segment.getSegment())
+        .segmentOffset(segment == null ? null : segment.getOffset())
+        .deleteTime(deleteTime)
+        .owner(owner)
         .recipients(recipients)
-        .size(attachment.getSize())
-        .build());
+        .size(staged.getSize())
+        .etag(staged.getEtag())
+        .build();
+    try {
+      er.save(entry);
+    } catch (RuntimeException ex) {
+      fileController.discardFile(staged);
+      quotaReleaseQueue.enqueue(List.of(owner), () -> {
+      });
+      throw ex;
+    }
+
+    if (segment == null) {
+      try {
+        fileController.publishFile(staged, entry.getPath());
+      } catch (CouldNotSaveException | RuntimeException ex) {
+        fileController.discardFile(staged);
+        quotaReleaseQueue.enqueue(List.of(owner), () -> er.delete(entry));
+        throw ex;
+      }
+    }
+    expiryScheduler.schedule(entry.getId(), entry.getDeleteTime());
+    attachmentIdFilter.add(entry.getFileName());
+    if (attachmentCache.isEnabled()) {
+      // The attachment is stored at this point, so a failure only costs the cache entry
+      try {
+        attachmentCache.admit(entry.getFileName(), Attachment.builder().content(segment == null
+            ? fileController.getFile(entry.getPath())
+            : new FileRegionResource(fileController.getSegment(segment.getSegment()),
+                segment.getOffset(), entry.getSize())).build());
+      } catch (IOException | RuntimeException ex) {
+        log.warn("Could not admit {} to the read cache: {}", entry.getFileName(),
+            ex.getMessage());
+      }
+    }
 
-    fileController.storeFile(attachment.getBytes(), fileName);
     UriComponents currentUriRequest = ServletUriComponentsBuilder.fromCurrentRequest().build();
-    String url = urlController.getFullUrl(fileName, currentUriRequest);
+    String url = urlController.getFullUrl(entry.getFileName(), currentUriRequest);
     return url;
   }
 
 
-  private String getUniqueFileName() {
-    String fileName = UUID.randomUUID().toString();
-    while (er.existsByFileName(fileName)) {
-      fileName = UUID.randomUUID().toString();
-    }
-    return fileName;
-  }
-
   private void doChecks(List<String> recipients, String expires, MultipartFile attachment)
-      throws FileToLargeException, InvalidEmailFoundException, TimeParseException, NotEnoughSpaceException, IOException {
-    checkSize(attachment.getBytes());
+      throws FileToLargeException, InvalidEmailFoundException, TimeParseException {
+    checkSize(attachment.getSize());
     checkMails(recipients);
     checkDateFormat(expires);
   }
 
-  private void checkSize(byte[] attachment) throws FileToLargeException {
-    if (attachment.length > maxMailSizeController.getMaxMailSize()) {
-      log.error("Error: Data too large " + attachment.length + " / "
+  private void checkSize(long size) throws FileToLargeException {
+    if (size > maxMailSizeController.getMaxMailSize()) {
+      log.error("Error: Data too large " + size + " / "
           + maxMailSizeController.getMaxMailSize());
       throw new FileToLargeException("Payload to large");
     }
@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.service;
+
+import de.gematik.kim.kas.db.EntryRepository;
+import de.gematik.kim.kas.db.OwnerUsage;
+import de.gematik.kim.kas.db.QuotaLease;
+import de.gematik.kim.kas.db.QuotaLeaseRepository;
+import de.gematik.kim.kas.exceptions.NotEnoughSpaceException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.naming.CommunicationException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Reserves quota at the account manager in chunks of {@code quota-lease-size} bytes and hands it
+ * out to uploads locally, so most uploads do not need a call to the account manager.
+ * <p>
+ * Since the account manager is told the absolute used space on release, every release of an
+ * owner goes through this class. It returns the unused part of the lease by reporting the space
+ * actually used by the owner's attachments. Leases not used for {@code quota-lease-ttl}
+ * milliseconds are returned the same way. An owner with a lease is recorded in the database
+ * before the first reservation, so leases lost by a crash are returned at the next startup.
+ * <p>
+ * Leases assume that a single instance reserves quota for the owners: reporting the used space
+ * also drops the leases of other instances at the account manager, and the startup returns all
+ * recorded leases. Several instances have to set {@code quota-lease-size} to 0.
+ */
+@Slf4j
+@Service
+public class QuotaLedger {
+
+  private final AmClient amClient;
+  private final EntryRepository entryRepository;
+  private final QuotaLeaseRepository leaseRepository;
+  private final TransactionTemplate newTransaction;
+  private final long leaseSize;
+  private final long leaseTtl;
+  private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+  private final Set<String> unreturned = ConcurrentHashMap.newKeySet();
+  private final Counter localReservations;
+  private final Counter amReservations;
+
+  public QuotaLedger(AmClient amClient,
+      EntryRepository entryRepository,
+      QuotaLeaseRepository leaseRepository,
+      PlatformTransactionManager transactionManager,
+      @Value("${gematik.kim.kas.quota-lease-size}") long leaseSize,
+      @Value("${gematik.kim.kas.quota-lease-ttl}") long leaseTtl,
+      MeterRegistry meterRegistry) {
+    this.amClient = amClient;
+    this.entryRepository = entryRepository;
+    this.leaseRepository = leaseRepository;
+    this.newTransaction = new TransactionTemplate(transactionManager);
+    this.newTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    this.leaseSize = leaseSize;
+    this.leaseTtl = leaseTtl;
+    this.localReservations = meterRegistry.counter("kas.quota.reservations", "source", "lease");
+    this.amReservations = meterRegistry.counter("kas.quota.reservations", "source", "am");
+    meterRegistry.gaugeMapSize("kas.quota.leases", List.of(), leases);
+  }
+
+  /**
+   * Reserves {@code size} bytes of the owner's quota.
+   *
+   * @throws NotEnoughSpaceException if the remaining quota is too small
+   */
+  public void reserve(String owner, long size) throws NotEnoughSpaceException {
+    if (leaseSize <= 0) {
+      amClient.checkAndGetRemainingQuota(size, owner);
+      amReservations.increment();
+      return;
+    }
+    while (true) {
+      long now = System.currentTimeMillis();
+      Lease lease = leases.computeIfAbsent(owner, o -> new Lease());
+      if (lease.tryConsume(size, now)) {
+        localReservations.increment();
+        return;
+      }
+      synchronized (lease) {
+        if (lease.isClosed()) {
+          continue;
+        }
+        if (lease.isExpired(now)) {
+          returnLease(owner, lease);
+          continue;
+        }
+        if (lease.tryConsume(size, now)) {
+          localReservations.increment();
+          return;
+        }
+        extend(owner, lease, size, now);
+        amReservations.increment();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Reports the space used by the owner to the account manager. This also returns the owner's
+   * lease, as the account manager no longer counts it afterwards.
+   */
+  public void release(String owner, long usedSpace) throws CommunicationException {
+    Lease lease = leases.get(owner);
+    if (lease != null) {
+      synchronized (lease) {
+        lease.close();
+        leases.remove(owner, lease);
+      }
+    }
+    boolean recorded = lease != null && lease.persisted;
+    try {
+      amClient.releaseQuota(usedSpace, owner);
+    } catch (CommunicationException ex) {
+      if (recorded) {
+        unreturned.add(owner);
+      }
+      throw ex;
+    }
+    if (unreturned.remove(owner) || recorded) {
+      deleteLeaseRecord(owner);
+    }
+  }
+
+  @Scheduled(fixedDelayString = "${gematik.kim.kas.quota-lease-ttl}")
+  public void returnExpiredLeases() {
+    List<String> failedBefore = List.copyOf(unreturned);
+    long now = System.currentTimeMillis();
+    leases.forEach((owner, lease) -> {
+      synchronized (lease) {
+        if (!lease.isClosed() && lease.isExpired(now)) {
+          returnLease(owner, lease);
+        }
+      }
+    });
+    failedBefore.forEach(this::returnRecordedLease);
+  }
+
+  /**
+   * Returns leases recorded in the database by an earlier run that crashed.
+   */
+  @EventListener(ApplicationReadyEvent.class)
+  public void reconcileLeaseRecords() {
+    List<QuotaLease> records;
+    try {
+      records = leaseRepository.findAll();
+    } catch (DataAccessException ex) {
+      log.error("Could not read quota leases: {}", ex.getMessage());
+      return;
+    }
+    for (QuotaLease record : records) {
+      returnRecordedLease(record.getOwner());
+    }
+  }
+
+  private void returnRecordedLease(String owner) {
+    Lease lease = leases.computeIfAbsent(owner, o -> new Lease());
+    synchronized (lease) {
+      if (lease.isClosed() || lease.persisted) {
+        return;
+      }
+      lease.persisted = true;
+      returnLease(owner, lease);
+    }
+  }
+
+  private void extend(String owner, Lease lease, long size, long now)
+      throws NotEnoughSpaceException {
+    if (!lease.persisted) {
+      newTransaction.executeWithoutResult(status -> leaseRepository.save(new QuotaLease(owner,
+          LocalDateTime.now().plus(leaseTtl, ChronoUnit.MILLIS))));
+      lease.persisted = true;
+    }
+    long chunk = Math.max(leaseSize, size);
+    try {
+      amClient.checkAndGetRemainingQuota(chunk, owner);
+      lease.add(chunk - size);
+    } catch (NotEnoughSpaceException ex) {
+      if (chunk == size) {
+        throw ex;
+      }
+      amClient.checkAndGetRemainingQuota(size, owner);
+    }
+    lease.expiresAt = now + leaseTtl;
+  }
+
+  private void returnLease(String owner, Lease lease) {
+    lease.close();
+    leases.remove(owner, lease);
+    if (!lease.persisted) {
+      return;
+    }
+    try {
+      amClient.releaseQuota(usedSpace(owner), owner);
+      deleteLeaseRecord(owner);
+      unreturned.remove(owner);
+      log.debug("Returned quota lease of {}", owner);
+    } catch (CommunicationException | DataAccessException ex) {
+      unreturned.add(owner);
+      log.warn("Could not return quota lease of {}, retrying later", owner);
+    }
+  }
+
+  private long usedSpace(String owner) {
+    return entryRepository.sumSizeByOwnerInAndDeletedFalse(List.of(owner)).stream()
+        .findFirst()
+        .map(OwnerUsage::getUsedSpace)
+        .orElse(0L);
+  }
+
+  private void deleteLeaseRecord(String owner) {
+    newTransaction.executeWithoutResult(status -> leaseRepository.deleteByOwner(owner));
+  }
+
+  /**
+   * Quota reserved for one owner but not yet used. Uploads consume it without locking. Extending
+   * and closing a lease happens while holding its monitor.
+   */
+  private static class Lease {
+
+    private static final long CLOSED = Long.MIN_VALUE;
+
+    private final AtomicLong remaining = new AtomicLong();
+    private volatile long expiresAt = Long.MAX_VALUE;
+    private volatile boolean persisted;
+
+    private boolean tryConsume(long size, long now) {
+      if (isExpired(now)) {
+        return false;
+      }
+      long current;
+      do {
+        current = remaining.get();
+        if (current == CLOSED || current < size) {
+          return false;
+        }
+      } while (!remaining.compareAndSet(current, current - size));
+      return true;
+    }
+
+    private void add(long size) {
+      remaining.addAndGet(size);
+    }
+
+    private void close() {
+      remaining.set(CLOSED);
+    }
+
+    private boolean isClosed() {
+      return remaining.get() == CLOSED;
+    }
+
+    private boolean isExpired(long now) {
+      return now >= expiresAt;
+    }
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.service;
+
+import de.gematik.kim.kas.db.EntryRepository;
+import de.gematik.kim.kas.db.PendingQuotaRelease;
+import de.gematik.kim.kas.db.PendingQuotaReleaseRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import javax.naming.CommunicationException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Durable queue of quota releases. Releases are recorded in the database in the same transaction
+ * as the change that frees the space and are reported to the account manager in the background,
+ * so neither a slow nor an unavailable account manager holds up the caller or loses a release.
+ * <p>
+ * Releases of the same owner are coalesced into one row, reported with the owner's used space at
+ * the time of the report. Failed reports are retried with jittered exponential backoff, starting
+ * at {@code quota-release-backoff} and growing up to {@code quota-release-max-backoff}
+ * milliseconds.
+ */
+@Slf4j
+@Service
+public class QuotaReleaseQueue {
+
+  private final PendingQuotaReleaseRepository releaseRepository;
+  private final EntryRepository entryRepository;
+  private final QuotaLedger quotaLedger;
+  private final TransactionTemplate transaction;
+  private final int batchSize;
+  private final long backoff;
+  private final long maxBackoff;
+  private final Counter reported;
+  private final Counter failed;
+  private final AtomicLong pending = new AtomicLong();
+
+  public QuotaReleaseQueue(PendingQuotaReleaseRepository releaseRepository,
+      EntryRepository entryRepository,
+      QuotaLedger quotaLedger,
+      PlatformTransactionManager transactionManager,
+      @Value("${gematik.kim.kas.quota-release-batch-size}") int batchSize,
+      @Value("${gematik.kim.kas.quota-release-backoff}") long backoff,
+      @Value("${gematik.kim.kas.quota-release-max-backoff}") long maxBackoff,
+      MeterRegistry meterRegistry) {
+    this.releaseRepository = releaseRepository;
+    this.entryRepository = entryRepository;
+    this.quotaLedger = quotaLedger;
+    this.transaction = new TransactionTemplate(transactionManager);
+    this.batchSize = batchSize;
+    this.backoff = Math.max(1, backoff);
+    this.maxBackoff = Math.max(this.backoff, maxBackoff);
+    this.reported = meterRegistry.counter("kas.quota.release.reports", "result", "success");
+    this.failed = meterRegistry.counter("kas.quota.release.reports", "result", "failure");
+    meterRegistry.gauge("kas.quota.release.pending", pending);
+  }
+
+  /**
+   * Runs {@code change} and records a release for each of the owners in the same transaction.
+   * Calls are serialized, so concurrent callers cannot record the same owner twice.
+   */
+  public synchronized void enqueue(Collection<String> owners, Runnable change) {
+    transaction.executeWithoutResult(status -> {
+      change.run();
+      record(owners);
+    });
+  }
+
+  @Scheduled(fixedDelayString = "${gematik.kim.kas.quota-release-interval}")
+  public void drain() {
+    List<PendingQuotaRelease> due;
+    try {
+      due = releaseRepository.findByDueBeforeOrderByDueAsc(LocalDateTime.now(),
+          PageRequest.of(0, batchSize));
+      if (!due.isEmpty()) {
+        report(due);
+      }
+      pending.set(releaseRepository.count());
+    } catch (DataAccessException ex) {
+      log.error("Could not report pending quota releases: {}", ex.getMessage());
+    }
+  }
+
+  private void record(Collection<String> owners) {
+    if (owners.isEmpty()) {
+      return;
+    }
+    Set<String> missing = new LinkedHashSet<>(owners);
+    if (releaseRepository.increaseRevision(owners) > 0) {
+      releaseRepository.findAllById(owners).forEach(release -> missing.remove(release.getOwner()));
+    }
+    LocalDateTime now = LocalDateTime.now();
+    releaseRepository.saveAll(missing.stream()
+        .map(owner -> new PendingQuotaRelease(owner, 0, 0, now))
+        .collect(Collectors.toList()));
+  }
+
+  /**
+   * Reports the used space of the given owners. The rows are read before the used space, so a
+   * release recorded in between raises the revision and keeps its row for the next run.
+   */
+  private void report(List<PendingQuotaRelease> releases) {
+    Map<String, Long> usedSpace = new HashMap<>();
+    entryRepository.sumSizeByOwnerInAndDeletedFalse(releases.stream()
+            .map(PendingQuotaRelease::getOwner)
+            .collect(Collectors.toList()))
+        .forEach(usage -> usedSpace.put(usage.getOwner(), usage.getUsedSpace()));
+    for (PendingQuotaRelease release : releases) {
+      String owner = release.getOwner();
+      try {
+        quotaLedger.release(owner, usedSpace.getOrDefault(owner, 0L));
+        releaseRepository.deleteByOwnerAndRevision(owner, release.getRevision());
+        reported.increment();
+      } catch (CommunicationException ex) {
+        int attempts = release.getAttempts() + 1;
+        long delay = delay(attempts);
+        releaseRepository.postpone(owner, attempts,
+            LocalDateTime.now().plus(delay, ChronoUnit.MILLIS));
+        failed.increment();
+        log.warn("Could not release quota of {}, retrying in {} ms", owner, delay);
+      }
+    }
+  }
+
+  private long delay(int attempts) {
+    long delay = backoff << Math.min(attempts - 1, 30);
+    if (delay <= 0 || delay > maxBackoff) {
+      delay = maxBackoff;
+    }
+    return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.service;
+
+import de.gematik.kim.kas.controller.FileController;
+import de.gematik.kim.kas.controller.StorageLayout;
+import de.gematik.kim.kas.db.EntryLocation;
+import de.gematik.kim.kas.db.EntryRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+/**
+ * Moves the files of existing entries into the configured {@code storage-layout} while the service
+ * keeps running. If {@code storage-migration-enabled} is set, all entries are walked once after
+ * startup and up to {@code storage-migration-threads} files are moved in parallel.
+ * <p>
+ * A file is first linked to its new path, then the new path is recorded. The old path is removed
+ * one run of the {@code storage-migration-cleanup-interval} cleanup later, so downloads that
+ * looked up the old path just before can still read it. Old paths still pending at shutdown are
+ * removed once the web server stopped. If the entry was deleted in the meantime, the new link is
+ * removed again. The migration can be stopped and restarted at any
+ * point, entries that are already in the layout are skipped.
+ */
+@Slf4j
+@Service
+public class StorageMigration {
+
+  private final EntryRepository entryRepository;
+  private final FileController fileController;
+  private final boolean enabled;
+  private final int pageSize;
+  private final ExecutorService coordinator;
+  private final ExecutorService workers;
+  private final Counter moved;
+  private final Counter skipped;
+  private final Counter failed;
+  private final Queue<String> movedPaths = new ConcurrentLinkedQueue<>();
+  private List<String> expiredPaths = List.of();
+
+  public StorageMigration(EntryRepository entryRepository,
+      FileController fileController,
+      @Value("${gematik.kim.kas.storage-migration-enabled}") boolean enabled,
+      @Value("${gematik.kim.kas.storage-migration-threads}") int threads,
+      @Value("${gematik.kim.kas.cleanup-page-size}") int pageSize,
+      MeterRegistry meterRegistry) {
+    this.entryRepository = entryRepository;
+    this.fileController = fileController;
+    this.enabled = enabled;
+    this.pageSize = pageSize;
+    this.coordinator = Executors.newSingleThreadExecutor(
+        new CustomizableThreadFactory("kas-migration-"));
+    this.workers = Executors.newFixedThreadPool(threads,
+        new CustomizableThreadFactory("kas-migration-worker-"));
+    this.moved = meterRegistry.counter("kas.storage.migration.files", "result", "moved");
+    this.skipped = meterRegistry.counter("kas.storage.migration.files", "result", "skipped");
+    this.failed = meterRegistry.counter("kas.storage.migration.files", "result", "failed");
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void start() {
+    if (enabled) {
+      coordinator.execute(this::migrate);
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    coordinator.shutdownNow();
+    workers.shutdownNow();
+    try {
+      workers.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    // The web server is stopped at this point, so no download reads the old paths anymore
+    deleteMovedFiles();
+    deleteMovedFiles();
+  }
+
+  /**
+   * Deletes the old paths of the files moved before the previous run.
+   */
+  @Scheduled(fixedDelayString = "${gematik.kim.kas.storage-migration-cleanup-interval}")
+  public synchronized void deleteMovedFiles() {
+    for (String path : expiredPaths) {
+      try {
+        fileController.deleteFile(path);
+      } catch (IOException ex) {
+        log.warn("Could not delete moved file {}: {}", path, ex.getMessage());
+      }
+    }
+    List<String> moved = new ArrayList<>();
+    for (String path = movedPaths.poll(); path != null; path = movedPaths.poll()) {
+      moved.add(path);
+    }
+    expiredPaths = moved;
+  }
+
+  /**
+   * Moves the files of all entries that are not in the configured layout yet.
+   */
+  public void migrate() {
+    log.info("Storage migration started");
+    Pageable page = PageRequest.of(0, pageSize);
+    long lastId = 0;
+    List<EntryLocation> locations;
+    do {
+      locations = entryRepository.findLocations(lastId, page);
+      List<Future<?>> results = new ArrayList<>(locations.size());
+      for (EntryLocation location : locations) {
+        results.add(workers.submit(() -> migrate(location)));
+      }
+      try {
+        for (Future<?> result : results) {
+          result.get();
+        }
+      } catch (ExecutionException ex) {
+        log.error("Storage migration failed: {}", ex.getCause().getMessage());
+        return;
+      } catch (InterruptedException ex) {
+        results.forEach(result -> result.cancel(true));
+        Thread.currentThread().interrupt();
+        log.warn("Storage migration interrupted (last id {})", lastId);
+        return;
+      }
+      if (!locations.isEmpty()) {
+        lastId = locations.get(locations.size() - 1).getId();
+        log.info("Storage migration progress: {} moved, {} skipped, {} failed (last id {})",
+            (long) moved.count(), (long) skipped.count(), (long) failed.count(), lastId);
+      }
+    } while (locations.size() == pageSize);
+    log.info("Storage migration finished: {} moved, {} skipped, {} failed",
+        (long) moved.count(), (long) skipped.count(), (long) failed.count());
+  }
+
+  private void migrate(EntryLocation location) {
+    String from = StorageLayout.locate(location.getPath(), location.getOwner(),
+        location.getFileName());
+    String to = fileController.relativePath(location.getOwner(), location.getFileName());
+    String previous = location.getPath() == null ? "" : location.getPath();
+    try {
+      if (from.equals(to)) {
+        if (location.getPath() == null) {
+          entryRepository.updatePath(location.getId(), previous, to);
+        }
+        skipped.increment();
+        return;
+      }
+      fileController.copyFile(from, to);
+      if (entryRepository.updatePath(location.getId(), previous, to) == 1) {
+        movedPaths.add(from);
+        moved.increment();
+      } else {
+        fileController.deleteFile(to);
+        skipped.increment();
+      }
+    } catch (IOException | DataAccessException ex) {
+      log.warn("Could not move {} to {}: {}", from, to, ex.getMessage());
+      failed.increment();
+    }
+  }
+}
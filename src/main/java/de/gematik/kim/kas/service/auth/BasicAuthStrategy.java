@@ -16,7 +16,6 @@
 
 package de.gematik.kim.kas.service.auth;
 
-import de.gematik.kim.kas.service.AmClient;
 import java.util.Base64;
 import javax.naming.AuthenticationException;
 import javax.servlet.http.HttpServletRequest;
@@ -31,7 +30,7 @@ import org.springframework.stereotype.Component;
 public class BasicAuthStrategy implements AuthStrategy {
 
   @Autowired
-  AmClient amClient;
+  CredentialCache credentialCache;
 
 
   public void verifyAccount(HttpServletRequest request) throws AuthenticationException {
@@ -54,7 +53,7 @@ public class BasicAuthStrategy implements AuthStrategy {
     String username = auth[0];
     String password = auth[1];
 
-    amClient.basicAuth(username, password);
+    credentialCache.verify(username, password);
 
     MDC.put(MAIL, username);
   }
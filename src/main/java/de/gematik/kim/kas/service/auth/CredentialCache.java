@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.service.auth;
+
+import de.gematik.kim.kas.service.AmClient;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.naming.AuthenticationException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
+
+/**
+ * Remembers the result of basic auth checks against the account manager for a short time, so a
+ * mailbox uploading several attachments in a row is only verified once.
+ * <p>
+ * Credentials are never stored. Results are keyed by a SHA-256 hash of username and password
+ * salted with a random value created at startup. Successful checks are kept for
+ * {@code auth-cache-ttl} milliseconds and rejected credentials for {@code auth-cache-negative-ttl}
+ * milliseconds. Failures to reach the account manager are not cached. Concurrent checks of the
+ * same credentials share a single call to the account manager.
+ */
+@Slf4j
+@Component
+public class CredentialCache {
+
+  private final AmClient amClient;
+  private final long ttl;
+  private final long negativeTtl;
+  private final int maxEntries;
+  private final byte[] salt = new byte[16];
+  private final Map<String, Verification> verifications = new ConcurrentHashMap<>();
+  private final Counter hits;
+  private final Counter misses;
+
+  public CredentialCache(AmClient amClient,
+      @Value("${gematik.kim.kas.auth-cache-ttl}") long ttl,
+      @Value("${gematik.kim.kas.auth-cache-negative-ttl}") long negativeTtl,
+      @Value("${gematik.kim.kas.auth-cache-max-entries}") int maxEntries,
+      MeterRegistry meterRegistry) {
+    this.amClient = amClient;
+    this.ttl = ttl;
+    this.negativeTtl = negativeTtl;
+    this.maxEntries = maxEntries;
+    new SecureRandom().nextBytes(salt);
+    this.hits = meterRegistry.counter("kas.auth.cache.requests", "result", "hit");
+    this.misses = meterRegistry.counter("kas.auth.cache.requests", "result", "miss");
+    meterRegistry.gaugeMapSize("kas.auth.cache.size", List.of(), verifications);
+  }
+
+  /**
+   * Verifies the given credentials, asking the account manager only if there is no valid cached
+   * result.
+   *
+   * @throws AuthenticationException if the credentials were rejected or could not be verified
+   */
+  public void verify(String username, String password) throws AuthenticationException {
+    if (ttl <= 0) {
+      amClient.basicAuth(username, password);
+      return;
+    }
+    String key = key(username, password);
+    long now = System.currentTimeMillis();
+    Verification created = new Verification();
+    Verification verification = verifications.compute(key,
+        (k, existing) -> existing != null && !existing.isExpired(now) ? existing : created);
+    if (verification == created) {
+      misses.increment();
+      evictIfFull(now);
+      verification.run(key, username, password);
+    } else {
+      hits.increment();
+    }
+    verification.await();
+  }
+
+  private void evictIfFull(long now) {
+    if (verifications.size() <= maxEntries) {
+      return;
+    }
+    verifications.values().removeIf(verification -> verification.isExpired(now));
+    if (verifications.size() > maxEntries) {
+      log.warn("Credential cache is full, dropping all {} entries", verifications.size());
+      verifications.clear();
+    }
+  }
+
+  private String key(String username, String password) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(salt);
+      digest.update(username.getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+      digest.update(password.getBytes(StandardCharsets.UTF_8));
+      return Base64.getEncoder().encodeToString(digest.digest());
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException("SHA-256 is not available", ex);
+    }
+  }
+
+  /**
+   * Rejections by the account manager are cached, everything else (timeouts, connection problems,
+   * server errors) is retried on the next request.
+   */
+  private static boolean isRejection(AuthenticationException ex) {
+    return ex.getRootCause() == null || ex.getRootCause() instanceof HttpClientErrorException;
+  }
+
+  private class Verification {
+
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+    private volatile long expiresAt = Long.MAX_VALUE;
+
+    private boolean isExpired(long now) {
+      return now >= expiresAt;
+    }
+
+    private void run(String key, String username, String password) {
+      try {
+        amClient.basicAuth(username, password);
+        expiresAt = System.currentTimeMillis() + ttl;
+        result.complete(null);
+      } catch (AuthenticationException ex) {
+        if (isRejection(ex) && negativeTtl > 0) {
+          expiresAt = System.currentTimeMillis() + negativeTtl;
+        } else {
+          verifications.remove(key, this);
+        }
+        result.completeExceptionally(ex);
+      } catch (RuntimeException ex) {
+        verifications.remove(key, this);
+        result.completeExceptionally(ex);
+      } finally {
+        // An Error leaves the verification open, waiting requests must not hang on it
+        if (!result.isDone()) {
+          verifications.remove(key, this);
+          result.completeExceptionally(
+              new IllegalStateException("Verification of " + username + " aborted"));
+        }
+      }
+    }
+
+    private void await() throws AuthenticationException {
+      try {
+        result.join();
+      } catch (CompletionException ex) {
+        if (ex.getCause() instanceof AuthenticationException) {
+          AuthenticationException authEx = new AuthenticationException(ex.getCause().getMessage());
+          authEx.setRootCause(ex.getCause());
+          throw authEx;
+        }
+        if (ex.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) ex.getCause();
+        }
+        throw ex;
+      }
+    }
+  }
+}
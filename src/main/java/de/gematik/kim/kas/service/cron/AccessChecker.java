@@ -16,64 +16,252 @@
 
 package de.gematik.kim.kas.service.cron;
 
-import static de.gematik.kim.kas.service.auth.AuthStrategy.MAIL;
-
-import java.time.LocalDateTime;
-import java.time.temporal.ChronoUnit;
-import java.util.HashMap;
+import de.gematik.kim.kas.utils.TimingWheel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import lombok.AllArgsConstructor;
-import lombok.Data;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 import lombok.Getter;
-import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+/**
+ * Limits the downloads per recipient and attachment with a sliding window of
+ * time-to-keep-request-record milliseconds. The window of a record starts with its first access.
+ * The counters are updated lock-free, so concurrent downloads are counted exactly.
+ *
+ * <p>Records are kept in a timing wheel by the time their windows are over, so expired records
+ * are removed without scanning all records. If max-request-records is reached, the records which
+ * expire next are removed first.
+ */
 @Service
 public class AccessChecker {
 
-  @Value("${gematik.kim.kas.time-to-keep-request-record}")
-  private long keepRecordTime;
-  @Value("${gematik.kim.kas.max-attachment-requests}")
-  private long maxAttRequests;
+  /**
+   * Weight of one complete download. Partial downloads are weighted by their share of the file.
+   */
+  static final long FULL_DOWNLOAD = 1000;
+
+  private static final int WHEEL_SLOTS = 512;
+
+  private final long keepRecordTime;
+  private final long limit;
+  private final long maxRecords;
+  private final TimingWheel<ResourceAccessCount> expiryWheel;
+  private final Counter expiredRecords;
+  private final Counter evictedRecords;
 
   @Getter
-  private final Map<String, ResourceAccessCount> userAccessCount = new HashMap<>();
+  private final Map<Long, ResourceAccessCount> userAccessCount = new ConcurrentHashMap<>();
+
+  public AccessChecker(
+      @Value("${gematik.kim.kas.time-to-keep-request-record}") long keepRecordTime,
+      @Value("${gematik.kim.kas.max-attachment-requests}") long maxAttRequests,
+      @Value("${gematik.kim.kas.max-request-records}") long maxRecords,
+      MeterRegistry meterRegistry) {
+    this.keepRecordTime = Math.max(1, keepRecordTime);
+    this.limit = maxAttRequests * FULL_DOWNLOAD;
+    this.maxRecords = maxRecords;
+    this.expiryWheel = new TimingWheel<>(WHEEL_SLOTS,
+        (2 * this.keepRecordTime + WHEEL_SLOTS - 2) / (WHEEL_SLOTS - 1),
+        System.currentTimeMillis());
+    this.expiredRecords = meterRegistry.counter("kas.access.records.removed", "cause", "expired");
+    this.evictedRecords = meterRegistry.counter("kas.access.records.removed", "cause", "capacity");
+    meterRegistry.gaugeMapSize("kas.access.records", List.of(), userAccessCount);
+  }
+
+  public boolean check(String recipient, String resource) {
+    return check(recipient, resource, FULL_DOWNLOAD);
+  }
+
+  /**
+   * Checks whether the recipient may still download from the resource, without counting a
+   * download. Used before the size of a partial download is known.
+   */
+  public boolean isAllowed(String recipient, String resource) {
+    return check(recipient, resource, 0);
+  }
+
+  /**
+   * Counts a partial download of a resource.
+   *
+   * @param recipient   recipient requesting the resource
+   * @param resource    requested resource
+   * @param servedBytes number of bytes served by the request
+   * @param totalBytes  size of the resource
+   * @return true if the request is allowed
+   */
+  public boolean check(String recipient, String resource, long servedBytes, long totalBytes) {
+    if (totalBytes <= 0 || servedBytes >= totalBytes) {
+      return check(recipient, resource, FULL_DOWNLOAD);
+    }
+    long weight = (servedBytes * FULL_DOWNLOAD + totalBytes - 1) / totalBytes;
+    return check(recipient, resource, Math.max(1, weight));
+  }
 
-  public boolean check(String resource) {
-    String key = MDC.get(MAIL) + resource;
-    if (!userAccessCount.containsKey(key)) {
-      userAccessCount.put(key, new ResourceAccessCount(1, LocalDateTime.now()));
-      return true;
+  private boolean check(String recipient, String resource, long weight) {
+    long key = key(recipient, resource);
+    while (true) {
+      long now = System.currentTimeMillis();
+      ResourceAccessCount record = userAccessCount.get(key);
+      if (record == null) {
+        record = addRecord(key, now);
+      }
+      Boolean allowed = record.tryAcquire(weight, limit, keepRecordTime, now);
+      if (allowed != null) {
+        return allowed;
+      }
+      // The record was removed in the meantime
+      userAccessCount.remove(key, record);
     }
-    ResourceAccessCount user = userAccessCount.get(key);
-    int accessCount = user.getNumberOfAccess();
-    if (accessCount < maxAttRequests) {
-      user.setNumberOfAccess(accessCount + 1);
-      user.setLastAccessTime(LocalDateTime.now());
-      return true;
+  }
+
+  private ResourceAccessCount addRecord(long key, long now) {
+    ResourceAccessCount record = userAccessCount.computeIfAbsent(key, k -> {
+      ResourceAccessCount created = new ResourceAccessCount(k, now);
+      expiryWheel.schedule(created, created.getDeadline(keepRecordTime));
+      return created;
+    });
+    while (userAccessCount.size() > maxRecords) {
+      ResourceAccessCount earliest = expiryWheel.pollEarliest();
+      if (earliest == null) {
+        break;
+      }
+      if (earliest.retire()) {
+        userAccessCount.remove(earliest.getKey(), earliest);
+        evictedRecords.increment();
+      }
     }
-    return false;
+    return record;
   }
 
+  /**
+   * Removes the records whose windows are over. Records which were accessed in the meantime are
+   * scheduled again by their new deadline.
+   */
   @Scheduled(cron = "${gematik.kim.kas.request-reset-time}")
-  private void resetRequests() {
-    for (Entry<String, ResourceAccessCount> entry : userAccessCount.entrySet()) {
-      if (entry.getValue().getLastAccessTime()
-          .isBefore(LocalDateTime.now().minus(keepRecordTime, ChronoUnit.MILLIS))) {
-        userAccessCount.remove(entry.getKey());
+  void resetRequests() {
+    long now = System.currentTimeMillis();
+    expiryWheel.advance(now, record -> {
+      if (record.retireIfExpired(keepRecordTime, now)) {
+        userAccessCount.remove(record.getKey(), record);
+        expiredRecords.increment();
+      } else if (!record.isRetired()) {
+        expiryWheel.schedule(record, record.getDeadline(keepRecordTime));
       }
+    });
+  }
+
+  /**
+   * 64 bit FNV-1a hash of recipient and resource, used instead of the concatenated strings.
+   */
+  static long key(String recipient, String resource) {
+    long hash = 0xcbf29ce484222325L;
+    hash = hash(hash, String.valueOf(recipient));
+    hash = (hash ^ 0xff) * 0x100000001b3L;
+    return hash(hash, String.valueOf(resource));
+  }
+
+  private static long hash(long hash, String value) {
+    for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+      hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
     }
+    return hash;
   }
 
-  @Data
-  @AllArgsConstructor
-  private class ResourceAccessCount {
+  static class ResourceAccessCount {
 
-    private int numberOfAccess;
-    private LocalDateTime lastAccessTime;
+    private static final Window RETIRED = new Window(Long.MIN_VALUE, 0, 0);
+
+    @Getter
+    private final long key;
+    private final AtomicReference<Window> window;
+
+    ResourceAccessCount(long key, long now) {
+      this.key = key;
+      this.window = new AtomicReference<>(new Window(now, 0, 0));
+    }
 
+    /**
+     * @return true if allowed, false if the limit is reached or null if the record is retired
+     */
+    Boolean tryAcquire(long weight, long limit, long length, long now) {
+      while (true) {
+        Window current = window.get();
+        if (current == RETIRED) {
+          return null;
+        }
+        Window rolled = current.roll(length, now);
+        if (rolled.used(length, now) >= limit) {
+          return false;
+        }
+        if (window.compareAndSet(current, rolled.add(weight))) {
+          return true;
+        }
+      }
+    }
+
+    boolean retireIfExpired(long length, long now) {
+      Window current = window.get();
+      return current != RETIRED && current.isExpired(length, now)
+          && window.compareAndSet(current, RETIRED);
+    }
+
+    boolean retire() {
+      return window.getAndSet(RETIRED) != RETIRED;
+    }
+
+    boolean isRetired() {
+      return window.get() == RETIRED;
+    }
+
+    long getDeadline(long length) {
+      return window.get().start + 2 * length;
+    }
+  }
+
+  /**
+   * Immutable state of a sliding window. The weight of the previous window decreases linearly
+   * while the current window proceeds.
+   */
+  private static class Window {
+
+    private final long start;
+    private final long previous;
+    private final long current;
+
+    Window(long start, long previous, long current) {
+      this.start = start;
+      this.previous = previous;
+      this.current = current;
+    }
+
+    Window roll(long length, long now) {
+      long elapsed = now - start;
+      if (elapsed < length) {
+        return this;
+      }
+      if (elapsed < 2 * length) {
+        return new Window(start + length, current, 0);
+      }
+      return new Window(now, 0, 0);
+    }
+
+    long used(long length, long now) {
+      long remaining = Math.max(0, length - (now - start));
+      return current + previous * remaining / length;
+    }
+
+    Window add(long weight) {
+      return new Window(start, previous, current + weight);
+    }
+
+    boolean isExpired(long length, long now) {
+      return now - start >= 2 * length;
+    }
   }
 }
@@ -16,82 +16,255 @@
 
 package de.gematik.kim.kas.service.cron;
 
-import static de.gematik.kim.kas.utils.StringFormater.formatMailToPath;
-
+import de.gematik.kim.kas.controller.FileController;
+import de.gematik.kim.kas.controller.StorageLayout;
 import de.gematik.kim.kas.db.Entry;
 import de.gematik.kim.kas.db.EntryRepository;
-import de.gematik.kim.kas.service.AmClient;
-import java.io.File;
+import de.gematik.kim.kas.service.AttachmentCache;
+import de.gematik.kim.kas.service.AttachmentIdFilter;
+import de.gematik.kim.kas.service.QuotaReleaseQueue;
+import de.gematik.kim.kas.utils.RateLimiter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import javax.naming.CommunicationException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
 
+/**
+ * Removes expired attachments and outdated entries. Both phases walk the table in pages of
+ * {@code cleanup-page-size} rows using keyset pagination on the id, so memory stays flat no matter
+ * how much has piled up. Every page is committed on its own: an interrupted run leaves already
+ * processed rows deleted and the next run continues with whatever is left.
+ * <p>
+ * The files of a page are deleted in parallel by {@code cleanup-threads} workers, limited to
+ * {@code cleanup-max-deletes-per-second} deletions so the storage still has room for downloads.
+ */
 @Service
 @Slf4j
 public class DeleteFileJob {
 
   private final EntryRepository entryRepository;
-  private final String storagePath;
+  private final FileController fileController;
   private final long keepIdTime;
-  private final AmClient amClient;
+  private final int pageSize;
+  private final QuotaReleaseQueue quotaReleaseQueue;
+  private final AttachmentCache attachmentCache;
+  private final AttachmentIdFilter attachmentIdFilter;
+  private final ExecutorService deleteExecutor;
+  private final RateLimiter deleteLimiter;
+  private final Counter deletedFiles;
+  private final Counter freedBytes;
+  private final Timer fileCleanupTimer;
+  private volatile double lastRunFilesPerSecond;
+  private volatile long lastRunFreedBytes;
 
   public DeleteFileJob(EntryRepository entryRepository,
-      AmClient amClient,
-      @Value("${gematik.kim.kas.storage-path}") String storagePath,
-      @Value("${gematik.kim.kas.time-to-keep-id}") long keepIdTime) {
+      QuotaReleaseQueue quotaReleaseQueue,
+      AttachmentCache attachmentCache,
+      AttachmentIdFilter attachmentIdFilter,
+      FileController fileController,
+      @Value("${gematik.kim.kas.time-to-keep-id}") long keepIdTime,
+      @Value("${gematik.kim.kas.cleanup-page-size}") int pageSize,
+      @Value("${gematik.kim.kas.cleanup-threads}") int threads,
+      @Value("${gematik.kim.kas.cleanup-max-deletes-per-second}") double maxDeletesPerSecond,
+      MeterRegistry meterRegistry) {
     this.entryRepository = entryRepository;
-    this.amClient = amClient;
-    this.storagePath = storagePath;
+    this.quotaReleaseQueue = quotaReleaseQueue;
+    this.attachmentCache = attachmentCache;
+    this.attachmentIdFilter = attachmentIdFilter;
+    this.fileController = fileController;
     this.keepIdTime = keepIdTime;
+    this.pageSize = pageSize;
+    this.deleteExecutor = Executors.newFixedThreadPool(threads,
+        new CustomizableThreadFactory("kas-cleanup-"));
+    this.deleteLimiter = new RateLimiter(maxDeletesPerSecond);
+    this.deletedFiles = Counter.builder("kas.cleanup.files.deleted").register(meterRegistry);
+    this.freedBytes = Counter.builder("kas.cleanup.bytes.freed").baseUnit("bytes")
+        .register(meterRegistry);
+    this.fileCleanupTimer = Timer.builder("kas.cleanup.files.duration").register(meterRegistry);
+    Gauge.builder("kas.cleanup.last.files.per.second", this, job -> job.lastRunFilesPerSecond)
+        .register(meterRegistry);
+    Gauge.builder("kas.cleanup.last.bytes.freed", this, job -> job.lastRunFreedBytes)
+        .baseUnit("bytes").register(meterRegistry);
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    deleteExecutor.shutdownNow();
   }
 
   @Scheduled(cron = "${gematik.kim.kas.cleantime}")
   public void deleteOldFiles() {
     log.info("Going to delete!");
-    entryRepository.findByDeleteTimeBeforeAndDeletedFalse(LocalDateTime.now())
-        .stream().map(this::deleteFile).distinct().forEach(this::releaseQuota);
-    entryRepository.findByCreatedBefore(LocalDateTime.now().minus(keepIdTime, ChronoUnit.MILLIS))
-        .forEach(this::deleteEntry);
+    LocalDateTime now = LocalDateTime.now();
+    deleteExpiredFiles(now);
+    deleteOutdatedEntries(now.minus(keepIdTime, ChronoUnit.MILLIS));
   }
 
-  private String deleteFile(Entry entry) {
-    log.info("Found {}", entry);
-    try {
-      Files.deleteIfExists(Paths.get(
-          storagePath + File.separator + formatMailToPath(entry.getOwner()) + File.separator
-              + entry.getFileName()));
-      entry.setDeleted(true);
-      entryRepository.save(entry);
-      log.info("Deleted file: {}", entry);
-    } catch (IOException ex) {
-      log.error("Could not delete file: {}", entry);
+  private void deleteExpiredFiles(LocalDateTime deleteTime) {
+    Pageable page = PageRequest.of(0, pageSize);
+    long lastId = 0;
+    long start = System.nanoTime();
+    Progress progress = new Progress();
+    List<Entry> entries;
+    do {
+      if (Thread.currentThread().isInterrupted()) {
+        log.warn("File cleanup interrupted after {} entries (last id {})", progress.processed,
+            lastId);
+        break;
+      }
+      entries = entryRepository.findByIdGreaterThanAndDeleteTimeBeforeAndDeletedFalseOrderByIdAsc(
+          lastId, deleteTime, page);
+      if (entries.isEmpty()) {
+        break;
+      }
+      deleteExpiredEntries(entries, progress);
+      lastId = entries.get(entries.size() - 1).getId();
+      log.info("File cleanup progress: {} entries processed, {} files deleted (last id {})",
+          progress.processed, progress.deleted, lastId);
+    } while (entries.size() == pageSize);
+    recordRun(progress, System.nanoTime() - start);
+    log.info("File cleanup finished: {} entries processed, {} files deleted, {} bytes freed",
+        progress.processed, progress.deleted, progress.bytes);
+  }
+
+  /**
+   * Deletes the files of the given expired entries, marks the entries as deleted, queues the
+   * release of their owners' quota and removes them from the attachment id filter.
+   */
+  public void deleteExpiredEntries(List<Entry> entries) {
+    deleteExpiredEntries(entries, new Progress());
+  }
+
+  private void deleteExpiredEntries(List<Entry> entries, Progress progress) {
+    List<Future<Long>> results = new ArrayList<>(entries.size());
+    for (Entry entry : entries) {
+      results.add(deleteExecutor.submit(() -> deleteFile(entry)));
+    }
+    List<Entry> deletedEntries = new ArrayList<>(entries.size());
+    Set<String> owners = new LinkedHashSet<>();
+    long bytes = 0;
+    for (int i = 0; i < entries.size(); i++) {
+      Entry entry = entries.get(i);
+      try {
+        bytes += results.get(i).get();
+        deletedEntries.add(entry);
+        owners.add(entry.getOwner());
+      } catch (ExecutionException ex) {
+        log.error("Could not delete file: {}", entry.getFileName());
+      } catch (InterruptedException ex) {
+        results.forEach(result -> result.cancel(true));
+        Thread.currentThread().interrupt();
+        break;
+      }
     }
-    return entry.getOwner();
+    if (!deletedEntries.isEmpty()) {
+      markDeleted(deletedEntries, owners);
+    }
+    deletedFiles.increment(deletedEntries.size());
+    freedBytes.increment(bytes);
+    progress.processed += entries.size();
+    progress.deleted += deletedEntries.size();
+    progress.bytes += bytes;
+  }
+
+  /**
+   * Marks the given entries as deleted and removes the file names of the entries marked by this
+   * call from the attachment id filter. An entry that is deleted concurrently, e.g. by the expiry
+   * scheduler, is only removed from the filter by the call that marked it.
+   */
+  private void markDeleted(List<Entry> entries, Set<String> owners) {
+    attachmentIdFilter.removeDeleted(() -> {
+      Map<Long, String> marked = new LinkedHashMap<>();
+      quotaReleaseQueue.enqueue(owners, () -> {
+        marked.clear();
+        for (Entry entry : entries) {
+          if (entryRepository.markDeleted(entry.getId()) > 0) {
+            marked.put(entry.getId(), entry.getFileName());
+          }
+        }
+      });
+      return marked;
+    });
   }
 
-  private void releaseQuota(String owner) {
-    List<Entry> notDeletedEntries = entryRepository.findEntriesByOwnerAndDeletedFalse(owner);
-    try {
-      amClient.releaseQuota(
-          notDeletedEntries.stream()
-              .map(Entry::getSize)
-              .reduce(0l, Long::sum)
-          , owner);
-    } catch (CommunicationException ex) {
-      log.error(ex.getMessage());
+  /**
+   * Deletes the file of the given entry once the rate limit allows it. A file that is not yet in
+   * the configured layout is also deleted at its path in the layout, where the storage migration
+   * may be copying it right now.
+   *
+   * @return number of bytes freed, 0 if the file was already gone or is in a segment
+   */
+  private long deleteFile(Entry entry) throws IOException, InterruptedException {
+    if (entry.getSegment() != null) {
+      // The space in the segment is reclaimed and reported by the segment compaction
+      attachmentCache.invalidate(entry.getFileName());
+      return 0;
     }
+    deleteLimiter.acquire();
+    String path = StorageLayout.locate(entry.getPath(), entry.getOwner(), entry.getFileName());
+    String layoutPath = fileController.relativePath(entry.getOwner(), entry.getFileName());
+    boolean existed = fileController.deleteFile(path);
+    if (!layoutPath.equals(path)) {
+      existed |= fileController.deleteFile(layoutPath);
+    }
+    attachmentCache.invalidate(entry.getFileName());
+    log.debug("Deleted file: {}", entry.getFileName());
+    return existed && entry.getSize() != null ? entry.getSize() : 0;
   }
 
-  private void deleteEntry(Entry entry) {
-    entryRepository.delete(entry);
-    log.info("Deleted entry: {}", entry);
+  private void recordRun(Progress progress, long durationNanos) {
+    fileCleanupTimer.record(durationNanos, TimeUnit.NANOSECONDS);
+    lastRunFilesPerSecond = durationNanos > 0 ? progress.deleted * 1e9 / durationNanos : 0;
+    lastRunFreedBytes = progress.bytes;
+  }
+
+  private void deleteOutdatedEntries(LocalDateTime createdBefore) {
+    Pageable page = PageRequest.of(0, pageSize);
+    long lastId = 0;
+    long deleted = 0;
+    List<Long> ids;
+    do {
+      if (Thread.currentThread().isInterrupted()) {
+        log.warn("Entry cleanup interrupted after {} entries (last id {})", deleted, lastId);
+        return;
+      }
+      ids = entryRepository.findIdsByIdGreaterThanAndCreatedBefore(lastId, createdBefore, page);
+      if (ids.isEmpty()) {
+        break;
+      }
+      deleted += entryRepository.deleteEntriesInBatch(ids);
+      lastId = ids.get(ids.size() - 1);
+      log.info("Entry cleanup progress: {} entries deleted (last id {})", deleted, lastId);
+    } while (ids.size() == pageSize);
+    log.info("Entry cleanup finished: {} entries deleted", deleted);
+  }
+
+  private static class Progress {
+
+    private long processed;
+    private long deleted;
+    private long bytes;
   }
 }
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.service.cron;
+
+import de.gematik.kim.kas.db.Entry;
+import de.gematik.kim.kas.db.EntryExpiry;
+import de.gematik.kim.kas.db.EntryRepository;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Deletes attachments shortly after their delete time instead of waiting for the nightly
+ * {@link DeleteFileJob}. The delete times of all entries expiring within the next
+ * {@code expiry-horizon} milliseconds are kept in memory, ordered by delete time. The index is
+ * built from the database at startup, refilled whenever half of the horizon has passed and fed by
+ * new uploads. Every {@code expiry-interval} milliseconds at most {@code expiry-batch-size} due
+ * entries are deleted, which spreads the deletions evenly over the day.
+ * <p>
+ * The index holds at most {@code expiry-index-capacity} entries. Entries that do not fit are left
+ * to a later refill or to the nightly job, which stays in place as a safety net.
+ */
+@Slf4j
+@Service
+public class ExpiryScheduler {
+
+  private static final LocalDateTime BEGINNING = LocalDateTime.of(1970, 1, 1, 0, 0);
+
+  private final EntryRepository entryRepository;
+  private final DeleteFileJob deleteFileJob;
+  private final boolean enabled;
+  private final int batchSize;
+  private final long horizon;
+  private final int capacity;
+  private final int pageSize;
+  private final Timer expiryLag;
+  private final NavigableSet<Expiry> index = new TreeSet<>();
+  private LocalDateTime loadedUntil;
+  private volatile boolean ready;
+
+  public ExpiryScheduler(EntryRepository entryRepository,
+      DeleteFileJob deleteFileJob,
+      @Value("${gematik.kim.kas.expiry-enabled}") boolean enabled,
+      @Value("${gematik.kim.kas.expiry-batch-size}") int batchSize,
+      @Value("${gematik.kim.kas.expiry-horizon}") long horizon,
+      @Value("${gematik.kim.kas.expiry-index-capacity}") int capacity,
+      @Value("${gematik.kim.kas.cleanup-page-size}") int pageSize,
+      MeterRegistry meterRegistry) {
+    this.entryRepository = entryRepository;
+    this.deleteFileJob = deleteFileJob;
+    this.enabled = enabled;
+    this.batchSize = batchSize;
+    this.horizon = horizon;
+    this.capacity = capacity;
+    this.pageSize = pageSize;
+    this.expiryLag = Timer.builder("kas.expiry.lag").register(meterRegistry);
+    Gauge.builder("kas.expiry.index.size", this, ExpiryScheduler::size).register(meterRegistry);
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void rebuildIndex() {
+    if (!enabled) {
+      return;
+    }
+    LocalDateTime until = LocalDateTime.now().plus(horizon, ChronoUnit.MILLIS);
+    synchronized (this) {
+      index.clear();
+      loadedUntil = until;
+    }
+    load(BEGINNING, until);
+    ready = true;
+    log.info("Expiry index rebuilt with {} entries", size());
+  }
+
+  /**
+   * Registers a new entry. Entries expiring after the loaded horizon are picked up by a later
+   * refill.
+   */
+  public void schedule(Long id, LocalDateTime deleteTime) {
+    if (enabled && id != null && deleteTime != null) {
+      add(new Expiry(deleteTime, id));
+    }
+  }
+
+  @Scheduled(fixedDelayString = "${gematik.kim.kas.expiry-interval}")
+  public void expireDueEntries() {
+    if (!ready) {
+      return;
+    }
+    LocalDateTime now = LocalDateTime.now();
+    refillIfNeeded(now);
+    List<Expiry> due = pollDue(now);
+    if (due.isEmpty()) {
+      return;
+    }
+    List<Entry> entries = entryRepository.findAllById(
+            due.stream().map(expiry -> expiry.id).collect(Collectors.toList()))
+        .stream()
+        .filter(entry -> !entry.isDeleted() && !entry.getDeleteTime().isAfter(now))
+        .collect(Collectors.toList());
+    if (!entries.isEmpty()) {
+      deleteFileJob.deleteExpiredEntries(entries);
+    }
+    due.forEach(expiry -> expiryLag.record(Duration.between(expiry.deleteTime, now)));
+    log.debug("Expired {} entries", entries.size());
+  }
+
+  synchronized int size() {
+    return index.size();
+  }
+
+  private synchronized void add(Expiry expiry) {
+    if (loadedUntil == null || !expiry.deleteTime.isBefore(loadedUntil)) {
+      return;
+    }
+    index.add(expiry);
+    if (index.size() > capacity) {
+      loadedUntil = index.pollLast().deleteTime;
+    }
+  }
+
+  private synchronized List<Expiry> pollDue(LocalDateTime now) {
+    List<Expiry> due = new ArrayList<>(batchSize);
+    while (due.size() < batchSize && !index.isEmpty()
+        && !index.first().deleteTime.isAfter(now)) {
+      due.add(index.pollFirst());
+    }
+    return due;
+  }
+
+  private void refillIfNeeded(LocalDateTime now) {
+    LocalDateTime from;
+    LocalDateTime until = now.plus(horizon, ChronoUnit.MILLIS);
+    synchronized (this) {
+      if (loadedUntil.isAfter(now.plus(horizon / 2, ChronoUnit.MILLIS))
+          || index.size() >= capacity / 2) {
+        return;
+      }
+      from = loadedUntil;
+      loadedUntil = until;
+    }
+    load(from, until);
+  }
+
+  private void load(LocalDateTime from, LocalDateTime until) {
+    Pageable page = PageRequest.of(0, pageSize);
+    long lastId = 0;
+    List<EntryExpiry> expiries;
+    do {
+      expiries = entryRepository.findExpiries(lastId, from, until, page);
+      for (EntryExpiry expiry : expiries) {
+        add(new Expiry(expiry.getDeleteTime(), expiry.getId()));
+        lastId = expiry.getId();
+      }
+    } while (expiries.size() == pageSize);
+  }
+
+  private static final class Expiry implements Comparable<Expiry> {
+
+    private final LocalDateTime deleteTime;
+    private final long id;
+
+    private Expiry(LocalDateTime deleteTime, long id) {
+      this.deleteTime = deleteTime;
+      this.id = id;
+    }
+
+    @Override
+    public int compareTo(Expiry other) {
+      int result = deleteTime.compareTo(other.deleteTime);
+      return result != 0 ? result : Long.compare(id, other.id);
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.service.cron;
+
+import de.gematik.kim.kas.controller.SegmentLocation;
+import de.gematik.kim.kas.controller.SegmentStore;
+import de.gematik.kim.kas.db.EntryRepository;
+import de.gematik.kim.kas.db.SegmentEntry;
+import de.gematik.kim.kas.db.SegmentUsage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Reclaims the space of deleted attachments in segment files. Every
+ * {@code segment-compaction-interval} milliseconds, the live entries of each segment whose share
+ * of live bytes fell below {@code segment-compaction-threshold} are copied to the active segment.
+ * A segment without live entries is deleted one run after it was found empty, so downloads that
+ * looked up the old location just before can still read it.
+ */
+@Slf4j
+@Service
+public class SegmentCompactor {
+
+  private final EntryRepository entryRepository;
+  private final SegmentStore segmentStore;
+  private final double threshold;
+  private final int pageSize;
+  private final Counter compactedBytes;
+  private final Counter reclaimedBytes;
+  private Set<Long> emptySegments = Set.of();
+  private volatile int segmentCount;
+  private volatile long segmentBytes;
+
+  public SegmentCompactor(EntryRepository entryRepository,
+      SegmentStore segmentStore,
+      @Value("${gematik.kim.kas.segment-compaction-threshold}") double threshold,
+      @Value("${gematik.kim.kas.cleanup-page-size}") int pageSize,
+      MeterRegistry meterRegistry) {
+    this.entryRepository = entryRepository;
+    this.segmentStore = segmentStore;
+    this.threshold = threshold;
+    this.pageSize = pageSize;
+    this.compactedBytes = Counter.builder("kas.segments.compacted.bytes").baseUnit("bytes")
+        .register(meterRegistry);
+    this.reclaimedBytes = Counter.builder("kas.segments.reclaimed.bytes").baseUnit("bytes")
+        .register(meterRegistry);
+    Gauge.builder("kas.segments.count", this, compactor -> compactor.segmentCount)
+        .register(meterRegistry);
+    Gauge.builder("kas.segments.size.bytes", this, compactor -> compactor.segmentBytes)
+        .baseUnit("bytes").register(meterRegistry);
+  }
+
+  @Scheduled(fixedDelayString = "${gematik.kim.kas.segment-compaction-interval}")
+  public void compact() {
+    try {
+      List<Long> segments = segmentStore.listSegments();
+      if (segments.isEmpty()) {
+        return;
+      }
+      Map<Long, Long> liveBytes = entryRepository.sumSizeBySegment().stream()
+          .collect(Collectors.toMap(SegmentUsage::getSegment, SegmentUsage::getLiveBytes));
+      long activeId = segmentStore.getActiveId();
+      Set<Long> empty = new HashSet<>();
+      long bytes = 0;
+      for (long segment : segments) {
+        long size = segmentStore.size(segment);
+        bytes += size;
+        if (segment == activeId) {
+          continue;
+        }
+        long live = liveBytes.getOrDefault(segment, 0L);
+        if (live == 0 && emptySegments.contains(segment)) {
+          if (segmentStore.delete(segment)) {
+            reclaimedBytes.increment(size);
+            bytes -= size;
+            log.info("Deleted empty segment {} ({} bytes)", segment, size);
+          }
+        } else if (live == 0) {
+          empty.add(segment);
+        } else if (live < size * threshold) {
+          compact(segment);
+          empty.add(segment);
+        }
+      }
+      emptySegments = empty;
+      segmentCount = segments.size();
+      segmentBytes = bytes;
+    } catch (IOException ex) {
+      log.error("Segment compaction failed: {}", ex.getMessage());
+    }
+  }
+
+  /**
+   * Copies the live entries of a segment to the active segment. Entries deleted or moved in the
+   * meantime are left behind.
+   */
+  private void compact(long segment) throws IOException {
+    Pageable page = PageRequest.of(0, pageSize);
+    long lastId = 0;
+    long copied = 0;
+    List<SegmentEntry> entries;
+    do {
+      entries = entryRepository.findSegmentEntries(segment, lastId, page);
+      for (SegmentEntry entry : entries) {
+        SegmentLocation location = segmentStore.copy(segment, entry.getSegmentOffset(),
+            entry.getSize());
+        if (entryRepository.moveToSegment(entry.getId(), segment, location.getSegment(),
+            location.getOffset()) == 1) {
+          copied += entry.getSize();
+        }
+        lastId = entry.getId();
+      }
+    } while (entries.size() == pageSize);
+    compactedBytes.increment(copied);
+    log.info("Compacted segment {}: {} bytes copied", segment, copied);
+  }
+}
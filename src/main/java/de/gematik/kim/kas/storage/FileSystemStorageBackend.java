@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.storage;
+
+import de.gematik.kim.kas.utils.FileRegionResource;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.OptionalLong;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+
+/**
+ * Stores attachments as files below the storage path. Objects are moved into place atomically,
+ * so a file appears at once and complete.
+ */
+public class FileSystemStorageBackend implements StorageBackend {
+
+  private final String storagePath;
+
+  public FileSystemStorageBackend(String storagePath) {
+    this.storagePath = storagePath;
+  }
+
+  @Override
+  public void put(String key, Path source) throws IOException {
+    Path target = path(key);
+    Files.createDirectories(target.getParent());
+    Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  @Override
+  public Resource get(String key) throws IOException {
+    return new FileSystemResource(existingFile(key));
+  }
+
+  @Override
+  public InputStream getRange(String key, long offset, long length) throws IOException {
+    return new FileRegionResource(existingFile(key), offset, length).getInputStream();
+  }
+
+  @Override
+  public boolean delete(String key) throws IOException {
+    return Files.deleteIfExists(path(key));
+  }
+
+  @Override
+  public OptionalLong stat(String key) throws IOException {
+    Path path = path(key);
+    return Files.exists(path) ? OptionalLong.of(Files.size(path)) : OptionalLong.empty();
+  }
+
+  /**
+   * Links the file to the new path if the file system allows it and copies it otherwise.
+   */
+  @Override
+  public void copy(String from, String to) throws IOException {
+    Path source = path(from);
+    Path target = path(to);
+    Files.createDirectories(target.getParent());
+    try {
+      Files.createLink(target, source);
+    } catch (UnsupportedOperationException | FileSystemException ex) {
+      if (Files.notExists(source)) {
+        throw ex;
+      }
+      Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  @Override
+  public void check() throws IOException {
+    File directory = new File(storagePath);
+    directory.mkdirs();
+    if (!directory.canWrite()) {
+      throw new IOException("Can not save file caused by permission denied! "
+          + directory.getAbsolutePath());
+    }
+  }
+
+  private File existingFile(String key) throws FileNotFoundException {
+    File file = path(key).toFile();
+    if (!file.exists()) {
+      throw new FileNotFoundException("The requested file does not exist.");
+    }
+    return file;
+  }
+
+  private Path path(String key) {
+    return Paths.get(storagePath, key);
+  }
+}
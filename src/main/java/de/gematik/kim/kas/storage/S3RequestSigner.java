@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.storage;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Signs requests to an S3-compatible object store with AWS Signature Version 4.
+ */
+class S3RequestSigner {
+
+  static final String EMPTY_SHA256 = sha256Hex(new byte[0]);
+
+  private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+  private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter
+      .ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
+  private final String region;
+  private final String accessKey;
+  private final String secretKey;
+
+  S3RequestSigner(String region, String accessKey, String secretKey) {
+    this.region = region;
+    this.accessKey = accessKey;
+    this.secretKey = secretKey;
+  }
+
+  /**
+   * Adds the {@code x-amz-date} and {@code authorization} headers. The host header is signed with
+   * the authority of the uri.
+   *
+   * @param headers lower case names and values of the headers to sign, including
+   *                {@code x-amz-content-sha256}
+   */
+  void sign(String method, URI uri, SortedMap<String, String> headers, Instant time) {
+    String timestamp = TIMESTAMP.format(time);
+    String date = timestamp.substring(0, 8);
+    headers.put("x-amz-date", timestamp);
+    SortedMap<String, String> signed = new TreeMap<>(headers);
+    signed.put("host", uri.getPort() == -1 ? uri.getHost() : uri.getHost() + ":" + uri.getPort());
+
+    StringBuilder canonicalHeaders = new StringBuilder();
+    signed.forEach((name, value) -> canonicalHeaders.append(name).append(':')
+        .append(value.trim()).append('\n'));
+    String signedHeaders = String.join(";", signed.keySet());
+    String canonicalRequest = method + "\n"
+        + (uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath()) + "\n"
+        + canonicalQuery(uri.getRawQuery()) + "\n"
+        + canonicalHeaders + "\n"
+        + signedHeaders + "\n"
+        + headers.get("x-amz-content-sha256");
+    String scope = date + "/" + region + "/s3/aws4_request";
+    String stringToSign = ALGORITHM + "\n" + timestamp + "\n" + scope + "\n"
+        + sha256Hex(canonicalRequest.getBytes(StandardCharsets.UTF_8));
+
+    byte[] key = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+    key = hmac(key, region);
+    key = hmac(key, "s3");
+    key = hmac(key, "aws4_request");
+    headers.put("authorization", ALGORITHM + " Credential=" + accessKey + "/" + scope
+        + ", SignedHeaders=" + signedHeaders + ", Signature=" + hex(hmac(key, stringToSign)));
+  }
+
+  /**
+   * Encodes a key or query value as S3 expects it: everything but unreserved characters is
+   * percent-encoded, "/" only if it is not a path separator.
+   */
+  static String encode(String value, boolean path) {
+    StringBuilder encoded = new StringBuilder();
+    for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+      char c = (char) (b & 0xFF);
+      if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+          || c == '-' || c == '_' || c == '.' || c == '~' || (path && c == '/')) {
+        encoded.append(c);
+      } else {
+        encoded.append('%').append(String.format("%02X", b & 0xFF));
+      }
+    }
+    return encoded.toString();
+  }
+
+  static String sha256Hex(byte[] data) {
+    try {
+      return hex(MessageDigest.getInstance("SHA-256").digest(data));
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException("SHA-256 is not available", ex);
+    }
+  }
+
+  /**
+   * The query parameters sorted by name, each with a value. The parameters are already encoded.
+   */
+  private static String canonicalQuery(String query) {
+    if (query == null || query.isEmpty()) {
+      return "";
+    }
+    List<String> parameters = new ArrayList<>();
+    for (String parameter : query.split("&")) {
+      parameters.add(parameter.contains("=") ? parameter : parameter + "=");
+    }
+    Collections.sort(parameters);
+    return String.join("&", parameters);
+  }
+
+  private static byte[] hmac(byte[] key, String data) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(key, "HmacSHA256"));
+      return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException | InvalidKeyException ex) {
+      throw new IllegalStateException("HmacSHA256 is not available", ex);
+    }
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(String.format("%02x", b & 0xFF));
+    }
+    return hex.toString();
+  }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.storage;
+
+import de.gematik.kim.kas.utils.FileRegionResource;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.OptionalLong;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.springframework.core.io.Resource;
+
+/**
+ * Stores attachments as objects in a bucket of an S3-compatible object store, addressed in path
+ * style ({@code endpoint/bucket/key}). Files larger than {@code s3-part-size} bytes are uploaded
+ * in parts with a multipart upload, and ranges are read with ranged GETs, so neither an upload
+ * nor a download is buffered as a whole.
+ */
+@Slf4j
+public class S3StorageBackend implements StorageBackend, Closeable {
+
+  private static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+  private static final Pattern UPLOAD_ID = Pattern.compile("<UploadId>([^<]+)</UploadId>");
+
+  private final CloseableHttpClient httpClient;
+  private final String endpoint;
+  private final String bucket;
+  private final long partSize;
+  private final S3RequestSigner signer;
+
+  public S3StorageBackend(CloseableHttpClient httpClient, String endpoint, String region,
+      String bucket, String accessKey, String secretKey, long partSize) {
+    this.httpClient = httpClient;
+    this.endpoint = endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1)
+        : endpoint;
+    this.bucket = bucket;
+    this.partSize = partSize;
+    this.signer = new S3RequestSigner(region, accessKey, secretKey);
+  }
+
+  @Override
+  public void put(String key, Path source) throws IOException {
+    long size = Files.size(source);
+    if (size > partSize) {
+      putMultipart(key, source, size);
+      return;
+    }
+    HttpPut put = new HttpPut(uri(key, null));
+    put.setEntity(new FileEntity(source.toFile()));
+    try (CloseableHttpResponse response = execute(put, UNSIGNED_PAYLOAD)) {
+      expect(response, "Upload", key, 200);
+    }
+  }
+
+  @Override
+  public Resource get(String key) throws IOException {
+    OptionalLong size = stat(key);
+    if (size.isEmpty()) {
+      throw new FileNotFoundException("The requested file does not exist.");
+    }
+    return new StorageObjectResource(this, key, size.getAsLong());
+  }
+
+  @Override
+  public InputStream getRange(String key, long offset, long length) throws IOException {
+    if (length == 0) {
+      return InputStream.nullInputStream();
+    }
+    HttpGet get = new HttpGet(uri(key, null));
+    get.setHeader("Range", "bytes=" + offset + "-" + (offset + length - 1));
+    CloseableHttpResponse response = execute(get, S3RequestSigner.EMPTY_SHA256);
+    int status = response.getStatusLine().getStatusCode();
+    if (status != 206 && !(status == 200 && offset == 0)) {
+      try (response) {
+        throw error("Download", key, response);
+      }
+    }
+    // Closing the response instead of the content does not read the rest of the body
+    return new FilterInputStream(response.getEntity().getContent()) {
+      @Override
+      public void close() throws IOException {
+        response.close();
+      }
+    };
+  }
+
+  @Override
+  public boolean delete(String key) throws IOException {
+    // S3 answers a delete the same way whether the object existed or not
+    boolean existed = stat(key).isPresent();
+    try (CloseableHttpResponse response = execute(new HttpDelete(uri(key, null)),
+        S3RequestSigner.EMPTY_SHA256)) {
+      expect(response, "Delete", key, 204, 200);
+    }
+    return existed;
+  }
+
+  @Override
+  public OptionalLong stat(String key) throws IOException {
+    try (CloseableHttpResponse response = execute(new HttpHead(uri(key, null)),
+        S3RequestSigner.EMPTY_SHA256)) {
+      int status = response.getStatusLine().getStatusCode();
+      if (status == 404) {
+        return OptionalLong.empty();
+      }
+      expect(response, "Stat", key, 200);
+      Header length = response.getFirstHeader("Content-Length");
+      if (length == null) {
+        throw new IOException("Stat of " + key + " returned no Content-Length");
+      }
+      return OptionalLong.of(Long.parseLong(length.getValue()));
+    }
+  }
+
+  /**
+   * Copies the object within the bucket, without downloading it.
+   */
+  @Override
+  public void copy(String from, String to) throws IOException {
+    HttpPut put = new HttpPut(uri(to, null));
+    put.setHeader("x-amz-copy-source", "/" + bucket + "/" + S3RequestSigner.encode(from, true));
+    try (CloseableHttpResponse response = execute(put, S3RequestSigner.EMPTY_SHA256)) {
+      // A copy can fail after the status was sent, which is reported in the body
+      String body = expect(response, "Copy", from, 200);
+      if (body.contains("<Error>")) {
+        throw new IOException("Copy of " + from + " failed: " + body);
+      }
+    }
+  }
+
+  @Override
+  public void check() throws IOException {
+    try (CloseableHttpResponse response = execute(new HttpHead(bucketUri()),
+        S3RequestSigner.EMPTY_SHA256)) {
+      expect(response, "Access", "bucket " + bucket, 200);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    httpClient.close();
+  }
+
+  private void putMultipart(String key, Path source, long size) throws IOException {
+    String uploadId = createMultipartUpload(key);
+    try {
+      List<String> etags = new ArrayList<>();
+      for (long offset = 0; offset < size; offset += partSize) {
+        etags.add(uploadPart(key, uploadId, etags.size() + 1,
+            new FileRegionResource(source.toFile(), offset, Math.min(partSize, size - offset))));
+      }
+      completeMultipartUpload(key, uploadId, etags);
+      log.debug("Uploaded {} in {} parts", key, etags.size());
+    } catch (IOException | RuntimeException ex) {
+      abortMultipartUpload(key, uploadId);
+      throw ex;
+    }
+  }
+
+  private String createMultipartUpload(String key) throws IOException {
+    try (CloseableHttpResponse response = execute(new HttpPost(uri(key, "uploads")),
+        S3RequestSigner.EMPTY_SHA256)) {
+      String body = expect(response, "Upload", key, 200);
+      Matcher uploadId = UPLOAD_ID.matcher(body);
+      if (!uploadId.find()) {
+        throw new IOException("Upload of " + key + " returned no upload id");
+      }
+      return uploadId.group(1);
+    }
+  }
+
+  private String uploadPart(String key, String uploadId, int partNumber, Resource part)
+      throws IOException {
+    HttpPut put = new HttpPut(uri(key, "partNumber=" + partNumber + "&uploadId="
+        + S3RequestSigner.encode(uploadId, false)));
+    try (InputStream data = part.getInputStream()) {
+      put.setEntity(new InputStreamEntity(data, part.contentLength()));
+      try (CloseableHttpResponse response = execute(put, UNSIGNED_PAYLOAD)) {
+        expect(response, "Upload of part " + partNumber, key, 200);
+        Header etag = response.getFirstHeader("ETag");
+        if (etag == null) {
+          throw new IOException("Upload of part " + partNumber + " of " + key
+              + " returned no ETag");
+        }
+        return etag.getValue();
+      }
+    }
+  }
+
+  private void completeMultipartUpload(String key, String uploadId, List<String> etags)
+      throws IOException {
+    StringBuilder parts = new StringBuilder("<CompleteMultipartUpload>");
+    for (int i = 0; i < etags.size(); i++) {
+      parts.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>")
+          .append(etags.get(i)).append("</ETag></Part>");
+    }
+    byte[] body = parts.append("</CompleteMultipartUpload>").toString()
+        .getBytes(StandardCharsets.UTF_8);
+    HttpPost post = new HttpPost(uri(key, "uploadId=" + S3RequestSigner.encode(uploadId, false)));
+    post.setEntity(new ByteArrayEntity(body));
+    try (CloseableHttpResponse response = execute(post, S3RequestSigner.sha256Hex(body))) {
+      // Like a copy, completing an upload can fail after the status was sent
+      String result = expect(response, "Upload", key, 200);
+      if (result.contains("<Error>")) {
+        throw new IOException("Upload of " + key + " failed: " + result);
+      }
+    }
+  }
+
+  private void abortMultipartUpload(String key, String uploadId) {
+    try (CloseableHttpResponse response = execute(new HttpDelete(uri(key,
+        "uploadId=" + S3RequestSigner.encode(uploadId, false))), S3RequestSigner.EMPTY_SHA256)) {
+      expect(response, "Abort of upload", key, 204, 200);
+    } catch (IOException ex) {
+      log.warn("Could not abort upload {} of {}: {}", uploadId, key, ex.getMessage());
+    }
+  }
+
+  private CloseableHttpResponse execute(HttpRequestBase request, String payloadHash)
+      throws IOException {
+    SortedMap<String, String> headers = new TreeMap<>();
+    for (Header header : request.getAllHeaders()) {
+      String name = header.getName().toLowerCase(Locale.ROOT);
+      if (name.startsWith("x-amz-") || name.equals("range")) {
+        headers.put(name, header.getValue());
+      }
+    }
+    headers.put("x-amz-content-sha256", payloadHash);
+    signer.sign(request.getMethod(), request.getURI(), headers, Instant.now());
+    headers.forEach(request::setHeader);
+    return httpClient.execute(request);
+  }
+
+  /**
+   * Reads the body of a response and checks its status.
+   *
+   * @return the body, empty if there is none
+   */
+  private static String expect(HttpResponse response, String operation, String key,
+      int... statuses) throws IOException {
+    int status = response.getStatusLine().getStatusCode();
+    for (int expected : statuses) {
+      if (status == expected) {
+        return response.getEntity() == null ? ""
+            : EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+      }
+    }
+    throw error(operation, key, response);
+  }
+
+  private static IOException error(String operation, String key, HttpResponse response)
+      throws IOException {
+    int status = response.getStatusLine().getStatusCode();
+    EntityUtils.consume(response.getEntity());
+    if (status == 404) {
+      return new FileNotFoundException("The requested file does not exist.");
+    }
+    return new IOException(operation + " of " + key + " failed with status " + status);
+  }
+
+  private URI uri(String key, String query) {
+    return URI.create(bucketUri() + "/" + S3RequestSigner.encode(key, true)
+        + (query != null ? "?" + query : ""));
+  }
+
+  private URI bucketUri() {
+    return URI.create(endpoint + "/" + S3RequestSigner.encode(bucket, false));
+  }
+}
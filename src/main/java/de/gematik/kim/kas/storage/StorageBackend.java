@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.storage;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.OptionalLong;
+import org.springframework.core.io.Resource;
+
+/**
+ * Where attachments are stored. Objects are addressed by keys that use "/" as separator, the
+ * paths of the {@link de.gematik.kim.kas.controller.StorageLayout}. Content is always streamed,
+ * so the heap usage does not depend on the size of an attachment.
+ */
+public interface StorageBackend {
+
+  /**
+   * Stores the content of a local file under the key, replacing an existing object. The file can
+   * be moved by the backend, the caller removes it if it is still there afterwards.
+   */
+  void put(String key, Path source) throws IOException;
+
+  /**
+   * The whole object.
+   *
+   * @throws FileNotFoundException if there is no object with the key
+   */
+  Resource get(String key) throws IOException;
+
+  /**
+   * Streams a part of the object.
+   *
+   * @throws FileNotFoundException if there is no object with the key
+   */
+  InputStream getRange(String key, long offset, long length) throws IOException;
+
+  /**
+   * Deletes the object.
+   *
+   * @return true if the object existed
+   */
+  boolean delete(String key) throws IOException;
+
+  /**
+   * Size of the object, empty if there is no object with the key.
+   */
+  OptionalLong stat(String key) throws IOException;
+
+  /**
+   * Makes an object also available under another key. The object stays under its old key until
+   * it is deleted there.
+   */
+  void copy(String from, String to) throws IOException;
+
+  /**
+   * Checks that objects can be stored, called once at startup.
+   */
+  void check() throws IOException;
+}
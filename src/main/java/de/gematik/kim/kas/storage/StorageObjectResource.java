@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import org.springframework.core.io.AbstractResource;
+
+/**
+ * {@link org.springframework.core.io.Resource} over an object of a remote
+ * {@link StorageBackend}. A stream only requests the object on its first read, and skipping
+ * before that moves the start of the request, so reading a byte range fetches the object from
+ * that range on instead of from its start. A resource limited with {@link #upTo(long)} also ends
+ * the request at the end of the range.
+ */
+public class StorageObjectResource extends AbstractResource {
+
+  private final StorageBackend backend;
+  private final String key;
+  private final long size;
+  private final long end;
+
+  public StorageObjectResource(StorageBackend backend, String key, long size) {
+    this(backend, key, size, size);
+  }
+
+  private StorageObjectResource(StorageBackend backend, String key, long size, long end) {
+    this.backend = backend;
+    this.key = key;
+    this.size = size;
+    this.end = end;
+  }
+
+  /**
+   * The same object, but its streams end before the given position. The content length stays
+   * the size of the whole object.
+   */
+  public StorageObjectResource upTo(long end) {
+    return new StorageObjectResource(backend, key, size, Math.min(end, size));
+  }
+
+  @Override
+  public boolean exists() {
+    try {
+      return backend.stat(key).isPresent();
+    } catch (IOException ex) {
+      return false;
+    }
+  }
+
+  @Override
+  public long contentLength() {
+    return size;
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    return new RangeInputStream();
+  }
+
+  @Override
+  public String getDescription() {
+    return "Stored object [" + key + "]";
+  }
+
+  private class RangeInputStream extends InputStream {
+
+    private long position;
+    private InputStream in;
+
+    @Override
+    public int read() throws IOException {
+      byte[] single = new byte[1];
+      return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+      if (position >= end) {
+        return -1;
+      }
+      if (in == null) {
+        in = backend.getRange(key, position, end - position);
+      }
+      int read = in.read(bytes, offset, (int) Math.min(length, end - position));
+      if (read > 0) {
+        position += read;
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+      long skipped = Math.max(0, Math.min(count, end - position));
+      if (in != null) {
+        skipped = in.skip(skipped);
+      }
+      position += skipped;
+      return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (in != null) {
+        in.close();
+      }
+    }
+  }
+}
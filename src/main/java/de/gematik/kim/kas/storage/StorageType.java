@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.storage;
+
+/**
+ * Selects the {@link StorageBackend} with the property {@code storage-backend}.
+ */
+public enum StorageType {
+
+  /**
+   * Attachments are files below the storage path.
+   */
+  FILESYSTEM,
+
+  /**
+   * Attachments are objects in a bucket of an S3-compatible object store.
+   */
+  S3
+}
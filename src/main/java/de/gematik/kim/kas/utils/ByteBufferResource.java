@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.utils;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import org.springframework.core.io.AbstractResource;
+
+/**
+ * Read-only {@link org.springframework.core.io.Resource} over a byte buffer. Every input stream
+ * reads its own view of the buffer, so the resource can be served to several requests and ranges
+ * at once.
+ */
+public class ByteBufferResource extends AbstractResource {
+
+  private final ByteBuffer buffer;
+  private final String description;
+
+  public ByteBufferResource(ByteBuffer buffer, String description) {
+    this.buffer = buffer.asReadOnlyBuffer();
+    this.description = description;
+  }
+
+  @Override
+  public boolean exists() {
+    return true;
+  }
+
+  @Override
+  public long contentLength() {
+    return buffer.remaining();
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    return new ByteBufferInputStream(buffer.duplicate());
+  }
+
+  @Override
+  public String getDescription() {
+    return "Byte buffer [" + description + "]";
+  }
+
+  private static class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (length == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int count = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, count);
+      return count;
+    }
+
+    @Override
+    public long skip(long count) {
+      int skipped = (int) Math.max(0, Math.min(count, buffer.remaining()));
+      buffer.position(buffer.position() + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
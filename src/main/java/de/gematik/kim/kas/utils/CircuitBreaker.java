@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.utils;
+
+/**
+ * Circuit breaker counting consecutive failures. After {@code failureThreshold} failures in a row
+ * the circuit opens and rejects calls for {@code openMillis} milliseconds. Afterwards a single
+ * trial call is let through: its success closes the circuit again, its failure reopens it.
+ * <p>
+ * Every call permitted by {@link #tryAcquire(long)} has to be reported with either
+ * {@link #onSuccess()} or {@link #onFailure(long)}.
+ */
+public class CircuitBreaker {
+
+  public enum State {
+    CLOSED, HALF_OPEN, OPEN
+  }
+
+  private final int failureThreshold;
+  private final long openMillis;
+  private State state = State.CLOSED;
+  private int failures;
+  private long openedAt;
+  private boolean trialRunning;
+
+  public CircuitBreaker(int failureThreshold, long openMillis) {
+    this.failureThreshold = Math.max(1, failureThreshold);
+    this.openMillis = openMillis;
+  }
+
+  public synchronized boolean tryAcquire(long now) {
+    switch (state) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (now - openedAt < openMillis) {
+          return false;
+        }
+        state = State.HALF_OPEN;
+        trialRunning = true;
+        return true;
+      default:
+        if (trialRunning) {
+          return false;
+        }
+        trialRunning = true;
+        return true;
+    }
+  }
+
+  public synchronized void onSuccess() {
+    state = State.CLOSED;
+    failures = 0;
+    trialRunning = false;
+  }
+
+  public synchronized void onFailure(long now) {
+    trialRunning = false;
+    if (state == State.HALF_OPEN || ++failures >= failureThreshold) {
+      state = State.OPEN;
+      openedAt = now;
+      failures = 0;
+    }
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * @return milliseconds until the next trial call will be permitted, 0 if calls are permitted
+   */
+  public synchronized long retryAfterMillis(long now) {
+    if (state == State.OPEN) {
+      return Math.max(0, openedAt + openMillis - now);
+    }
+    return 0;
+  }
+}
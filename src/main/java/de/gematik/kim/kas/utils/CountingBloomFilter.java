@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter with 4 bit counters instead of bits, so elements can be removed again. Answers
+ * whether an element might have been added: "no" is always right, "yes" is wrong with the
+ * configured probability as long as no more than the expected number of elements are contained.
+ * <p>
+ * A counter that reaches 15 stays there, so the filter can only err towards false positives.
+ * Adding, removing and lookups are lock free.
+ */
+public class CountingBloomFilter {
+
+  private static final int COUNTER_BITS = 4;
+  private static final int COUNTERS_PER_WORD = Long.SIZE / COUNTER_BITS;
+  private static final long MAX_COUNT = (1L << COUNTER_BITS) - 1;
+
+  private final AtomicLongArray words;
+  private final long counters;
+  private final int hashes;
+
+  public CountingBloomFilter(long expectedElements, double falsePositiveRate) {
+    long n = Math.max(1, expectedElements);
+    double p = Math.min(Math.max(falsePositiveRate, 1e-9), 0.5);
+    long optimalCounters = (long) Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+    int wordCount = (int) Math.min(Integer.MAX_VALUE - 8,
+        (optimalCounters + COUNTERS_PER_WORD - 1) / COUNTERS_PER_WORD);
+    this.words = new AtomicLongArray(wordCount);
+    this.counters = (long) wordCount * COUNTERS_PER_WORD;
+    this.hashes = Math.max(1, (int) Math.round((double) counters / n * Math.log(2)));
+  }
+
+  public void add(String element) {
+    long hash1 = hash(element);
+    long hash2 = mix(hash1 ^ 0x9E3779B97F4A7C15L);
+    for (int i = 0; i < hashes; i++) {
+      update(index(hash1, hash2, i), 1);
+    }
+  }
+
+  /**
+   * Removes an element that was added before. Removing an element that was never added can make
+   * other elements disappear.
+   */
+  public void remove(String element) {
+    long hash1 = hash(element);
+    long hash2 = mix(hash1 ^ 0x9E3779B97F4A7C15L);
+    for (int i = 0; i < hashes; i++) {
+      update(index(hash1, hash2, i), -1);
+    }
+  }
+
+  public boolean mightContain(String element) {
+    long hash1 = hash(element);
+    long hash2 = mix(hash1 ^ 0x9E3779B97F4A7C15L);
+    for (int i = 0; i < hashes; i++) {
+      long index = index(hash1, hash2, i);
+      if (count(words.get((int) (index / COUNTERS_PER_WORD)), index) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Probability that an element that was never added is reported as contained, estimated from the
+   * given number of contained elements.
+   */
+  public double expectedFalsePositiveRate(long elements) {
+    return Math.pow(1 - Math.exp(-(double) hashes * elements / counters), hashes);
+  }
+
+  private void update(long index, int delta) {
+    int word = (int) (index / COUNTERS_PER_WORD);
+    long shift = (index % COUNTERS_PER_WORD) * COUNTER_BITS;
+    long previous;
+    long next;
+    do {
+      previous = words.get(word);
+      long count = count(previous, index);
+      if (count == MAX_COUNT || (delta < 0 && count == 0)) {
+        return;
+      }
+      next = previous + ((long) delta << shift);
+    } while (!words.compareAndSet(word, previous, next));
+  }
+
+  private static long count(long word, long index) {
+    return (word >>> ((index % COUNTERS_PER_WORD) * COUNTER_BITS)) & MAX_COUNT;
+  }
+
+  private long index(long hash1, long hash2, int i) {
+    return Math.floorMod(hash1 + i * hash2, counters);
+  }
+
+  private static long hash(String element) {
+    long hash = 0xCBF29CE484222325L;
+    for (int i = 0; i < element.length(); i++) {
+      hash = (hash ^ element.charAt(i)) * 0x100000001B3L;
+    }
+    return mix(hash);
+  }
+
+  private static long mix(long hash) {
+    hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+    hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+    return hash ^ (hash >>> 33);
+  }
+}
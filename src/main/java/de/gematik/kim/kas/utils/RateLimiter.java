@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spaces out permits evenly to stay below a given rate. Unused permits are not saved up, so a
+ * limiter that was idle for a while does not allow a burst afterwards. A rate of zero or less
+ * disables the limit.
+ */
+public class RateLimiter {
+
+  private final long intervalNanos;
+  private long nextFree;
+
+  public RateLimiter(double permitsPerSecond) {
+    this.intervalNanos =
+        permitsPerSecond > 0 ? Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond))
+            : 0;
+    this.nextFree = System.nanoTime();
+  }
+
+  /**
+   * Blocks until the next permit is available.
+   */
+  public void acquire() throws InterruptedException {
+    if (intervalNanos == 0) {
+      return;
+    }
+    long wait;
+    synchronized (this) {
+      long now = System.nanoTime();
+      long slot = Math.max(nextFree, now);
+      nextFree = slot + intervalNanos;
+      wait = slot - now;
+    }
+    if (wait > 0) {
+      TimeUnit.NANOSECONDS.sleep(wait);
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel for items with a deadline. Scheduling and expiring an item costs O(1), so
+ * the cost of {@link #advance(long, Consumer)} only depends on the number of due items and not on
+ * the number of scheduled items. Deadlines further away than one revolution are handed out after
+ * one revolution and have to be scheduled again.
+ *
+ * @param <T> type of the scheduled items
+ */
+public class TimingWheel<T> {
+
+  private final long tickMillis;
+  private final Queue<T>[] slots;
+  private volatile long processedTick;
+
+  @SuppressWarnings("unchecked")
+  public TimingWheel(int slotCount, long tickMillis, long now) {
+    this.tickMillis = Math.max(1, tickMillis);
+    this.slots = new Queue[slotCount];
+    for (int i = 0; i < slotCount; i++) {
+      slots[i] = new ConcurrentLinkedQueue<>();
+    }
+    this.processedTick = now / this.tickMillis;
+  }
+
+  /**
+   * Schedules an item. It is handed out by the first advance at or after its deadline.
+   */
+  public void schedule(T item, long deadline) {
+    long current = processedTick;
+    long tick = (deadline + tickMillis - 1) / tickMillis;
+    tick = Math.min(Math.max(tick, current + 1), current + slots.length);
+    slots[(int) (tick % slots.length)].add(item);
+  }
+
+  /**
+   * Hands out all items of the ticks which passed since the last advance.
+   */
+  public synchronized void advance(long now, Consumer<T> consumer) {
+    long target = now / tickMillis;
+    long ticks = Math.min(target - processedTick, slots.length);
+    for (long i = 1; i <= ticks; i++) {
+      long tick = processedTick + 1;
+      drain(slots[(int) (tick % slots.length)], consumer);
+      processedTick = tick;
+    }
+    processedTick = Math.max(processedTick, target);
+  }
+
+  /**
+   * Removes the item with the earliest deadline, or an item close to it.
+   *
+   * @return the removed item or null if the wheel is empty
+   */
+  public T pollEarliest() {
+    long current = processedTick;
+    for (int i = 1; i <= slots.length; i++) {
+      T item = slots[(int) ((current + i) % slots.length)].poll();
+      if (item != null) {
+        return item;
+      }
+    }
+    return null;
+  }
+
+  private void drain(Queue<T> slot, Consumer<T> consumer) {
+    T item;
+    while ((item = slot.poll()) != null) {
+      consumer.accept(item);
+    }
+  }
+}
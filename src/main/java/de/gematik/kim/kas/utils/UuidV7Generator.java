@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.utils;
+
+import java.security.SecureRandom;
+import java.util.UUID;
+
+/**
+ * Generates version 7 UUIDs (RFC 9562): 48 bits of Unix milliseconds followed by 74 random bits
+ * from a {@link SecureRandom}, which fill the 12 bit {@code rand_a} and the 62 bit
+ * {@code rand_b} field. Every id gets fresh random bits, so knowing other ids does not help to
+ * guess one. Ids are ordered by their millisecond only; the unique constraint on the file name
+ * rejects the negligible chance of two equal ids.
+ */
+public class UuidV7Generator {
+
+  private static final int RAND_A_MASK = (1 << 12) - 1;
+  private static final long RAND_B_MASK = (1L << 62) - 1;
+
+  private final SecureRandom random = new SecureRandom();
+
+  public UUID next() {
+    long millis = System.currentTimeMillis();
+    long mostSigBits = (millis << 16) | 0x7000L | (random.nextInt() & RAND_A_MASK);
+    long leastSigBits = (random.nextLong() & RAND_B_MASK) | 0x8000000000000000L;
+    return new UUID(mostSigBits, leastSigBits);
+  }
+}
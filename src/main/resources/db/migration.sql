@@ -0,0 +1,24 @@
+--
+-- Copyright (c) 2022 gematik GmbH
+-- 
+-- Licensed under the Apache License, Version 2.0 (the License);
+-- you may not use this file except in compliance with the License.
+-- You may obtain a copy of the License at
+-- 
+--     http://www.apache.org/licenses/LICENSE-2.0
+-- 
+-- Unless required by applicable law or agreed to in writing, software
+-- distributed under the License is distributed on an 'AS IS' BASIS,
+-- WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+-- See the License for the specific language governing permissions and
+-- limitations under the License.
+--
+
+-- Runs before Hibernate updates the schema. Entry ids are allocated in blocks of 50, so databases
+-- created with single step ids need the larger increment on their sequence. The blocks start at
+-- the value taken from the sequence (pooled-lo), so the first block after the change starts past
+-- all ids handed out before.
+ALTER SEQUENCE IF EXISTS hibernate_sequence INCREMENT BY 50;
+
+-- Segment files are numbered from their own sequence, so ids of deleted segments are not reused.
+CREATE SEQUENCE IF NOT EXISTS segment_sequence;
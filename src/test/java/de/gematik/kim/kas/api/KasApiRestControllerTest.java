@@ -17,28 +17,54 @@
 package de.gematik.kim.kas.api;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 import de.gematik.kim.kas.configs.InterceptorConfig;
+import de.gematik.kim.kas.controller.SegmentStore;
+import de.gematik.kim.kas.exceptions.AccountManagerUnavailableException;
 import de.gematik.kim.kas.exceptions.CouldNotSaveException;
 import de.gematik.kim.kas.exceptions.FileToLargeException;
 import de.gematik.kim.kas.exceptions.TimeParseException;
 import de.gematik.kim.kas.filter.BaseAuthFilter;
+import de.gematik.kim.kas.model.Attachment;
+import de.gematik.kim.kas.service.AmClient;
+import de.gematik.kim.kas.service.AttachmentCache;
+import de.gematik.kim.kas.service.AttachmentIdFilter;
+import de.gematik.kim.kas.service.DownloadCounter;
 import de.gematik.kim.kas.service.FileLoadService;
 import de.gematik.kim.kas.service.FileSaveService;
+import de.gematik.kim.kas.service.QuotaLedger;
+import de.gematik.kim.kas.service.QuotaReleaseQueue;
+import de.gematik.kim.kas.service.StorageMigration;
+import de.gematik.kim.kas.service.auth.CredentialCache;
 import de.gematik.kim.kas.service.cron.AccessChecker;
 import de.gematik.kim.kas.service.cron.DeleteFileJob;
+import de.gematik.kim.kas.service.cron.ExpiryScheduler;
+import de.gematik.kim.kas.service.cron.SegmentCompactor;
+import de.gematik.kim.kas.storage.StorageBackend;
+import de.gematik.kim.kas.storage.StorageObjectResource;
+import de.gematik.kim.kas.utils.ByteBufferResource;
+import de.gematik.kim.kas.utils.FileRegionResource;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
+import java.util.Optional;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -47,6 +73,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.expression.AccessException;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
@@ -62,6 +89,8 @@ class KasApiRestControllerTest {
 
   public static final String RECIPIENT = "SomeRecipient@gematik.de";
   public static final String RECIPIENTS_HEADER = "recipient";
+  public static final String ETAG = "d2f1c0ffee";
+  public static final Long ENTRY_ID = 42L;
   @Value("${gematik.kim.kas.version}")
   public String VERSION;
   @Value("${gematik.kim.kas.path-prefix}")
@@ -70,6 +99,30 @@ class KasApiRestControllerTest {
   @MockBean
   private DeleteFileJob deleteFileJob;
   @MockBean
+  private ExpiryScheduler expiryScheduler;
+  @MockBean
+  private CredentialCache credentialCache;
+  @MockBean
+  private QuotaLedger quotaLedger;
+  @MockBean
+  private AmClient amClient;
+  @MockBean
+  private QuotaReleaseQueue quotaReleaseQueue;
+  @MockBean
+  private DownloadCounter downloadCounter;
+  @MockBean
+  private AttachmentCache attachmentCache;
+  @MockBean
+  private AttachmentIdFilter attachmentIdFilter;
+  @MockBean
+  private StorageMigration storageMigration;
+  @MockBean
+  private SegmentCompactor segmentCompactor;
+  @MockBean
+  private SegmentStore segmentStore;
+  @MockBean
+  private StorageBackend storageBackend;
+  @MockBean
   private InterceptorConfig interceptorConfig;
   @MockBean
   private BaseAuthFilter baseAuthFilter;
@@ -84,7 +137,9 @@ class KasApiRestControllerTest {
 
   @BeforeEach
   public void prepare() {
-    when(accessChecker.check(any())).thenReturn(true);
+    when(accessChecker.check(any(), any())).thenReturn(true);
+    when(accessChecker.isAllowed(any(), any())).thenReturn(true);
+    when(attachmentIdFilter.mightExist(any())).thenReturn(true);
   }
 
 
@@ -121,6 +176,21 @@ class KasApiRestControllerTest {
         .andExpect(status().isInternalServerError());
   }
 
+  @Test
+  void accountManagerUnavailableAndExpectServiceUnavailable() throws Exception {
+    byte[] fileData = "Something-with-sense".getBytes();
+    when(fileSaveService.saveFile(any(), any(), any(), any())).thenThrow(
+        new AccountManagerUnavailableException("Account manager unavailable", 30));
+
+    mvc.perform(multipart("/" + prefix + "/" + VERSION + "/attachment")
+            .file("attachment", fileData)
+            .header("authorization", "Basic " + new String(
+                Base64.getEncoder().encode("username:password".getBytes(StandardCharsets.UTF_8))))
+            .header(HttpHeaders.CONTENT_TYPE, MediaType.MULTIPART_FORM_DATA_VALUE))
+        .andExpect(status().isServiceUnavailable())
+        .andExpect(header().string(HttpHeaders.RETRY_AFTER, "30"));
+  }
+
   @Test
   void fileToBigAndExpectPayloadToLarge() throws Exception {
     byte[] fileData = "Something-with-sense".getBytes();
@@ -164,7 +234,8 @@ class KasApiRestControllerTest {
         "." + File.separator + "src" + File.separator + "test" + File.separator + "resources"
             + File.separator
             + "Test.txt");
-    when(fileLoadService.loadFile(eq("Test"), any())).thenReturn(f);
+    when(fileLoadService.loadFile(eq("Test"), any())).thenReturn(
+        Attachment.builder().id(ENTRY_ID).content(new FileSystemResource(f)).file(f).build());
 
     MvcResult result = mvc.perform(get("/" + prefix + "/" + VERSION + "/attachment/" + "Test")
             .header("authorization", "Basic " + new String(
@@ -175,6 +246,237 @@ class KasApiRestControllerTest {
     assertEquals(HttpStatus.OK.value(), result.getResponse().getStatus());
     assertEquals(25, result.getResponse().getContentAsByteArray().length);
     assertEquals("This is just a test file!", result.getResponse().getContentAsString());
+    verify(downloadCounter).increment(ENTRY_ID);
+  }
+
+  @Test
+  void downloadFileWithSendfileSupportAndExpectSendfileAttributes() throws Exception {
+    File f = new File(
+        "." + File.separator + "src" + File.separator + "test" + File.separator + "resources"
+            + File.separator
+            + "Test.txt");
+    when(fileLoadService.loadFile(eq("Test"), any())).thenReturn(
+        Attachment.builder().content(new FileSystemResource(f)).file(f).build());
+
+    MvcResult result = mvc.perform(get("/" + prefix + "/" + VERSION + "/attachment/" + "Test")
+            .requestAttr(KasApiRestController.SENDFILE_SUPPORTED_ATTR, Boolean.TRUE)
+            .header(RECIPIENTS_HEADER, RECIPIENT))
+        .andReturn();
+    assertEquals(HttpStatus.OK.value(), result.getResponse().getStatus());
+    assertEquals("25", result.getResponse().getHeader(HttpHeaders.CONTENT_LENGTH));
+    assertEquals(0, result.getResponse().getContentAsByteArray().length);
+    assertEquals(f.getCanonicalPath(),
+        result.getRequest().getAttribute(KasApiRestController.SENDFILE_FILENAME_ATTR));
+    assertEquals(0L, result.getRequest().getAttribute(KasApiRestController.SENDFILE_START_ATTR));
+    assertEquals(25L, result.getRequest().getAttribute(KasApiRestController.SENDFILE_END_ATTR));
+  }
+
+  @Test
+  void downloadRangeAndExpectPartialContent() throws Exception {
+    mockTestFile();
+
+    MvcResult result = mvc.perform(get("/" + prefix + "/" + VERSION + "/attachment/" + "Test")
+            .header(HttpHeaders.RANGE, "bytes=8-11")
+            .header(RECIPIENTS_HEADER, RECIPIENT))
+        .andReturn();
+    assertEquals(HttpStatus.PARTIAL_CONTENT.value(), result.getResponse().getStatus());
+    assertEquals("bytes 8-11/25", result.getResponse().getHeader(HttpHeaders.CONTENT_RANGE));
+    assertEquals("just", result.getResponse().getContentAsString());
+    assertEquals("\"" + ETAG + "\"", result.getResponse().getHeader(HttpHeaders.ETAG));
+    verify(accessChecker).isAllowed(RECIPIENT, "Test");
+    verify(accessChecker).check(RECIPIENT, "Test", 4, 25);
+    verify(accessChecker, never()).check(RECIPIENT, "Test");
+    verify(downloadCounter, never()).increment(any());
+  }
+
+  @Test
+  void downloadRangeOverLimitAndExpectTooManyRequestsWithoutLookup() throws Exception {
+    when(accessChecker.isAllowed(RECIPIENT, "Test")).thenReturn(false);
+
+    mvc.perform(get("/" + prefix + "/" + VERSION + "/attachment/" + "Test")
+            .header(HttpHeaders.RANGE, "bytes=8-11")
+            .header(RECIPIENTS_HEADER, RECIPIENT))
+        .andExpect(status().isTooManyRequests());
+    verify(fileLoadService, never()).loadFile(any(), any());
+    verify(downloadCounter, never()).increment(any());
+  }
+
+  @Test
+  void downloadMultipleRangesAndExpectMultipartByteranges() throws Exception {
+    mockTestFile();
+
+    MvcResult result = mvc.perform(get("/" + prefix + "/" + VERSION + "/attachment/" + "Test")
+            .header(HttpHeaders.RANGE, "bytes=0-3,20-")
+            .header(RECIPIENTS_HEADER, RECIPIENT))
+        .andReturn();
+    assertEquals(HttpStatus.PARTIAL_CONTENT.value(), result.getResponse().getStatus());
+    assertTrue(result.getResponse().getContentType().startsWith("multipart/byteranges"));
+    String body = result.getResponse().getContentAsString();
+    assertTrue(body.contains("Content-Range: bytes 0-3/25"), body);
+    assertTrue(body.contains("Content-Range: bytes 20-24/25"), body);
+    verify(accessChecker).check(RECIPIENT, "Test", 9, 25);
+    verify(downloadCounter).increment(ENTRY_ID);
+  }
+
+  @Test
+  void downloadRangeWithMatchingIfRangeAndExpectPartialContent() throws Exception {
+    mockTestFile();
+
+    mvc.perform(get("/" + prefix + "/" + VERSION + "/attachment/" + "Test")
+            .header(HttpHeaders.RANGE, "bytes=20-")
+            .header(HttpHeaders.IF_RANGE, "\"" + ETAG + "\"")
+            .header(RECIPIENTS_HEADER, RECIPIENT))
+        .andExpect(status().isPartialContent())
+        .andExpect(content().string("file!"));
+  }
+
+  @Test
+  void downloadRangeWithOutdatedIfRangeAndExpectWholeFile() throws Exception {
+    mockTestFile();
+
+    mvc.perform(get("/" + prefix + "/" + VERSION + "/attachment/" + "Test")
+            .header(HttpHeaders.RANGE, "bytes=20-")
+            .header(HttpHeaders.IF_RANGE, "\"outdated\"")
+            .header(RECIPIENTS_HEADER, RECIPIENT))
+        .andExpect(status().isOk())
+        .andExpect(content().string("This is just a test file!"));
+    verify(accessChecker).check(RECIPIENT, "Test");
+  }
+
+  @Test
+  void downloadRangeWithSendfileSupportAndExpectSendfileAttributes() throws Exception {
+    mockTestFile();
+
+    MvcResult result = mvc.perform(get("/" + prefix + "/" + VERSION + "/attachment/" + "Test")
+            .requestAttr(KasApiRestController.SENDFILE_SUPPORTED_ATTR, Boolean.TRUE)
+            .header(HttpHeaders.RANGE, "bytes=-5")
+            .header(RECIPIENTS_HEADER, RECIPIENT))
+        .andReturn();
+    assertEquals(HttpStatus.PARTIAL_CONTENT.value(), result.getResponse().getStatus());
+    assertEquals("bytes 20-24/25", result.getResponse().getHeader(HttpHeaders.CONTENT_RANGE));
+    assertEquals("5", result.getResponse().getHeader(HttpHeaders.CONTENT_LENGTH));
+    assertEquals(20L, result.getRequest().getAttribute(KasApiRestController.SENDFILE_START_ATTR));
+    assertEquals(25L, result.getRequest().getAttribute(KasApiRestController.SENDFILE_END_ATTR));
+  }
+
+  @Test
+  void downloadSegmentRegionAndExpectOnlyTheRegion() throws Exception {
+    mockTestFileRegion();
+
+    mvc.perform(get("/" + prefix + "/" + VERSION + "/attachment/" + "Test")
+            .header(RECIPIENTS_HEADER, RECIPIENT))
+        .andExpect(status().isOk())
+        .andExpect(header().string(HttpHeaders.CONTENT_LENGTH, "4"))
+        .andExpect(content().string("just"));
+  }
+
+  @Test
+  void downloadRangeOfSegmentRegionAndExpectPartialContent() throws Exception {
+    mockTestFileRegion();
+
+    mvc.perform(get("/" + prefix + "/" + VERSION + "/attachment/" + "Test")
+            .header(HttpHeaders.RANGE, "bytes=1-2")
+            .header(RECIPIENTS_HEADER, RECIPIENT))
+        .andExpect(status().isPartialContent())
+        .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 1-2/4"))
+        .andExpect(content().string("us"));
+  }
+
+  @Test
+  void downloadSegmentRegionWithSendfileSupportAndExpectRegionOffsets() throws Exception {
+    mockTestFileRegion();
+
+    MvcResult result = mvc.perform(get("/" + prefix + "/" + VERSION + "/attachment/" + "Test")
+            .requestAttr(KasApiRestController.SENDFILE_SUPPORTED_ATTR, Boolean.TRUE)
+            .header(RECIPIENTS_HEADER, RECIPIENT))
+        .andReturn();
+    assertEquals(HttpStatus.OK.value(), result.getResponse().getStatus());
+    assertEquals("4", result.getResponse().getHeader(HttpHeaders.CONTENT_LENGTH));
+    assertEquals(8L, result.getRequest().getAttribute(KasApiRestController.SENDFILE_START_ATTR));
+    assertEquals(12L, result.getRequest().getAttribute(KasApiRestController.SENDFILE_END_ATTR));
+  }
+
+  @Test
+  void downloadRangeOfStoredObjectAndExpectBoundedRequest() throws Exception {
+    when(fileLoadService.loadFile(eq("Test"), any())).thenReturn(Attachment.builder()
+        .content(new StorageObjectResource(storageBackend, "owner/Test", 25)).etag(ETAG).build());
+    when(accessChecker.check(any(), any(), anyLong(), anyLong())).thenReturn(true);
+    when(storageBackend.getRange("owner/Test", 8, 4)).thenReturn(
+        new ByteArrayInputStream("just".getBytes(StandardCharsets.UTF_8)));
+
+    mvc.perform(get("/" + prefix + "/" + VERSION + "/attachment/" + "Test")
+            .header(HttpHeaders.RANGE, "bytes=8-11")
+            .header(RECIPIENTS_HEADER, RECIPIENT))
+        .andExpect(status().isPartialContent())
+        .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 8-11/25"))
+        .andExpect(content().string("just"));
+    verify(storageBackend).getRange("owner/Test", 8, 4);
+  }
+
+  @Test
+  void downloadCachedAttachmentAndExpectCachedContent() throws Exception {
+    mockTestFile();
+    mockCachedContent("This is the cached  file!");
+
+    mvc.perform(get("/" + prefix + "/" + VERSION + "/attachment/" + "Test")
+            .header(RECIPIENTS_HEADER, RECIPIENT))
+        .andExpect(status().isOk())
+        .andExpect(content().string("This is the cached  file!"));
+    verify(attachmentCache).served(25);
+  }
+
+  @Test
+  void downloadCachedAttachmentWithSendfileSupportAndExpectCachedContent() throws Exception {
+    mockTestFile();
+    mockCachedContent("This is the cached  file!");
+
+    MvcResult result = mvc.perform(get("/" + prefix + "/" + VERSION + "/attachment/" + "Test")
+            .requestAttr(KasApiRestController.SENDFILE_SUPPORTED_ATTR, Boolean.TRUE)
+            .header(RECIPIENTS_HEADER, RECIPIENT))
+        .andReturn();
+    assertEquals(HttpStatus.OK.value(), result.getResponse().getStatus());
+    assertEquals("This is the cached  file!", result.getResponse().getContentAsString());
+    assertNull(result.getRequest().getAttribute(KasApiRestController.SENDFILE_FILENAME_ATTR));
+    verify(attachmentCache).served(25);
+  }
+
+  @Test
+  void downloadCachedRangesAndExpectCachedContent() throws Exception {
+    mockTestFile();
+    mockCachedContent("This is the cached  file!");
+
+    MvcResult result = mvc.perform(get("/" + prefix + "/" + VERSION + "/attachment/" + "Test")
+            .header(HttpHeaders.RANGE, "bytes=0-3,12-17")
+            .header(RECIPIENTS_HEADER, RECIPIENT))
+        .andReturn();
+    assertEquals(HttpStatus.PARTIAL_CONTENT.value(), result.getResponse().getStatus());
+    String body = result.getResponse().getContentAsString();
+    assertTrue(body.contains("This"), body);
+    assertTrue(body.contains("cached"), body);
+    verify(attachmentCache).served(10);
+  }
+
+  @Test
+  void downloadUnsatisfiableRangeAndExpectRangeNotSatisfiable() throws Exception {
+    mockTestFile();
+
+    mvc.perform(get("/" + prefix + "/" + VERSION + "/attachment/" + "Test")
+            .header(HttpHeaders.RANGE, "bytes=30-40")
+            .header(RECIPIENTS_HEADER, RECIPIENT))
+        .andExpect(status().isRequestedRangeNotSatisfiable())
+        .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes */25"));
+    verify(downloadCounter, never()).increment(any());
+  }
+
+  @Test
+  void downloadUnknownIdAndExpectNotFoundWithoutLookup() throws Exception {
+    when(attachmentIdFilter.mightExist("Unknown")).thenReturn(false);
+
+    mvc.perform(get("/" + prefix + "/" + VERSION + "/attachment/Unknown")
+            .header(RECIPIENTS_HEADER, RECIPIENT))
+        .andExpect(status().isNotFound());
+    verify(accessChecker, never()).check(any(), any());
+    verify(fileLoadService, never()).loadFile(any(), any());
   }
 
   @Test
@@ -210,6 +512,31 @@ class KasApiRestControllerTest {
         .andExpect(content().string("{\"message\":\"Mail ist not allowed\"}"));
   }
 
+  private void mockCachedContent(String content) {
+    when(attachmentCache.get(eq("Test"), any(), anyLong())).thenReturn(Optional.of(new ByteBufferResource(
+        ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8)), "Test")));
+  }
 
-}
+  private void mockTestFile() throws Exception {
+    File f = new File(
+        "." + File.separator + "src" + File.separator + "test" + File.separator + "resources"
+            + File.separator
+            + "Test.txt");
+    when(fileLoadService.loadFile(eq("Test"), any())).thenReturn(
+        Attachment.builder().id(ENTRY_ID).content(new FileSystemResource(f)).file(f).etag(ETAG)
+            .build());
+    when(accessChecker.check(any(), any(), anyLong(), anyLong())).thenReturn(true);
+  }
 
+  private void mockTestFileRegion() throws Exception {
+    File f = new File(
+        "." + File.separator + "src" + File.separator + "test" + File.separator + "resources"
+            + File.separator
+            + "Test.txt");
+    when(fileLoadService.loadFile(eq("Test"), any())).thenReturn(
+        Attachment.builder().content(new FileRegionResource(f, 8, 4)).file(f).offset(8)
+            .etag(ETAG).build());
+    when(accessChecker.check(any(), any(), anyLong(), anyLong())).thenReturn(true);
+  }
+
+}
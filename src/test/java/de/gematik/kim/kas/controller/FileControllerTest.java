@@ -16,22 +16,165 @@
 
 package de.gematik.kim.kas.controller;
 
+import static de.gematik.kim.kas.service.auth.AuthStrategy.MAIL;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import de.gematik.kim.kas.exceptions.FileToLargeException;
+import de.gematik.kim.kas.storage.FileSystemStorageBackend;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.slf4j.MDC;
 
 @Slf4j
 @ExtendWith(MockitoExtension.class)
 public class FileControllerTest {
 
+  private static final String STORAGE_PATH = "target/test-storage";
+  private static final String OWNER = "owner_email@gematik.test";
+  private static final String OWNER_PATH = "owner_emailATgematikPUNKTtest";
+
   @Test
   public void useInvalidPathAndExpectInvalidPathException() {
-    FileController fileController = new FileController("!§$%&/()?)-SomeInvalidPath");
+    FileController fileController = new FileController("!§$%&/()?)-SomeInvalidPath",
+        StorageLayout.FLAT,
+        new SegmentStore("!§$%&/()?)-SomeInvalidPath", 0, 0, new AtomicLong()::getAndIncrement),
+        new FileSystemStorageBackend("!§$%&/()?)-SomeInvalidPath"));
     // Linux gets a CouldNotSaveException / Windows an InvalidPathException
     assertThrows(Exception.class,
-        () -> fileController.storeFile("Something-with-sense".getBytes(), "MyFileName"));
+        () -> fileController.stageFile(
+            new ByteArrayInputStream("Something-with-sense".getBytes()), Long.MAX_VALUE));
+  }
+
+  @Test
+  @SneakyThrows
+  public void streamFileAndExpectSameContent() {
+    MDC.put(MAIL, OWNER);
+    new File(STORAGE_PATH).mkdirs();
+    byte[] data = new byte[200 * 1024 + 17];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    FileController fileController = fileController(StorageLayout.FLAT);
+    StagedFile staged = fileController.stageFile(new ByteArrayInputStream(data), data.length);
+    fileController.publishFile(staged, fileController.relativePath(OWNER, "streamFileTestFile"));
+    assertArrayEquals(data, Files.readAllBytes(
+        new File(STORAGE_PATH + File.separator + OWNER_PATH + File.separator
+            + "streamFileTestFile").toPath()));
+  }
+
+  @Test
+  @SneakyThrows
+  public void streamTooLargeFileAndExpectFileToLargeException() {
+    new File(STORAGE_PATH).mkdirs();
+    FileController fileController = fileController(StorageLayout.FLAT);
+    fileController.cleanStagingArea();
+    assertThrows(FileToLargeException.class,
+        () -> fileController.stageFile(new ByteArrayInputStream(new byte[1024]), 1023));
+    File[] staged = new File(STORAGE_PATH, ".staging").listFiles();
+    assertTrue(staged == null || staged.length == 0, "Partially written file was not removed");
+  }
+
+  @Test
+  @SneakyThrows
+  public void stageFileAndExpectItToAppearOnlyWhenPublished() {
+    MDC.put(MAIL, OWNER);
+    new File(STORAGE_PATH).mkdirs();
+    FileController fileController = fileController(StorageLayout.FLAT);
+    File published = new File(STORAGE_PATH + File.separator + OWNER_PATH + File.separator
+        + "stagedTestFile");
+    Files.deleteIfExists(published.toPath());
+
+    StagedFile staged = fileController.stageFile(
+        new ByteArrayInputStream("Something-with-sense".getBytes()), Long.MAX_VALUE);
+    assertEquals(20, staged.getSize());
+    assertFalse(published.exists(), "Staged file is already visible");
+
+    fileController.publishFile(staged, OWNER_PATH + "/stagedTestFile");
+    assertTrue(published.exists(), "Published file is missing");
+    assertFalse(Files.exists(staged.getPath()), "Staged file was not moved");
+  }
+
+  @Test
+  @SneakyThrows
+  public void cleanStagingAreaAndExpectLeftoversToBeRemoved() {
+    new File(STORAGE_PATH).mkdirs();
+    FileController fileController = fileController(StorageLayout.FLAT);
+    StagedFile staged = fileController.stageFile(new ByteArrayInputStream(new byte[16]),
+        Long.MAX_VALUE);
+
+    fileController.cleanStagingArea();
+
+    assertFalse(Files.exists(staged.getPath()), "Staged file was not removed");
+  }
+
+  @Test
+  @SneakyThrows
+  public void publishFileInShardedLayoutAndExpectFanOutDirectories() {
+    FileController fileController = fileController(StorageLayout.SHARDED);
+    String path = fileController.relativePath(OWNER, "shardedTestFile");
+    StagedFile staged = fileController.stageFile(
+        new ByteArrayInputStream("Something-with-sense".getBytes()), Long.MAX_VALUE);
+
+    fileController.publishFile(staged, path);
+
+    assertTrue(path.matches(OWNER_PATH + "/[0-9a-f]{2}/[0-9a-f]{2}/shardedTestFile"), path);
+    assertEquals(20, fileController.getFile(path).contentLength());
+    assertTrue(fileController.deleteFile(path));
+    assertFalse(fileController.deleteFile(path));
+  }
+
+  @Test
+  @SneakyThrows
+  public void copyFileAndExpectItAtBothPaths() {
+    FileController fileController = fileController(StorageLayout.FLAT);
+    String from = OWNER_PATH + "/copyTestFile";
+    String to = StorageLayout.SHARDED.relativePath(OWNER, "copyTestFile");
+    fileController.deleteFile(to);
+    fileController.publishFile(fileController.stageFile(
+        new ByteArrayInputStream("Something-with-sense".getBytes()), Long.MAX_VALUE), from);
+
+    fileController.copyFile(from, to);
+
+    assertArrayEquals(Files.readAllBytes(fileController.getFile(from).getFile().toPath()),
+        Files.readAllBytes(fileController.getFile(to).getFile().toPath()));
+    assertThrows(IOException.class, () -> fileController.copyFile("missing", "missingCopy"));
+  }
+
+  @Test
+  @SneakyThrows
+  public void publishSmallFileToSegmentAndExpectItInTheSegment() {
+    SegmentStore segmentStore = new SegmentStore(STORAGE_PATH, 1024, 1024 * 1024,
+        new AtomicLong()::getAndIncrement);
+    FileController fileController = new FileController(STORAGE_PATH, StorageLayout.FLAT,
+        segmentStore, new FileSystemStorageBackend(STORAGE_PATH));
+    StagedFile staged = fileController.stageFile(
+        new ByteArrayInputStream("Something-with-sense".getBytes()), Long.MAX_VALUE);
+    assertTrue(fileController.fitsSegment(staged));
+
+    SegmentLocation location = fileController.publishToSegment(staged);
+
+    assertFalse(Files.exists(staged.getPath()), "Staged file was not removed");
+    byte[] segment = Files.readAllBytes(
+        fileController.getSegment(location.getSegment()).toPath());
+    assertEquals("Something-with-sense", new String(segment, (int) location.getOffset(), 20));
+    segmentStore.close();
+  }
+
+  private FileController fileController(StorageLayout layout) {
+    return new FileController(STORAGE_PATH, layout,
+        new SegmentStore(STORAGE_PATH, 0, 0, new AtomicLong()::getAndIncrement),
+        new FileSystemStorageBackend(STORAGE_PATH));
   }
 }
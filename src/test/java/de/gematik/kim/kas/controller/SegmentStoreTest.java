@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SegmentStoreTest {
+
+  @TempDir
+  Path storage;
+  private final AtomicLong ids = new AtomicLong();
+
+  @Test
+  void appendFilesOneAfterAnother() throws IOException {
+    SegmentStore store = new SegmentStore(storage.toString(), 100, 1000, ids::getAndIncrement);
+
+    SegmentLocation first = store.append(write("first", "0123456789"));
+    SegmentLocation second = store.append(write("second", "abcdef"));
+
+    assertEquals(first.getSegment(), second.getSegment());
+    assertEquals(0, first.getOffset());
+    assertEquals(10, second.getOffset());
+    assertEquals("abcdef", read(store, second, 6));
+    store.close();
+  }
+
+  @Test
+  void startNewSegmentWhenFullAndAtRestart() throws IOException {
+    SegmentStore store = new SegmentStore(storage.toString(), 100, 15, ids::getAndIncrement);
+    SegmentLocation first = store.append(write("first", "0123456789"));
+    SegmentLocation second = store.append(write("second", "0123456789"));
+    store.close();
+    SegmentLocation third = new SegmentStore(storage.toString(), 100, 15, ids::getAndIncrement)
+        .append(write("third", "0123456789"));
+
+    assertEquals(first.getSegment() + 1, second.getSegment());
+    assertEquals(second.getSegment() + 1, third.getSegment());
+    assertEquals(List.of(0L, 1L, 2L), store.listSegments());
+  }
+
+  @Test
+  void neverReuseIdOfDeletedSegment() throws IOException {
+    SegmentStore store = new SegmentStore(storage.toString(), 100, 15, ids::getAndIncrement);
+    store.append(write("first", "0123456789"));
+    SegmentLocation second = store.append(write("second", "0123456789"));
+    store.close();
+    SegmentStore restarted = new SegmentStore(storage.toString(), 100, 15, ids::getAndIncrement);
+    SegmentLocation third = restarted.append(write("third", "0123456789"));
+    restarted.close();
+    assertTrue(store.delete(third.getSegment()));
+
+    SegmentLocation fourth = new SegmentStore(storage.toString(), 100, 15, ids::getAndIncrement)
+        .append(write("fourth", "0123456789"));
+
+    assertTrue(fourth.getSegment() > third.getSegment());
+    assertTrue(third.getSegment() > second.getSegment());
+  }
+
+  @Test
+  void skipIdsOfSegmentsWrittenBeforeTheSequence() throws IOException {
+    SegmentStore store = new SegmentStore(storage.toString(), 100, 15, ids::getAndIncrement);
+    store.append(write("first", "0123456789"));
+    SegmentLocation second = store.append(write("second", "0123456789"));
+    store.close();
+
+    SegmentLocation third = new SegmentStore(storage.toString(), 100, 15,
+        new AtomicLong()::getAndIncrement).append(write("third", "0123456789"));
+
+    assertEquals(second.getSegment() + 1, third.getSegment());
+  }
+
+  @Test
+  void copyPartOfSegmentToActiveSegment() throws IOException {
+    SegmentStore store = new SegmentStore(storage.toString(), 100, 15, ids::getAndIncrement);
+    SegmentLocation original = store.append(write("first", "0123456789"));
+    store.append(write("second", "abcdefghij"));
+
+    SegmentLocation copy = store.copy(original.getSegment(), 2, 5);
+
+    assertEquals("23456", read(store, copy, 5));
+    store.close();
+  }
+
+  @Test
+  void acceptOnlySmallAttachments() {
+    SegmentStore store = new SegmentStore(storage.toString(), 100, 1000, ids::getAndIncrement);
+
+    assertTrue(store.accepts(100));
+    assertFalse(store.accepts(101));
+    assertFalse(store.accepts(0));
+    assertFalse(new SegmentStore(storage.toString(), 0, 1000, ids::getAndIncrement).accepts(1));
+  }
+
+  @Test
+  void neverDeleteActiveSegment() throws IOException {
+    SegmentStore store = new SegmentStore(storage.toString(), 100, 15, ids::getAndIncrement);
+    SegmentLocation first = store.append(write("first", "0123456789"));
+    SegmentLocation second = store.append(write("second", "0123456789"));
+
+    assertThrows(IOException.class, () -> store.delete(second.getSegment()));
+    assertTrue(store.delete(first.getSegment()));
+    assertEquals(List.of(second.getSegment()), store.listSegments());
+    store.close();
+  }
+
+  private Path write(String name, String content) throws IOException {
+    return Files.writeString(storage.resolve(name), content);
+  }
+
+  private static String read(SegmentStore store, SegmentLocation location, int length)
+      throws IOException {
+    byte[] segment = Files.readAllBytes(store.getSegment(location.getSegment()).toPath());
+    int offset = (int) location.getOffset();
+    return new String(Arrays.copyOfRange(segment, offset, offset + length),
+        StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+
+class StorageLayoutTest {
+
+  private static final String OWNER = "owner_email@gematik.test";
+
+  @Test
+  void flatLayoutKeepsAllFilesOfAnOwnerTogether() {
+    assertEquals("owner_emailATgematikPUNKTtest/file",
+        StorageLayout.FLAT.relativePath(OWNER, "file"));
+  }
+
+  @Test
+  void shardedLayoutIsStableAndSpreadsFiles() {
+    assertEquals(StorageLayout.SHARDED.relativePath(OWNER, "file"),
+        StorageLayout.SHARDED.relativePath(OWNER, "file"));
+    Set<String> directories = new HashSet<>();
+    for (int i = 0; i < 1000; i++) {
+      String path = StorageLayout.SHARDED.relativePath(OWNER, UUID.randomUUID().toString());
+      directories.add(path.substring(0, path.lastIndexOf('/')));
+    }
+    assertTrue(directories.size() > 900, directories.size() + " directories");
+  }
+
+  @Test
+  void entriesWithoutPathAreInTheFlatLayout() {
+    assertEquals("owner_emailATgematikPUNKTtest/file",
+        StorageLayout.locate(null, OWNER, "file"));
+    assertEquals("some/path", StorageLayout.locate("some/path", OWNER, "file"));
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.sun.net.httpserver.HttpServer;
+import de.gematik.kim.kas.am_api.KasAuthApi;
+import de.gematik.kim.kas.configs.AmHttpClientConfiguration;
+import de.gematik.kim.kas.configs.KasApiRestConfiguration;
+import de.gematik.kim.kas.exceptions.AccountManagerUnavailableException;
+import de.gematik.kim.kas.model.RemainingQuotaInfo;
+import de.gematik.kim.kas.utils.CircuitBreaker;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.naming.AuthenticationException;
+import javax.naming.CommunicationException;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+
+@SpringBootTest(classes = {AmHttpClientConfiguration.class, KasApiRestConfiguration.class,
+    KasAuthApi.class, AmClient.class, SimpleMeterRegistry.class})
+class AmClientTest {
+
+  private static final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+  private static volatile int status = 200;
+  private static HttpServer accountManager;
+
+  @Autowired
+  private AmClient amClient;
+  @Autowired
+  private MeterBinder amConnectionPoolMetrics;
+
+  @DynamicPropertySource
+  static void accountManagerUrl(DynamicPropertyRegistry registry) throws IOException {
+    accountManager = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    accountManager.createContext("/auth/basic", exchange -> {
+      clientPorts.add(exchange.getRemoteAddress().getPort());
+      exchange.getRequestBody().readAllBytes();
+      exchange.sendResponseHeaders(status, -1);
+      exchange.close();
+    });
+    accountManager.start();
+    registry.add("gematik.kim.kas.kim-am-base-url",
+        () -> "http://localhost:" + accountManager.getAddress().getPort());
+  }
+
+  @AfterAll
+  static void stopAccountManager() {
+    accountManager.stop(0);
+  }
+
+  @BeforeEach
+  void reset() {
+    clientPorts.clear();
+    status = 200;
+  }
+
+  @Test
+  void callAccountManagerRepeatedlyAndExpectConnectionToBeReused()
+      throws AuthenticationException {
+    for (int i = 0; i < 5; i++) {
+      amClient.basicAuth("user@gematik.test", "secret");
+    }
+    assertEquals(1, clientPorts.size());
+  }
+
+  @Test
+  void rejectCredentialsAndExpectRootCause() {
+    status = 403;
+    AuthenticationException ex = assertThrows(AuthenticationException.class,
+        () -> amClient.basicAuth("user@gematik.test", "wrong"));
+    assertEquals(403, ((HttpClientErrorException) ex.getRootCause()).getRawStatusCode());
+  }
+
+  @Test
+  void bindPoolMetricsAndExpectPoolLimits() {
+    MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    amConnectionPoolMetrics.bindTo(meterRegistry);
+    assertEquals(50,
+        meterRegistry.get("httpcomponents.httpclient.pool.total.max").gauge().value());
+  }
+
+  @Test
+  void failRepeatedlyAndExpectCircuitToRejectCalls() {
+    KasAuthApi kasAuthApi = mock(KasAuthApi.class);
+    when(kasAuthApi.basicAuthWithHttpInfo(anyString(), anyString())).thenThrow(
+        new HttpServerErrorException(HttpStatus.INTERNAL_SERVER_ERROR));
+    AmClient client = new AmClient(kasAuthApi, 2, 30000, 10, 0, 1, 0, new SimpleMeterRegistry());
+
+    assertThrows(AuthenticationException.class, () -> client.basicAuth("user", "secret"));
+    assertThrows(AuthenticationException.class, () -> client.basicAuth("user", "secret"));
+    AccountManagerUnavailableException ex = assertThrows(AccountManagerUnavailableException.class,
+        () -> client.basicAuth("user", "secret"));
+
+    assertEquals(30, ex.getRetryAfterSeconds());
+    verify(kasAuthApi, times(2)).basicAuthWithHttpInfo(anyString(), anyString());
+    assertEquals(AccountManagerHealthIndicator.DEGRADED,
+        new AccountManagerHealthIndicator(client).health().getStatus());
+  }
+
+  @Test
+  void rejectCredentialsRepeatedlyAndExpectCircuitToStayClosed() {
+    KasAuthApi kasAuthApi = mock(KasAuthApi.class);
+    when(kasAuthApi.basicAuthWithHttpInfo(anyString(), anyString())).thenThrow(
+        new HttpClientErrorException(HttpStatus.FORBIDDEN));
+    AmClient client = new AmClient(kasAuthApi, 2, 30000, 10, 0, 1, 0, new SimpleMeterRegistry());
+
+    for (int i = 0; i < 5; i++) {
+      assertThrows(AuthenticationException.class, () -> client.basicAuth("user", "wrong"));
+    }
+    assertEquals(CircuitBreaker.State.CLOSED, client.getCircuitState());
+    assertEquals(Status.UP, new AccountManagerHealthIndicator(client).health().getStatus());
+  }
+
+  @Test
+  void recoverAfterOpenDurationAndExpectCircuitToClose() throws Exception {
+    KasAuthApi kasAuthApi = mock(KasAuthApi.class);
+    when(kasAuthApi.basicAuthWithHttpInfo(anyString(), anyString()))
+        .thenThrow(new HttpServerErrorException(HttpStatus.BAD_GATEWAY))
+        .thenReturn(ResponseEntity.ok().build());
+    AmClient client = new AmClient(kasAuthApi, 1, 100, 10, 0, 1, 0, new SimpleMeterRegistry());
+
+    assertThrows(AuthenticationException.class, () -> client.basicAuth("user", "secret"));
+    assertEquals(CircuitBreaker.State.OPEN, client.getCircuitState());
+    Thread.sleep(150);
+    client.basicAuth("user", "secret");
+    assertEquals(CircuitBreaker.State.CLOSED, client.getCircuitState());
+  }
+
+  @Test
+  void failTrialCallWithErrorAndExpectCircuitToOpenAgain() throws Exception {
+    KasAuthApi kasAuthApi = mock(KasAuthApi.class);
+    when(kasAuthApi.basicAuthWithHttpInfo(anyString(), anyString()))
+        .thenThrow(new HttpServerErrorException(HttpStatus.BAD_GATEWAY))
+        .thenThrow(new StackOverflowError())
+        .thenReturn(ResponseEntity.ok().build());
+    AmClient client = new AmClient(kasAuthApi, 1, 100, 10, 0, 1, 0, new SimpleMeterRegistry());
+
+    assertThrows(AuthenticationException.class, () -> client.basicAuth("user", "secret"));
+    Thread.sleep(150);
+    assertThrows(StackOverflowError.class, () -> client.basicAuth("user", "secret"));
+    assertEquals(CircuitBreaker.State.OPEN, client.getCircuitState());
+    Thread.sleep(150);
+    client.basicAuth("user", "secret");
+    assertEquals(CircuitBreaker.State.CLOSED, client.getCircuitState());
+  }
+
+  @Test
+  void exceedConcurrentCallsAndExpectFastRejection() throws Exception {
+    KasAuthApi kasAuthApi = mock(KasAuthApi.class);
+    CountDownLatch called = new CountDownLatch(1);
+    CountDownLatch answer = new CountDownLatch(1);
+    when(kasAuthApi.basicAuthWithHttpInfo(anyString(), anyString())).thenAnswer(invocation -> {
+      called.countDown();
+      answer.await();
+      return ResponseEntity.ok().build();
+    });
+    MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    AmClient client = new AmClient(kasAuthApi, 5, 30000, 1, 0, 1, 0, meterRegistry);
+
+    Thread pending = new Thread(() -> {
+      try {
+        client.basicAuth("user", "secret");
+      } catch (AuthenticationException ex) {
+        throw new IllegalStateException(ex);
+      }
+    });
+    pending.start();
+    assertTrue(called.await(5, TimeUnit.SECONDS));
+    assertThrows(AccountManagerUnavailableException.class,
+        () -> client.basicAuth("other", "secret"));
+    answer.countDown();
+    pending.join();
+
+    assertEquals(1, meterRegistry.get("kas.am.calls.rejected").tag("reason", "bulkhead-full")
+        .counter().count());
+  }
+
+  @Test
+  void releaseQuotaWithTransientErrorAndExpectRetry() throws CommunicationException {
+    KasAuthApi kasAuthApi = mock(KasAuthApi.class);
+    when(kasAuthApi.releaseResourceWithHttpInfo(anyString(), anyString()))
+        .thenThrow(new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE))
+        .thenReturn(ResponseEntity.ok(new RemainingQuotaInfo().remainingQuota(42L)));
+    AmClient client = new AmClient(kasAuthApi, 5, 30000, 10, 0, 3, 1, new SimpleMeterRegistry());
+
+    assertEquals("42", client.releaseQuota(100, "user"));
+    verify(kasAuthApi, times(2)).releaseResourceWithHttpInfo("user", "100");
+  }
+
+  @Test
+  void releaseQuotaWithClientErrorAndExpectNoRetry() {
+    KasAuthApi kasAuthApi = mock(KasAuthApi.class);
+    when(kasAuthApi.releaseResourceWithHttpInfo(anyString(), anyString()))
+        .thenThrow(new HttpClientErrorException(HttpStatus.BAD_REQUEST));
+    AmClient client = new AmClient(kasAuthApi, 5, 30000, 10, 0, 3, 1, new SimpleMeterRegistry());
+
+    assertThrows(CommunicationException.class, () -> client.releaseQuota(100, "user"));
+    verify(kasAuthApi, times(1)).releaseResourceWithHttpInfo("user", "100");
+  }
+}
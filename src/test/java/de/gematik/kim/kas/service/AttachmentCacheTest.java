@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import de.gematik.kim.kas.model.Attachment;
+import de.gematik.kim.kas.utils.FileRegionResource;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+
+class AttachmentCacheTest {
+
+  @TempDir
+  Path storage;
+  private MeterRegistry meterRegistry;
+
+  @BeforeEach
+  void setUp() {
+    meterRegistry = new SimpleMeterRegistry();
+  }
+
+  @Test
+  void loadOnMissAndServeFromCacheOnHit() throws IOException {
+    AttachmentCache cache = new AttachmentCache(100, 50, meterRegistry);
+    File file = write("first", "0123456789");
+
+    assertEquals("0123456789", read(cache.get("first", attachment(file), 10)));
+    Files.delete(file.toPath());
+    assertEquals("0123456789", read(cache.get("first", attachment(file), 10)));
+
+    assertEquals(1, meterRegistry.counter("kas.read.cache.requests", "result", "hit").count());
+    assertEquals(1, meterRegistry.counter("kas.read.cache.requests", "result", "miss").count());
+    assertEquals(0.5, meterRegistry.get("kas.read.cache.hit.ratio").gauge().value());
+  }
+
+  @Test
+  void evictLeastRecentlyUsedWhenBudgetIsExceeded() throws IOException {
+    AttachmentCache cache = new AttachmentCache(25, 25, meterRegistry);
+    File first = write("first", "0123456789");
+    File second = write("second", "0123456789");
+    File third = write("third", "0123456789");
+    cache.admit("first", attachment(first));
+    cache.admit("second", attachment(second));
+    cache.get("first", attachment(first), 10);
+    cache.admit("third", attachment(third));
+
+    assertEquals(20, cache.getUsedBytes());
+    Files.delete(first.toPath());
+    Files.delete(second.toPath());
+    assertTrue(cache.get("first", attachment(first), 10).isPresent());
+    assertFalse(cache.get("second", attachment(second), 10).isPresent());
+  }
+
+  @Test
+  void readConcurrentMissesOfTheSameAttachmentOnce() throws Exception {
+    AttachmentCache cache = new AttachmentCache(100, 50, meterRegistry);
+    File file = write("first", "0123456789");
+    AtomicInteger reads = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    Attachment attachment = Attachment.builder().content(new FileSystemResource(file) {
+      @Override
+      public ReadableByteChannel readableChannel() throws IOException {
+        reads.incrementAndGet();
+        try {
+          release.await();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+        return super.readableChannel();
+      }
+    }).file(file).build();
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<Optional<Resource>> first = executor.submit(() -> cache.get("first", attachment, 10));
+      Future<Optional<Resource>> second = executor.submit(() -> cache.get("first", attachment, 10));
+      while (meterRegistry.counter("kas.read.cache.requests", "result", "miss").count() < 2) {
+        Thread.sleep(1);
+      }
+      release.countDown();
+
+      assertEquals("0123456789", read(first.get()));
+      assertEquals("0123456789", read(second.get()));
+      assertEquals(1, reads.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void loadOnlyTheRegionOfASegment() throws IOException {
+    AttachmentCache cache = new AttachmentCache(100, 50, meterRegistry);
+    File segment = write("segment", "0123456789");
+    Attachment region = Attachment.builder()
+        .content(new FileRegionResource(segment, 3, 4)).file(segment).offset(3).build();
+
+    assertEquals("3456", read(cache.get("region", region, 4)));
+    assertEquals(4, cache.getUsedBytes());
+  }
+
+  @Test
+  void doNotCacheLargeFiles() throws IOException {
+    AttachmentCache cache = new AttachmentCache(100, 5, meterRegistry);
+    File file = write("large", "0123456789");
+    Attachment attachment = Attachment.builder().content(new FileSystemResource(file) {
+      @Override
+      public long contentLength() {
+        throw new AssertionError("Size of a large file was read");
+      }
+    }).file(file).build();
+
+    assertFalse(cache.get("large", attachment, 10).isPresent());
+    assertEquals(0, cache.getUsedBytes());
+    assertEquals(0, meterRegistry.counter("kas.read.cache.requests", "result", "miss").count());
+  }
+
+  @Test
+  void rejectMaxFileSizeBeyondBufferLimit() {
+    assertThrows(IllegalArgumentException.class,
+        () -> new AttachmentCache(Long.MAX_VALUE, Integer.MAX_VALUE + 1L, meterRegistry));
+  }
+
+  @Test
+  void invalidateRemovesAttachment() throws IOException {
+    AttachmentCache cache = new AttachmentCache(100, 50, meterRegistry);
+    File file = write("first", "0123456789");
+    cache.admit("first", attachment(file));
+    Files.delete(file.toPath());
+
+    cache.invalidate("first");
+
+    assertFalse(cache.get("first", attachment(file), 10).isPresent());
+    assertEquals(0, cache.getUsedBytes());
+  }
+
+  @Test
+  void disabledCacheNeverReadsFiles() throws IOException {
+    AttachmentCache cache = new AttachmentCache(0, 50, meterRegistry);
+    File file = write("first", "0123456789");
+    cache.admit("first", attachment(file));
+
+    assertFalse(cache.isEnabled());
+    assertFalse(cache.get("first", attachment(file), 10).isPresent());
+    assertEquals(0, cache.getUsedBytes());
+  }
+
+  @Test
+  void servedBytesAreCounted() {
+    AttachmentCache cache = new AttachmentCache(100, 50, meterRegistry);
+
+    cache.served(10);
+    cache.served(5);
+
+    assertEquals(15, meterRegistry.counter("kas.read.cache.served.bytes").count());
+  }
+
+  private File write(String name, String content) throws IOException {
+    return Files.writeString(storage.resolve(name), content).toFile();
+  }
+
+  private String read(Optional<Resource> resource) throws IOException {
+    try (InputStream in = resource.orElseThrow().getInputStream()) {
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+
+  private static Attachment attachment(File file) {
+    return Attachment.builder().content(new FileSystemResource(file)).file(file).build();
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import de.gematik.kim.kas.db.EntryFileName;
+import de.gematik.kim.kas.db.EntryRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+class AttachmentIdFilterTest {
+
+  @Mock
+  private EntryRepository entryRepository;
+  private MeterRegistry meterRegistry;
+
+  @BeforeEach
+  void setUp() {
+    meterRegistry = new SimpleMeterRegistry();
+  }
+
+  @Test
+  void buildFromDatabasePageByPage() {
+    when(entryRepository.findFileNames(eq(0L), any()))
+        .thenReturn(List.of(fileName(1L, "first"), fileName(2L, "second")));
+    when(entryRepository.findFileNames(eq(2L), any()))
+        .thenReturn(List.of(fileName(5L, "third")));
+    AttachmentIdFilter filter = filter(true);
+
+    filter.build();
+
+    assertTrue(filter.mightExist("first"));
+    assertTrue(filter.mightExist("second"));
+    assertTrue(filter.mightExist("third"));
+    assertFalse(filter.mightExist("unknown"));
+    assertEquals(3, meterRegistry.get("kas.id.filter.size").gauge().value());
+  }
+
+  @Test
+  void letEverythingPassUntilBuilt() {
+    AttachmentIdFilter filter = filter(true);
+
+    assertTrue(filter.mightExist("unknown"));
+  }
+
+  @Test
+  void followUploadsAndDeletions() {
+    when(entryRepository.findFileNames(eq(0L), any())).thenReturn(List.of());
+    AttachmentIdFilter filter = filter(true);
+    filter.build();
+
+    filter.add("uploaded");
+    assertTrue(filter.mightExist("uploaded"));
+    filter.removeDeleted(() -> Map.of(7L, "uploaded"));
+    assertFalse(filter.mightExist("uploaded"));
+  }
+
+  @Test
+  void removeOnlyNamesReadBeforeDeletionWhileBuilding() {
+    AttachmentIdFilter filter = filter(true);
+    doAnswer(invocation -> {
+      filter.add("uploaded");
+      return List.of(fileName(1L, "first"), fileName(2L, "second"));
+    }).when(entryRepository).findFileNames(eq(0L), any());
+    doAnswer(invocation -> {
+      // a cleanup commits between the page reads, the third entry is no longer found
+      filter.removeDeleted(() -> Map.of(1L, "first", 3L, "third"));
+      return List.of(fileName(4L, "fourth"));
+    }).when(entryRepository).findFileNames(eq(2L), any());
+
+    filter.build();
+
+    assertFalse(filter.mightExist("first"));
+    assertTrue(filter.mightExist("second"));
+    assertFalse(filter.mightExist("third"));
+    assertTrue(filter.mightExist("fourth"));
+    assertTrue(filter.mightExist("uploaded"));
+    assertEquals(3, meterRegistry.get("kas.id.filter.size").gauge().value());
+  }
+
+  @Test
+  void ignoreDeletionsBeforeBuild() {
+    when(entryRepository.findFileNames(eq(0L), any()))
+        .thenReturn(List.of(fileName(1L, "first")));
+    AttachmentIdFilter filter = filter(true);
+
+    filter.removeDeleted(() -> Map.of(2L, "second"));
+    filter.build();
+
+    assertTrue(filter.mightExist("first"));
+    assertEquals(1, meterRegistry.get("kas.id.filter.size").gauge().value());
+  }
+
+  @Test
+  void countRejectionsAndFalsePositives() {
+    when(entryRepository.findFileNames(eq(0L), any())).thenReturn(List.of());
+    AttachmentIdFilter filter = filter(true);
+    filter.build();
+
+    filter.mightExist("unknown");
+    filter.mightExist("other");
+    filter.mightExist("third");
+    filter.recordFalsePositive();
+
+    assertEquals(3,
+        meterRegistry.counter("kas.id.filter.lookups", "result", "rejected").count());
+    assertEquals(0.25, meterRegistry.get("kas.id.filter.false.positive.rate").gauge().value());
+  }
+
+  @Test
+  void disabledFilterNeitherLoadsNorRejects() {
+    AttachmentIdFilter filter = filter(false);
+
+    filter.build();
+    filter.add("uploaded");
+
+    assertTrue(filter.mightExist("unknown"));
+    verifyNoInteractions(entryRepository);
+  }
+
+  private AttachmentIdFilter filter(boolean enabled) {
+    return new AttachmentIdFilter(entryRepository, enabled, 1000, 0.01, 2, meterRegistry);
+  }
+
+  private static EntryFileName fileName(Long id, String fileName) {
+    return new EntryFileName() {
+      @Override
+      public Long getId() {
+        return id;
+      }
+
+      @Override
+      public String getFileName() {
+        return fileName;
+      }
+    };
+  }
+}
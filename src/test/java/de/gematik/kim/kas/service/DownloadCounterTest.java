@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import de.gematik.kim.kas.db.EntryRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.transaction.PlatformTransactionManager;
+
+@ExtendWith(MockitoExtension.class)
+class DownloadCounterTest {
+
+  @Mock
+  private EntryRepository entryRepository;
+  @Mock
+  private PlatformTransactionManager transactionManager;
+  private final Map<Long, Long> written = new ConcurrentHashMap<>();
+  private DownloadCounter downloadCounter;
+
+  @BeforeEach
+  void setUp() {
+    downloadCounter = new DownloadCounter(entryRepository, transactionManager,
+        new SimpleMeterRegistry());
+  }
+
+  @Test
+  void flushAndExpectOneUpdatePerDistinctCount() {
+    recordWrites();
+    downloadCounter.increment(1L);
+    downloadCounter.increment(2L);
+    downloadCounter.increment(3L);
+    downloadCounter.increment(3L);
+
+    downloadCounter.flush();
+
+    verify(entryRepository).addDownloads(1, List.of(1L, 2L));
+    verify(entryRepository).addDownloads(2, List.of(3L));
+  }
+
+  @Test
+  void flushWithoutDownloadsAndExpectNoUpdate() {
+    downloadCounter.flush();
+
+    verify(entryRepository, never()).addDownloads(anyInt(), anyCollection());
+  }
+
+  @Test
+  void downloadWhileFlushingAndExpectExactCounts() throws Exception {
+    recordWrites();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    AtomicBoolean downloading = new AtomicBoolean(true);
+    List<Future<?>> downloads = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      downloads.add(executor.submit(() -> {
+        for (int i = 0; i < 10000; i++) {
+          downloadCounter.increment((long) (i % 3));
+        }
+      }));
+    }
+    Future<?> flushing = executor.submit(() -> {
+      while (downloading.get()) {
+        downloadCounter.flush();
+      }
+    });
+    for (Future<?> download : downloads) {
+      download.get();
+    }
+    downloading.set(false);
+    flushing.get();
+    executor.shutdown();
+
+    downloadCounter.shutdown();
+    downloadCounter.flush();
+
+    assertEquals(80000, written.values().stream().mapToLong(Long::longValue).sum());
+    assertEquals(8 * 3334, written.get(0L));
+  }
+
+  @Test
+  void failToWriteAndExpectCountsToBeKept() {
+    when(entryRepository.addDownloads(anyInt(), anyCollection()))
+        .thenThrow(new QueryTimeoutException("timeout"))
+        .thenReturn(1);
+    downloadCounter.increment(1L);
+    downloadCounter.flush();
+    downloadCounter.increment(1L);
+
+    downloadCounter.flush();
+
+    verify(entryRepository).addDownloads(2, List.of(1L));
+  }
+
+  private void recordWrites() {
+    when(entryRepository.addDownloads(anyInt(), anyCollection())).thenAnswer(invocation -> {
+      int count = invocation.getArgument(0);
+      Collection<Long> ids = invocation.getArgument(1);
+      ids.forEach(id -> written.merge(id, (long) count, Long::sum));
+      return ids.size();
+    });
+  }
+}
@@ -18,24 +18,29 @@ package de.gematik.kim.kas.service;
 
 import static de.gematik.kim.kas.service.auth.AuthStrategy.MAIL;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import de.gematik.kim.kas.controller.FileController;
-import de.gematik.kim.kas.db.Entry;
+import de.gematik.kim.kas.db.DownloadGrant;
 import de.gematik.kim.kas.db.EntryRepository;
+import de.gematik.kim.kas.model.Attachment;
+import de.gematik.kim.kas.storage.StorageObjectResource;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.time.LocalDateTime;
-import java.util.ArrayList;
 import java.util.Optional;
-import org.assertj.core.util.Lists;
 import org.jboss.logging.MDC;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
 import org.springframework.expression.AccessException;
 
 @SpringBootTest(classes = FileLoadService.class)
@@ -43,10 +48,13 @@ class FileLoadServiceTest {
 
   public static final String TEST_OWNER_MAIL = "some@owner.de";
   public static final String TEST_FILE_NAME = "SomeFileName";
+  private static final Long ENTRY_ID = 42L;
   @MockBean
   private FileController fileController;
   @MockBean
   private EntryRepository er;
+  @MockBean
+  private AttachmentIdFilter attachmentIdFilter;
   private static final String TEST_RECEIVER_MAIL = "some@gematik.test";
 
   @Autowired
@@ -55,10 +63,11 @@ class FileLoadServiceTest {
   @Test
   public void noEntryFoundAndExpectFileNotFoundException() {
     String fileName = TEST_FILE_NAME;
-    when(er.findEntryByFileName(fileName)).thenReturn(Optional.empty());
+    when(er.findDownloadGrant(fileName, "someRecipient")).thenReturn(Optional.empty());
     FileNotFoundException ex = assertThrows(FileNotFoundException.class,
         () -> underTest.loadFile(fileName, "someRecipient"));
     assertEquals("No entry found for SomeFileName", ex.getMessage());
+    verify(attachmentIdFilter).recordFalsePositive();
   }
 
   @Test
@@ -67,16 +76,14 @@ class FileLoadServiceTest {
 
     File f = new File(fileName);
 
-    Entry entry = Entry.builder()
-        .fileName(fileName)
-        .owner(TEST_OWNER_MAIL)
-        .recipients(Lists.list(TEST_RECEIVER_MAIL))
-        .deleteTime(LocalDateTime.now().plusDays(30))
-        .build();
-    when(er.findEntryByFileName(fileName)).thenReturn(Optional.of(entry));
-    when(fileController.getFile(fileName, entry.getOwner())).thenReturn(f);
-    File loadedFile = underTest.loadFile(fileName, TEST_RECEIVER_MAIL);
-    assertEquals(f.getName(), loadedFile.getName());
+    when(er.findDownloadGrant(fileName, TEST_RECEIVER_MAIL)).thenReturn(
+        Optional.of(grant(true, "SomeEtag")));
+    when(fileController.getFile("someATownerPUNKTde/" + fileName)).thenReturn(
+        new FileSystemResource(f));
+    Attachment attachment = underTest.loadFile(fileName, TEST_RECEIVER_MAIL);
+    assertEquals(f.getName(), attachment.getContent().getFilename());
+    assertEquals("SomeEtag", attachment.getEtag());
+    assertEquals(ENTRY_ID, attachment.getId());
   }
 
   @Test
@@ -85,16 +92,37 @@ class FileLoadServiceTest {
 
     File f = new File(fileName);
 
-    Entry entry = Entry.builder()
-        .fileName(fileName)
-        .owner(TEST_OWNER_MAIL)
-        .recipients(new ArrayList<>())
-        .deleteTime(LocalDateTime.now().plusDays(30))
-        .build();
-    when(er.findEntryByFileName(fileName)).thenReturn(Optional.of(entry));
-    when(fileController.getFile(fileName, entry.getOwner())).thenReturn(f);
-    File loadedFile = underTest.loadFile(fileName, TEST_OWNER_MAIL);
-    assertEquals(f.getName(), loadedFile.getName());
+    when(er.findDownloadGrant(fileName, TEST_OWNER_MAIL)).thenReturn(
+        Optional.of(grant(true, null, "some/path/" + fileName)));
+    when(fileController.getFile("some/path/" + fileName)).thenReturn(new FileSystemResource(f));
+    Resource loadedFile = underTest.loadFile(fileName, TEST_OWNER_MAIL).getContent();
+    assertEquals(f.getName(), loadedFile.getFilename());
+  }
+
+  @Test
+  public void getRemoteFileWithoutLocalFile() throws AccessException, IOException {
+    Resource remote = new StorageObjectResource(null, "some/path/" + TEST_FILE_NAME, 10);
+
+    when(er.findDownloadGrant(TEST_FILE_NAME, TEST_OWNER_MAIL)).thenReturn(
+        Optional.of(grant(true, null, "some/path/" + TEST_FILE_NAME)));
+    when(fileController.getFile("some/path/" + TEST_FILE_NAME)).thenReturn(remote);
+    Attachment attachment = underTest.loadFile(TEST_FILE_NAME, TEST_OWNER_MAIL);
+    assertEquals(remote, attachment.getContent());
+    assertNull(attachment.getFile());
+  }
+
+  @Test
+  public void getRegionOfSegmentForSegmentEntry() throws AccessException, IOException {
+    File segment = new File("000000000003.seg");
+
+    when(er.findDownloadGrant(TEST_FILE_NAME, TEST_OWNER_MAIL)).thenReturn(
+        Optional.of(grant(true, null, null, 3L, 120L)));
+    when(fileController.getSegment(3L)).thenReturn(segment);
+    Attachment attachment = underTest.loadFile(TEST_FILE_NAME, TEST_OWNER_MAIL);
+    assertEquals(segment, attachment.getFile());
+    assertEquals(120L, attachment.getOffset());
+    assertEquals(10L, attachment.getContent().contentLength());
+    verify(fileController, never()).getFile(any());
   }
 
   @Test
@@ -102,15 +130,63 @@ class FileLoadServiceTest {
     MDC.put(MAIL, TEST_RECEIVER_MAIL);
     String fileName = TEST_FILE_NAME;
 
-    Entry entry = Entry.builder()
-        .fileName(fileName)
-        .owner(TEST_OWNER_MAIL)
-        .recipients(new ArrayList<>())
-        .deleteTime(LocalDateTime.now().plusDays(30))
-        .build();
-    when(er.findEntryByFileName(fileName)).thenReturn(Optional.of(entry));
+    when(er.findDownloadGrant(fileName, TEST_RECEIVER_MAIL)).thenReturn(
+        Optional.of(grant(false, null)));
     AccessException ex = assertThrows(AccessException.class,
         () -> underTest.loadFile(fileName, TEST_RECEIVER_MAIL));
     assertEquals(TEST_RECEIVER_MAIL + " is no allowed recipient!", ex.getMessage());
   }
+
+  private static DownloadGrant grant(boolean allowed, String etag) {
+    return grant(allowed, etag, null);
+  }
+
+  private static DownloadGrant grant(boolean allowed, String etag, String path) {
+    return grant(allowed, etag, path, null, null);
+  }
+
+  private static DownloadGrant grant(boolean allowed, String etag, String path, Long segment,
+      Long segmentOffset) {
+    return new DownloadGrant() {
+      @Override
+      public Long getId() {
+        return ENTRY_ID;
+      }
+
+      @Override
+      public String getOwner() {
+        return TEST_OWNER_MAIL;
+      }
+
+      @Override
+      public String getEtag() {
+        return etag;
+      }
+
+      @Override
+      public String getPath() {
+        return path;
+      }
+
+      @Override
+      public Long getSize() {
+        return 10L;
+      }
+
+      @Override
+      public Long getSegment() {
+        return segment;
+      }
+
+      @Override
+      public Long getSegmentOffset() {
+        return segmentOffset;
+      }
+
+      @Override
+      public boolean isAllowed() {
+        return allowed;
+      }
+    };
+  }
 }
@@ -18,23 +18,34 @@ package de.gematik.kim.kas.service;
 
 import static de.gematik.kim.kas.service.auth.AuthStrategy.MAIL;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import de.gematik.kim.kas.controller.FileController;
 import de.gematik.kim.kas.controller.MaxMailSizeController;
+import de.gematik.kim.kas.controller.SegmentLocation;
+import de.gematik.kim.kas.controller.StagedFile;
 import de.gematik.kim.kas.controller.UrlController;
+import de.gematik.kim.kas.db.Entry;
 import de.gematik.kim.kas.db.EntryRepository;
+import de.gematik.kim.kas.exceptions.CouldNotSaveException;
 import de.gematik.kim.kas.exceptions.FileToLargeException;
 import de.gematik.kim.kas.exceptions.InvalidEmailFoundException;
 import de.gematik.kim.kas.exceptions.NotEnoughSpaceException;
 import de.gematik.kim.kas.exceptions.TimeParseException;
+import de.gematik.kim.kas.service.cron.ExpiryScheduler;
+import java.io.FileNotFoundException;
+import java.nio.file.Path;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
@@ -43,6 +54,7 @@ import java.util.Locale;
 import lombok.SneakyThrows;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
@@ -69,6 +81,8 @@ class FileSaveServiceTest {
   private String validTime = ZonedDateTime.now(ZoneId.of("Europe/Paris"))
       .plusMinutes(30)
       .format(DateTimeFormatter.ofPattern("dd MMM yyyy HH:mm:ss zzz", Locale.GERMAN));
+  private StagedFile stagedFile = new StagedFile(Path.of("target/test-storage/staged.part"), 10,
+      "d2f1c0ffee");
   @MockBean
   private MaxMailSizeController maxMailSizeController;
   @MockBean
@@ -78,7 +92,15 @@ class FileSaveServiceTest {
   @MockBean
   private UrlController urlController;
   @MockBean
-  private AmClient amClient;
+  private QuotaLedger quotaLedger;
+  @MockBean
+  private QuotaReleaseQueue quotaReleaseQueue;
+  @MockBean
+  private ExpiryScheduler expiryScheduler;
+  @MockBean
+  private AttachmentCache attachmentCache;
+  @MockBean
+  private AttachmentIdFilter attachmentIdFilter;
   @Autowired
   private FileSaveService underTest;
 
@@ -139,20 +161,72 @@ class FileSaveServiceTest {
   @Test
   @SneakyThrows
   public void sendFileOverQuotaAndExpectNotEnoughSpaceException() {
-    when(amClient.checkAndGetRemainingQuota(anyLong(), anyString())).thenThrow(
-        NotEnoughSpaceException.class);
+    doThrow(NotEnoughSpaceException.class).when(quotaLedger).reserve(anyString(), anyLong());
     when(maxMailSizeController.getMaxMailSize()).thenReturn(100000l);
+    when(fileController.stageFile(any(), anyLong())).thenReturn(stagedFile);
     assertThrows(NotEnoughSpaceException.class,
         () -> underTest.saveFile(messageId, rightFormatedEmailList, validTime, testFile));
+    verify(fileController).discardFile(stagedFile);
+    verify(er, never()).save(any());
+  }
+
+  @Test
+  @SneakyThrows
+  public void failToPublishFileAndExpectEntryAndQuotaToBeReleased() {
+    when(maxMailSizeController.getMaxMailSize()).thenReturn(100000l);
+    when(fileController.stageFile(any(), anyLong())).thenReturn(stagedFile);
+    doThrow(new CouldNotSaveException("Something went wrong while saving file."))
+        .when(fileController).publishFile(any(), any());
+    assertThrows(CouldNotSaveException.class,
+        () -> underTest.saveFile(messageId, rightFormatedEmailList, validTime, testFile));
+    verify(fileController).discardFile(stagedFile);
+    ArgumentCaptor<Entry> entry = ArgumentCaptor.forClass(Entry.class);
+    verify(er).save(entry.capture());
+    ArgumentCaptor<Runnable> release = ArgumentCaptor.forClass(Runnable.class);
+    verify(quotaReleaseQueue).enqueue(eq(List.of("mail@gematik.de")), release.capture());
+    verify(er, never()).delete(any());
+    release.getValue().run();
+    verify(er).delete(entry.getValue());
+    verify(expiryScheduler, never()).schedule(any(), any());
   }
 
   @Test
   @SneakyThrows
   public void validAddAttachmentBodyAndSuccess() {
     when(maxMailSizeController.getMaxMailSize()).thenReturn(100000l);
+    when(fileController.stageFile(any(), anyLong())).thenReturn(stagedFile);
     underTest.saveFile(messageId, rightFormatedEmailList, validTime, testFile);
+    verify(quotaLedger, times(1)).reserve("mail@gematik.de", stagedFile.getSize());
     verify(er, times(1)).save(any());
-    verify(fileController, times(1)).storeFile(any(), any());
+    verify(fileController, times(1)).publishFile(eq(stagedFile), any());
     verify(urlController, times(1)).getFullUrl(any(), any());
   }
+
+  @Test
+  @SneakyThrows
+  public void failToAdmitToCacheAndExpectUploadToSucceed() {
+    when(maxMailSizeController.getMaxMailSize()).thenReturn(100000l);
+    when(fileController.stageFile(any(), anyLong())).thenReturn(stagedFile);
+    when(attachmentCache.isEnabled()).thenReturn(true);
+    when(fileController.getFile(any())).thenThrow(new FileNotFoundException("gone"));
+    underTest.saveFile(messageId, rightFormatedEmailList, validTime, testFile);
+    verify(attachmentCache, never()).admit(any(), any());
+    verify(urlController, times(1)).getFullUrl(any(), any());
+  }
+
+  @Test
+  @SneakyThrows
+  public void smallAttachmentIsAppendedToSegment() {
+    when(maxMailSizeController.getMaxMailSize()).thenReturn(100000l);
+    when(fileController.stageFile(any(), anyLong())).thenReturn(stagedFile);
+    when(fileController.fitsSegment(stagedFile)).thenReturn(true);
+    when(fileController.publishToSegment(stagedFile)).thenReturn(new SegmentLocation(3, 120));
+    underTest.saveFile(messageId, rightFormatedEmailList, validTime, testFile);
+    ArgumentCaptor<Entry> entry = ArgumentCaptor.forClass(Entry.class);
+    verify(er).save(entry.capture());
+    assertNull(entry.getValue().getPath());
+    assertEquals(3L, entry.getValue().getSegment());
+    assertEquals(120L, entry.getValue().getSegmentOffset());
+    verify(fileController, never()).publishFile(any(), any());
+  }
 }
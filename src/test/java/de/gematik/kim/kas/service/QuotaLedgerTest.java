@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import de.gematik.kim.kas.db.EntryRepository;
+import de.gematik.kim.kas.db.OwnerUsage;
+import de.gematik.kim.kas.db.QuotaLease;
+import de.gematik.kim.kas.db.QuotaLeaseRepository;
+import de.gematik.kim.kas.exceptions.NotEnoughSpaceException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.naming.CommunicationException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.transaction.PlatformTransactionManager;
+
+@ExtendWith(MockitoExtension.class)
+class QuotaLedgerTest {
+
+  private static final String OWNER = "owner@gematik.test";
+  private static final long LEASE_SIZE = 100;
+
+  @Mock
+  private AmClient amClient;
+  @Mock
+  private EntryRepository entryRepository;
+  @Mock
+  private QuotaLeaseRepository leaseRepository;
+  @Mock
+  private PlatformTransactionManager transactionManager;
+  private MeterRegistry meterRegistry;
+
+  @BeforeEach
+  void setUp() {
+    meterRegistry = new SimpleMeterRegistry();
+  }
+
+  @Test
+  void reserveTwiceAndExpectOneCallToAccountManager() throws Exception {
+    QuotaLedger ledger = quotaLedger(LEASE_SIZE, 60000);
+    ledger.reserve(OWNER, 30);
+    ledger.reserve(OWNER, 30);
+    verify(amClient, times(1)).checkAndGetRemainingQuota(LEASE_SIZE, OWNER);
+    verify(leaseRepository, times(1)).save(any());
+    assertEquals(1, count("lease"));
+    assertEquals(1, count("am"));
+  }
+
+  @Test
+  void reserveBeyondLeaseAndExpectNextChunk() throws Exception {
+    QuotaLedger ledger = quotaLedger(LEASE_SIZE, 60000);
+    ledger.reserve(OWNER, 80);
+    ledger.reserve(OWNER, 30);
+    ledger.reserve(OWNER, 150);
+    verify(amClient, times(2)).checkAndGetRemainingQuota(LEASE_SIZE, OWNER);
+    verify(amClient).checkAndGetRemainingQuota(150, OWNER);
+    verify(leaseRepository, times(1)).save(any());
+  }
+
+  @Test
+  void reserveWithLittleQuotaLeftAndExpectExactReservation() throws Exception {
+    doThrow(NotEnoughSpaceException.class).when(amClient)
+        .checkAndGetRemainingQuota(LEASE_SIZE, OWNER);
+    QuotaLedger ledger = quotaLedger(LEASE_SIZE, 60000);
+    ledger.reserve(OWNER, 30);
+    verify(amClient).checkAndGetRemainingQuota(30, OWNER);
+  }
+
+  @Test
+  void releaseAndExpectLeaseToBeReturned() throws Exception {
+    QuotaLedger ledger = quotaLedger(LEASE_SIZE, 60000);
+    ledger.reserve(OWNER, 30);
+    ledger.release(OWNER, 10);
+    verify(amClient).releaseQuota(10, OWNER);
+    verify(leaseRepository).deleteByOwner(OWNER);
+    ledger.reserve(OWNER, 30);
+    verify(amClient, times(2)).checkAndGetRemainingQuota(LEASE_SIZE, OWNER);
+  }
+
+  @Test
+  void expireLeaseAndExpectUsedSpaceToBeReported() throws Exception {
+    when(entryRepository.sumSizeByOwnerInAndDeletedFalse(eq(List.of(OWNER))))
+        .thenReturn(List.of(usage(30)));
+    QuotaLedger ledger = quotaLedger(LEASE_SIZE, 0);
+    ledger.reserve(OWNER, 30);
+    ledger.returnExpiredLeases();
+    verify(amClient).releaseQuota(30, OWNER);
+    verify(leaseRepository).deleteByOwner(OWNER);
+  }
+
+  @Test
+  void releaseAndExpectLeaseToBeAvailableWhileAccountManagerIsCalled() throws Exception {
+    QuotaLedger ledger = quotaLedger(LEASE_SIZE, 60000);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      ledger.reserve(OWNER, 30);
+      doAnswer(invocation -> executor.submit(() -> {
+        ledger.returnExpiredLeases();
+        ledger.reserve(OWNER, 30);
+        return null;
+      }).get(5, TimeUnit.SECONDS)).when(amClient).releaseQuota(10, OWNER);
+      ledger.release(OWNER, 10);
+    } finally {
+      executor.shutdownNow();
+    }
+    verify(amClient, times(2)).checkAndGetRemainingQuota(LEASE_SIZE, OWNER);
+  }
+
+  @Test
+  void retryFailedReturnOfLeaseOnNextRun() throws Exception {
+    when(amClient.releaseQuota(0, OWNER)).thenThrow(CommunicationException.class).thenReturn("");
+    QuotaLedger ledger = quotaLedger(LEASE_SIZE, 0);
+    ledger.reserve(OWNER, 30);
+    ledger.returnExpiredLeases();
+    verify(leaseRepository, never()).deleteByOwner(OWNER);
+    ledger.returnExpiredLeases();
+    verify(amClient, times(2)).releaseQuota(0, OWNER);
+    verify(leaseRepository).deleteByOwner(OWNER);
+  }
+
+  @Test
+  void returnExpiredLeasesAndKeepLeaseRecordsOfOtherInstances() throws Exception {
+    QuotaLedger ledger = quotaLedger(LEASE_SIZE, 0);
+    ledger.returnExpiredLeases();
+    verify(leaseRepository, never()).findAll();
+    verify(amClient, never()).releaseQuota(anyLong(), any());
+  }
+
+  @Test
+  void reconcileLeftOverLeaseRecords() throws Exception {
+    when(leaseRepository.findAll()).thenReturn(
+        List.of(new QuotaLease(OWNER, LocalDateTime.now())));
+    QuotaLedger ledger = quotaLedger(LEASE_SIZE, 60000);
+    ledger.reconcileLeaseRecords();
+    verify(amClient).releaseQuota(0, OWNER);
+    verify(leaseRepository).deleteByOwner(OWNER);
+  }
+
+  @Test
+  void reserveWithoutLeasesAndExpectCallEveryTime() throws Exception {
+    QuotaLedger ledger = quotaLedger(0, 60000);
+    ledger.reserve(OWNER, 30);
+    ledger.reserve(OWNER, 30);
+    verify(amClient, times(2)).checkAndGetRemainingQuota(30, OWNER);
+    verify(leaseRepository, times(0)).save(any());
+  }
+
+  @Test
+  void reserveConcurrentlyAndExpectNoByteToBeLost() throws Exception {
+    QuotaLedger ledger = quotaLedger(1000, 60000);
+    ExecutorService executor = Executors.newFixedThreadPool(16);
+    try {
+      List<Future<?>> results = new ArrayList<>();
+      for (int t = 0; t < 16; t++) {
+        results.add(executor.submit(() -> {
+          for (int i = 0; i < 1000; i++) {
+            ledger.reserve(OWNER, 1);
+          }
+          return null;
+        }));
+      }
+      for (Future<?> result : results) {
+        result.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    verify(amClient, times(16)).checkAndGetRemainingQuota(anyLong(), eq(OWNER));
+  }
+
+  private QuotaLedger quotaLedger(long leaseSize, long leaseTtl) {
+    return new QuotaLedger(amClient, entryRepository, leaseRepository, transactionManager,
+        leaseSize, leaseTtl, meterRegistry);
+  }
+
+  private double count(String source) {
+    return meterRegistry.counter("kas.quota.reservations", "source", source).count();
+  }
+
+  private static OwnerUsage usage(long usedSpace) {
+    return new OwnerUsage() {
+      @Override
+      public String getOwner() {
+        return OWNER;
+      }
+
+      @Override
+      public long getUsedSpace() {
+        return usedSpace;
+      }
+    };
+  }
+}
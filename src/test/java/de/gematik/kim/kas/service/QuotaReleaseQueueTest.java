@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import de.gematik.kim.kas.db.EntryRepository;
+import de.gematik.kim.kas.db.OwnerUsage;
+import de.gematik.kim.kas.db.PendingQuotaRelease;
+import de.gematik.kim.kas.db.PendingQuotaReleaseRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.naming.CommunicationException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.transaction.PlatformTransactionManager;
+
+@ExtendWith(MockitoExtension.class)
+class QuotaReleaseQueueTest {
+
+  private static final String OWNER = "owner@gematik.test";
+  private static final String OTHER_OWNER = "other_owner@gematik.test";
+  private static final long BACKOFF = 1000;
+
+  @Mock
+  private PendingQuotaReleaseRepository releaseRepository;
+  @Mock
+  private EntryRepository entryRepository;
+  @Mock
+  private QuotaLedger quotaLedger;
+  @Mock
+  private PlatformTransactionManager transactionManager;
+  private MeterRegistry meterRegistry;
+  private QuotaReleaseQueue queue;
+
+  @BeforeEach
+  void setUp() {
+    meterRegistry = new SimpleMeterRegistry();
+    queue = new QuotaReleaseQueue(releaseRepository, entryRepository, quotaLedger,
+        transactionManager, 10, BACKOFF, 60000, meterRegistry);
+  }
+
+  @Test
+  void enqueueAndExpectChangeAndNewOwnersToBeRecorded() {
+    AtomicBoolean changed = new AtomicBoolean();
+    when(releaseRepository.increaseRevision(List.of(OWNER, OTHER_OWNER))).thenReturn(1);
+    when(releaseRepository.findAllById(List.of(OWNER, OTHER_OWNER))).thenReturn(
+        List.of(new PendingQuotaRelease(OWNER, 1, 0, LocalDateTime.now())));
+
+    queue.enqueue(List.of(OWNER, OTHER_OWNER), () -> changed.set(true));
+
+    assertTrue(changed.get());
+    ArgumentCaptor<List<PendingQuotaRelease>> saved = ArgumentCaptor.forClass(List.class);
+    verify(releaseRepository).saveAll(saved.capture());
+    assertEquals(1, saved.getValue().size());
+    assertEquals(OTHER_OWNER, saved.getValue().get(0).getOwner());
+  }
+
+  @Test
+  void drainAndExpectOneAggregateQueryAndCoalescedReports() throws Exception {
+    when(releaseRepository.findByDueBeforeOrderByDueAsc(any(), any())).thenReturn(List.of(
+        new PendingQuotaRelease(OWNER, 3, 0, LocalDateTime.now()),
+        new PendingQuotaRelease(OTHER_OWNER, 0, 0, LocalDateTime.now())));
+    when(entryRepository.sumSizeByOwnerInAndDeletedFalse(List.of(OWNER, OTHER_OWNER)))
+        .thenReturn(List.of(usage(OWNER, 42)));
+
+    queue.drain();
+
+    verify(quotaLedger).release(OWNER, 42);
+    verify(quotaLedger).release(OTHER_OWNER, 0);
+    verify(releaseRepository).deleteByOwnerAndRevision(OWNER, 3);
+    verify(releaseRepository).deleteByOwnerAndRevision(OTHER_OWNER, 0);
+    verify(entryRepository, times(1)).sumSizeByOwnerInAndDeletedFalse(any());
+    assertEquals(2, meterRegistry.get("kas.quota.release.reports").tag("result", "success")
+        .counter().count());
+  }
+
+  @Test
+  void drainWithUnavailableAccountManagerAndExpectBackoff() throws Exception {
+    when(releaseRepository.findByDueBeforeOrderByDueAsc(any(), any())).thenReturn(List.of(
+        new PendingQuotaRelease(OWNER, 0, 2, LocalDateTime.now())));
+    doThrow(CommunicationException.class).when(quotaLedger).release(anyString(), anyLong());
+    LocalDateTime before = LocalDateTime.now();
+
+    queue.drain();
+
+    ArgumentCaptor<LocalDateTime> due = ArgumentCaptor.forClass(LocalDateTime.class);
+    verify(releaseRepository).postpone(eq(OWNER), eq(3), due.capture());
+    verify(releaseRepository, never()).deleteByOwnerAndRevision(anyString(), anyLong());
+    assertTrue(!due.getValue().isBefore(before.plusNanos(BACKOFF * 2 * 1000000)),
+        "Third attempt should wait at least half of " + BACKOFF * 4 + " ms");
+  }
+
+  private static OwnerUsage usage(String owner, long usedSpace) {
+    return new OwnerUsage() {
+      @Override
+      public String getOwner() {
+        return owner;
+      }
+
+      @Override
+      public long getUsedSpace() {
+        return usedSpace;
+      }
+    };
+  }
+}
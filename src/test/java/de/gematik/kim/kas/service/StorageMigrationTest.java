@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import de.gematik.kim.kas.controller.FileController;
+import de.gematik.kim.kas.controller.SegmentStore;
+import de.gematik.kim.kas.controller.StorageLayout;
+import de.gematik.kim.kas.db.EntryLocation;
+import de.gematik.kim.kas.db.EntryRepository;
+import de.gematik.kim.kas.storage.FileSystemStorageBackend;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+class StorageMigrationTest {
+
+  private static final String OWNER = "owner@gematik.test";
+  private static final String OWNER_PATH = "ownerATgematikPUNKTtest";
+
+  @TempDir
+  Path storage;
+  @Mock
+  private EntryRepository entryRepository;
+  private MeterRegistry meterRegistry;
+  private StorageMigration migration;
+
+  @BeforeEach
+  void setUp() {
+    meterRegistry = new SimpleMeterRegistry();
+    FileController fileController = new FileController(storage.toString(),
+        StorageLayout.SHARDED,
+        new SegmentStore(storage.toString(), 0, 0, new AtomicLong()::getAndIncrement),
+        new FileSystemStorageBackend(storage.toString()));
+    migration = new StorageMigration(entryRepository, fileController, false, 2, 2,
+        meterRegistry);
+  }
+
+  @AfterEach
+  void tearDown() {
+    migration.shutdown();
+  }
+
+  @Test
+  void moveFlatFilesIntoConfiguredLayoutPageByPage() throws IOException {
+    List<EntryLocation> first = List.of(location(1L, "first"), location(2L, "second"));
+    List<EntryLocation> second = List.of(location(3L, "third"));
+    for (EntryLocation location : List.of(first.get(0), first.get(1), second.get(0))) {
+      write(OWNER_PATH + "/" + location.getFileName());
+    }
+    when(entryRepository.findLocations(eq(0L), any())).thenReturn(first);
+    when(entryRepository.findLocations(eq(2L), any())).thenReturn(second);
+    when(entryRepository.updatePath(any(), eq(""), any())).thenReturn(1);
+
+    migration.migrate();
+    migration.deleteMovedFiles();
+    migration.deleteMovedFiles();
+
+    for (String fileName : List.of("first", "second", "third")) {
+      String path = StorageLayout.SHARDED.relativePath(OWNER, fileName);
+      assertTrue(Files.exists(storage.resolve(path)), path);
+      assertFalse(Files.exists(storage.resolve(OWNER_PATH + "/" + fileName)), fileName);
+    }
+    verify(entryRepository).updatePath(1L, "",
+        StorageLayout.SHARDED.relativePath(OWNER, "first"));
+    assertEquals(3,
+        meterRegistry.counter("kas.storage.migration.files", "result", "moved").count());
+  }
+
+  @Test
+  void deleteOldPathOneCleanupRunAfterTheMove() throws IOException {
+    write(OWNER_PATH + "/moved");
+    when(entryRepository.findLocations(eq(0L), any()))
+        .thenReturn(List.of(location(1L, "moved")));
+    when(entryRepository.updatePath(any(), eq(""), any())).thenReturn(1);
+
+    migration.migrate();
+    assertTrue(Files.exists(storage.resolve(OWNER_PATH + "/moved")));
+    migration.deleteMovedFiles();
+    assertTrue(Files.exists(storage.resolve(OWNER_PATH + "/moved")));
+    migration.deleteMovedFiles();
+
+    assertFalse(Files.exists(storage.resolve(OWNER_PATH + "/moved")));
+    assertTrue(Files.exists(
+        storage.resolve(StorageLayout.SHARDED.relativePath(OWNER, "moved"))));
+  }
+
+  @Test
+  void deletePendingOldPathsOnShutdown() throws IOException {
+    write(OWNER_PATH + "/moved");
+    when(entryRepository.findLocations(eq(0L), any()))
+        .thenReturn(List.of(location(1L, "moved")));
+    when(entryRepository.updatePath(any(), eq(""), any())).thenReturn(1);
+
+    migration.migrate();
+    migration.shutdown();
+
+    assertFalse(Files.exists(storage.resolve(OWNER_PATH + "/moved")));
+  }
+
+  @Test
+  void keepOldFileIfEntryWasDeletedMeanwhile() throws IOException {
+    write(OWNER_PATH + "/deleted");
+    when(entryRepository.findLocations(eq(0L), any()))
+        .thenReturn(List.of(location(1L, "deleted")));
+    when(entryRepository.updatePath(any(), any(), any())).thenReturn(0);
+
+    migration.migrate();
+
+    assertTrue(Files.exists(storage.resolve(OWNER_PATH + "/deleted")));
+    assertFalse(Files.exists(
+        storage.resolve(StorageLayout.SHARDED.relativePath(OWNER, "deleted"))));
+  }
+
+  @Test
+  void countMissingFilesAsFailed() {
+    when(entryRepository.findLocations(eq(0L), any()))
+        .thenReturn(List.of(location(1L, "missing")));
+
+    migration.migrate();
+
+    verify(entryRepository, never()).updatePath(any(), any(), any());
+    assertEquals(1,
+        meterRegistry.counter("kas.storage.migration.files", "result", "failed").count());
+  }
+
+  private void write(String path) throws IOException {
+    Path file = storage.resolve(path);
+    Files.createDirectories(file.getParent());
+    Files.writeString(file, path);
+  }
+
+  private static EntryLocation location(Long id, String fileName) {
+    return new EntryLocation() {
+      @Override
+      public Long getId() {
+        return id;
+      }
+
+      @Override
+      public String getOwner() {
+        return OWNER;
+      }
+
+      @Override
+      public String getFileName() {
+        return fileName;
+      }
+
+      @Override
+      public String getPath() {
+        return null;
+      }
+    };
+  }
+}
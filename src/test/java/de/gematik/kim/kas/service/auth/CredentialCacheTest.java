@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.service.auth;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import de.gematik.kim.kas.service.AmClient;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.naming.AuthenticationException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+@ExtendWith(MockitoExtension.class)
+class CredentialCacheTest {
+
+  private static final String USER = "user@gematik.test";
+  private static final String PASSWORD = "secret";
+
+  @Mock
+  private AmClient amClient;
+  private MeterRegistry meterRegistry;
+  private CredentialCache credentialCache;
+
+  @BeforeEach
+  void setUp() {
+    meterRegistry = new SimpleMeterRegistry();
+    credentialCache = new CredentialCache(amClient, 60000, 60000, 100, meterRegistry);
+  }
+
+  @Test
+  void verifyTwiceAndExpectOneCallToAccountManager() throws AuthenticationException {
+    credentialCache.verify(USER, PASSWORD);
+    credentialCache.verify(USER, PASSWORD);
+    verify(amClient, times(1)).basicAuth(USER, PASSWORD);
+    assertEquals(1, count("hit"));
+    assertEquals(1, count("miss"));
+  }
+
+  @Test
+  void verifyOtherPasswordAndExpectNewCall() throws AuthenticationException {
+    credentialCache.verify(USER, PASSWORD);
+    credentialCache.verify(USER, "other");
+    verify(amClient).basicAuth(USER, PASSWORD);
+    verify(amClient).basicAuth(USER, "other");
+  }
+
+  @Test
+  void verifyRejectedCredentialsAndExpectCachedRejection() throws AuthenticationException {
+    AuthenticationException rejected = new AuthenticationException("Authorization failed");
+    rejected.setRootCause(HttpClientErrorException.create(HttpStatus.FORBIDDEN, "Forbidden",
+        null, null, null));
+    doThrow(rejected).when(amClient).basicAuth(USER, PASSWORD);
+    assertThrows(AuthenticationException.class, () -> credentialCache.verify(USER, PASSWORD));
+    assertThrows(AuthenticationException.class, () -> credentialCache.verify(USER, PASSWORD));
+    verify(amClient, times(1)).basicAuth(USER, PASSWORD);
+  }
+
+  @Test
+  void verifyWhileAccountManagerIsDownAndExpectNoCaching() throws AuthenticationException {
+    AuthenticationException unreachable = new AuthenticationException("Authorization failed");
+    unreachable.setRootCause(new ResourceAccessException("Connection refused"));
+    doThrow(unreachable).doNothing().when(amClient).basicAuth(USER, PASSWORD);
+    assertThrows(AuthenticationException.class, () -> credentialCache.verify(USER, PASSWORD));
+    credentialCache.verify(USER, PASSWORD);
+    verify(amClient, times(2)).basicAuth(USER, PASSWORD);
+  }
+
+  @Test
+  void verifyWithDisabledCacheAndExpectCallEveryTime() throws AuthenticationException {
+    credentialCache = new CredentialCache(amClient, 0, 0, 100, meterRegistry);
+    credentialCache.verify(USER, PASSWORD);
+    credentialCache.verify(USER, PASSWORD);
+    verify(amClient, times(2)).basicAuth(USER, PASSWORD);
+  }
+
+  @Test
+  void verifyConcurrentlyAndExpectSingleCall() throws Exception {
+    CountDownLatch called = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    doAnswer(invocation -> {
+      called.countDown();
+      release.await(5, TimeUnit.SECONDS);
+      return null;
+    }).when(amClient).basicAuth(any(), any());
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> results = new ArrayList<>();
+      results.add(executor.submit(() -> verifyUnchecked()));
+      called.await(5, TimeUnit.SECONDS);
+      for (int i = 0; i < 7; i++) {
+        results.add(executor.submit(() -> verifyUnchecked()));
+      }
+      Thread.sleep(100);
+      release.countDown();
+      for (Future<?> result : results) {
+        result.get(5, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    verify(amClient, times(1)).basicAuth(USER, PASSWORD);
+    assertEquals(7, count("hit"));
+  }
+
+  @Test
+  void failVerificationWithErrorAndExpectWaitingRequestsToFail() throws Exception {
+    CountDownLatch called = new CountDownLatch(1);
+    CountDownLatch fail = new CountDownLatch(1);
+    doAnswer(invocation -> {
+      called.countDown();
+      fail.await(5, TimeUnit.SECONDS);
+      throw new StackOverflowError();
+    }).doNothing().when(amClient).basicAuth(any(), any());
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<?> first = executor.submit(() -> verifyUnchecked());
+      called.await(5, TimeUnit.SECONDS);
+      Future<?> waiting = executor.submit(() -> verifyUnchecked());
+      Thread.sleep(100);
+      fail.countDown();
+      ExecutionException firstFailure = assertThrows(ExecutionException.class,
+          () -> first.get(5, TimeUnit.SECONDS));
+      assertInstanceOf(StackOverflowError.class, firstFailure.getCause());
+      ExecutionException waitingFailure = assertThrows(ExecutionException.class,
+          () -> waiting.get(5, TimeUnit.SECONDS));
+      assertInstanceOf(IllegalStateException.class, waitingFailure.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+    credentialCache.verify(USER, PASSWORD);
+    verify(amClient, times(2)).basicAuth(USER, PASSWORD);
+  }
+
+  private Void verifyUnchecked() throws AuthenticationException {
+    credentialCache.verify(USER, PASSWORD);
+    return null;
+  }
+
+  private double count(String result) {
+    return meterRegistry.counter("kas.auth.cache.requests", "result", result).count();
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.service.cron;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+
+class AccessCheckerTest {
+
+  private static final int THREADS = 64;
+  private static final String RECIPIENT = "recipient@gematik.test";
+  private static final String RESOURCE = "SomeResource";
+  private static final long ONE_HOUR = 3600000;
+
+  private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  @Test
+  void reachLimitAndExpectRejection() {
+    AccessChecker accessChecker = accessChecker(ONE_HOUR, 3);
+    assertTrue(accessChecker.check(RECIPIENT, RESOURCE));
+    assertTrue(accessChecker.check(RECIPIENT, RESOURCE));
+    assertTrue(accessChecker.check(RECIPIENT, RESOURCE));
+    assertFalse(accessChecker.check(RECIPIENT, RESOURCE));
+    assertTrue(accessChecker.check("other@gematik.test", RESOURCE));
+    assertTrue(accessChecker.check(RECIPIENT, "OtherResource"));
+  }
+
+  @Test
+  void partialDownloadsAndExpectProportionalCount() {
+    AccessChecker accessChecker = accessChecker(ONE_HOUR, 1);
+    for (int i = 0; i < 10; i++) {
+      assertTrue(accessChecker.check(RECIPIENT, RESOURCE, 100, 1000));
+    }
+    assertFalse(accessChecker.check(RECIPIENT, RESOURCE, 100, 1000));
+  }
+
+  @Test
+  void checkAllowanceWithoutCountingADownload() {
+    AccessChecker accessChecker = accessChecker(ONE_HOUR, 1);
+    for (int i = 0; i < 10; i++) {
+      assertTrue(accessChecker.isAllowed(RECIPIENT, RESOURCE));
+    }
+    assertTrue(accessChecker.check(RECIPIENT, RESOURCE));
+    assertFalse(accessChecker.isAllowed(RECIPIENT, RESOURCE));
+  }
+
+  @Test
+  void keysOfDifferentSplitsAndExpectDifferentHashes() {
+    assertNotEquals(AccessChecker.key("ab", "c"), AccessChecker.key("a", "bc"));
+    assertEquals(AccessChecker.key(RECIPIENT, RESOURCE), AccessChecker.key(RECIPIENT, RESOURCE));
+  }
+
+  @Test
+  void windowPassedAndExpectRecordRemoved() {
+    AccessChecker accessChecker = accessChecker(50, 1);
+    assertTrue(accessChecker.check(RECIPIENT, RESOURCE));
+    assertFalse(accessChecker.check(RECIPIENT, RESOURCE));
+    await().atMost(2, TimeUnit.SECONDS).untilAsserted(() -> {
+      accessChecker.resetRequests();
+      assertEquals(0, accessChecker.getUserAccessCount().size());
+    });
+    assertEquals(1, meterRegistry.counter("kas.access.records.removed", "cause", "expired")
+        .count());
+    assertTrue(accessChecker.check(RECIPIENT, RESOURCE));
+  }
+
+  @Test
+  void accessedRecordAndExpectRecordKept() {
+    AccessChecker accessChecker = accessChecker(200, 100);
+    long end = System.currentTimeMillis() + 1000;
+    while (System.currentTimeMillis() < end) {
+      accessChecker.check(RECIPIENT, RESOURCE);
+      accessChecker.resetRequests();
+      assertEquals(1, accessChecker.getUserAccessCount().size());
+    }
+  }
+
+  @Test
+  void exceedMaxRecordsAndExpectEarliestRecordsRemoved() {
+    AccessChecker accessChecker = new AccessChecker(ONE_HOUR, 1, 100, meterRegistry);
+    for (int i = 0; i < 250; i++) {
+      assertTrue(accessChecker.check(RECIPIENT, RESOURCE + i));
+    }
+    assertEquals(100, accessChecker.getUserAccessCount().size());
+    assertEquals(150, meterRegistry.counter("kas.access.records.removed", "cause", "capacity")
+        .count());
+    assertEquals(100, meterRegistry.get("kas.access.records").gauge().value());
+    assertFalse(accessChecker.check(RECIPIENT, RESOURCE + 249));
+  }
+
+  @Test
+  @SneakyThrows
+  void concurrentChecksOnOneKeyAndExpectExactCount() {
+    int limit = 5000;
+    AccessChecker accessChecker = accessChecker(ONE_HOUR, limit);
+    AtomicLong allowed = new AtomicLong();
+    runConcurrently(thread -> {
+      for (int i = 0; i < 200; i++) {
+        if (accessChecker.check(RECIPIENT, RESOURCE)) {
+          allowed.incrementAndGet();
+        }
+      }
+    });
+    assertEquals(limit, allowed.get());
+  }
+
+  @Test
+  @SneakyThrows
+  void concurrentChecksWithResetAndExpectExactCountPerKey() {
+    int limit = 100;
+    AccessChecker accessChecker = accessChecker(ONE_HOUR, limit);
+    long[] allowed = new long[THREADS];
+    ExecutorService resetter = Executors.newSingleThreadExecutor();
+    Future<?> resets = resetter.submit(() -> {
+      while (!Thread.currentThread().isInterrupted()) {
+        accessChecker.resetRequests();
+      }
+    });
+    runConcurrently(thread -> {
+      for (int i = 0; i < 500; i++) {
+        if (accessChecker.check(RECIPIENT + thread, RESOURCE + (i % 4))) {
+          allowed[thread]++;
+        }
+      }
+    });
+    resets.cancel(true);
+    resetter.shutdown();
+    for (int thread = 0; thread < THREADS; thread++) {
+      assertEquals(4L * limit, allowed[thread], "Wrong count for thread " + thread);
+    }
+    assertEquals(4 * THREADS, accessChecker.getUserAccessCount().size());
+  }
+
+  private AccessChecker accessChecker(long keepRecordTime, long maxAttRequests) {
+    return new AccessChecker(keepRecordTime, maxAttRequests, 1000000, meterRegistry);
+  }
+
+  private void runConcurrently(ThreadTask task) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int thread = 0; thread < THREADS; thread++) {
+      int number = thread;
+      futures.add(executor.submit(() -> {
+        start.await();
+        task.run(number);
+        return null;
+      }));
+    }
+    start.countDown();
+    for (Future<?> future : futures) {
+      future.get(30, TimeUnit.SECONDS);
+    }
+    executor.shutdown();
+  }
+
+  private interface ThreadTask {
+
+    void run(int thread);
+  }
+}
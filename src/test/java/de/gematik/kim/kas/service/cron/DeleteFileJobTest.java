@@ -16,24 +16,41 @@
 
 package de.gematik.kim.kas.service.cron;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import de.gematik.kim.kas.controller.FileController;
+import de.gematik.kim.kas.controller.SegmentStore;
+import de.gematik.kim.kas.controller.StorageLayout;
 import de.gematik.kim.kas.db.Entry;
 import de.gematik.kim.kas.db.EntryRepository;
-import de.gematik.kim.kas.service.AmClient;
+import de.gematik.kim.kas.service.AttachmentCache;
+import de.gematik.kim.kas.service.AttachmentIdFilter;
+import de.gematik.kim.kas.service.QuotaReleaseQueue;
+import de.gematik.kim.kas.storage.FileSystemStorageBackend;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.io.File;
 import java.io.IOException;
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -48,16 +65,46 @@ public class DeleteFileJobTest {
   public static final String OWNER_PATH = "owner_emailATgematikPUNKTtest";
   private final static String storagePath = "target/test-storage/";
   private final static long keepIdTime = 31536000000L;
+  private final static int pageSize = 2;
   @Mock
   private EntryRepository entryRepository;
   @Mock
-  private AmClient amClient;
+  private QuotaReleaseQueue quotaReleaseQueue;
+  @Mock
+  private AttachmentCache attachmentCache;
+  @Mock
+  private AttachmentIdFilter attachmentIdFilter;
   private DeleteFileJob deleteFileJob;
+  private MeterRegistry meterRegistry;
+  private final List<String> removedFileNames = new ArrayList<>();
 
   @BeforeEach
   public void setUp() {
+    meterRegistry = new SimpleMeterRegistry();
     new File(storagePath + File.separator + OWNER_PATH).mkdirs();
-    deleteFileJob = new DeleteFileJob(entryRepository, amClient, storagePath, keepIdTime);
+    lenient().doAnswer(invocation -> {
+      invocation.<Runnable>getArgument(1).run();
+      return null;
+    }).when(quotaReleaseQueue).enqueue(any(), any());
+    lenient().doAnswer(invocation -> {
+      removedFileNames.addAll(
+          invocation.<Supplier<Map<Long, String>>>getArgument(0).get().values());
+      return null;
+    }).when(attachmentIdFilter).removeDeleted(any());
+    deleteFileJob = deleteFileJob(StorageLayout.FLAT);
+  }
+
+  private DeleteFileJob deleteFileJob(StorageLayout layout) {
+    FileController fileController = new FileController(storagePath, layout,
+        new SegmentStore(storagePath, 0, 0, new AtomicLong()::getAndIncrement),
+        new FileSystemStorageBackend(storagePath));
+    return new DeleteFileJob(entryRepository, quotaReleaseQueue, attachmentCache,
+        attachmentIdFilter, fileController, keepIdTime, pageSize, 2, 0, meterRegistry);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    deleteFileJob.shutdown();
   }
 
   @Test
@@ -70,18 +117,86 @@ public class DeleteFileJobTest {
     }
     Entry entry = new Entry(filename, LocalDateTime.now().minus(2, ChronoUnit.MILLIS), OWNER,
         List.of());
-    when(entryRepository.findByDeleteTimeBeforeAndDeletedFalse(any())).thenReturn(List.of(entry));
+    entry.setId(1L);
+    when(entryRepository.findByIdGreaterThanAndDeleteTimeBeforeAndDeletedFalseOrderByIdAsc(
+        eq(0L), any(), any())).thenReturn(List.of(entry));
+    when(entryRepository.markDeleted(1L)).thenReturn(1);
     deleteFileJob.deleteOldFiles();
     assertFalse(newFile.exists(), "File was not deleted: " + newFile.getAbsolutePath());
+    verify(attachmentCache).invalidate(filename);
+    assertEquals(List.of(filename), removedFileNames);
+    verify(entryRepository).markDeleted(1L);
+  }
+
+  @Test
+  public void keepFileNameInFilterOfEntryMarkedConcurrently() {
+    Entry marked = new Entry("markedByThisRun", LocalDateTime.now(), OWNER, List.of());
+    marked.setId(1L);
+    Entry concurrent = new Entry("markedConcurrently", LocalDateTime.now(), OWNER, List.of());
+    concurrent.setId(2L);
+    when(entryRepository.markDeleted(1L)).thenReturn(1);
+    when(entryRepository.markDeleted(2L)).thenReturn(0);
+
+    deleteFileJob.deleteExpiredEntries(List.of(marked, concurrent));
+
+    assertEquals(List.of("markedByThisRun"), removedFileNames);
+  }
+
+  @Test
+  public void deleteFileAtRecordedAndLayoutPath() throws IOException {
+    deleteFileJob.shutdown();
+    deleteFileJob = deleteFileJob(StorageLayout.SHARDED);
+    String filename = "deleteFileAtRecordedAndLayoutPathTestFile";
+    File flat = new File(storagePath + File.separator + OWNER_PATH + File.separator + filename);
+    File sharded = new File(storagePath,
+        StorageLayout.SHARDED.relativePath(OWNER, filename));
+    sharded.getParentFile().mkdirs();
+    assertTrue(flat.createNewFile() || flat.exists());
+    assertTrue(sharded.createNewFile() || sharded.exists());
+    Entry entry = new Entry(filename, LocalDateTime.now().minus(2, ChronoUnit.MILLIS), OWNER,
+        List.of());
+    entry.setId(1L);
+
+    deleteFileJob.deleteExpiredEntries(List.of(entry));
+
+    assertFalse(flat.exists(), "File was not deleted at its recorded path");
+    assertFalse(sharded.exists(), "File was not deleted at its layout path");
   }
 
   @Test
   public void scheduleIdDeletionAndCheckMethodIsCalled() {
     Entry entry = new Entry("fake", LocalDateTime.now().minus(keepIdTime + 2, ChronoUnit.MILLIS),
         OWNER, List.of());
-    when(entryRepository.findByCreatedBefore(any())).thenReturn(List.of(entry));
+    entry.setId(1L);
+    when(entryRepository.findIdsByIdGreaterThanAndCreatedBefore(eq(0L), any(), any()))
+        .thenReturn(List.of(entry.getId()));
     deleteFileJob.deleteOldFiles();
-    verify(entryRepository).delete(eq(entry));
+    verify(entryRepository).deleteEntriesInBatch(eq(List.of(1L)));
+  }
+
+  @Test
+  public void walkExpiredEntriesPageByPage() {
+    Entry first = new Entry("first", LocalDateTime.now(), OWNER, List.of());
+    first.setId(3L);
+    Entry second = new Entry("second", LocalDateTime.now(), OWNER, List.of());
+    second.setId(7L);
+    Entry third = new Entry("third", LocalDateTime.now(), OWNER, List.of());
+    third.setId(9L);
+    when(entryRepository.findByIdGreaterThanAndDeleteTimeBeforeAndDeletedFalseOrderByIdAsc(
+        eq(0L), any(), any())).thenReturn(List.of(first, second));
+    when(entryRepository.findByIdGreaterThanAndDeleteTimeBeforeAndDeletedFalseOrderByIdAsc(
+        eq(7L), any(), any())).thenReturn(List.of(third));
+    when(entryRepository.findIdsByIdGreaterThanAndCreatedBefore(eq(0L), any(), any()))
+        .thenReturn(List.of(1L, 2L));
+    when(entryRepository.findIdsByIdGreaterThanAndCreatedBefore(eq(2L), any(), any()))
+        .thenReturn(List.of());
+    deleteFileJob.deleteOldFiles();
+    verify(entryRepository).markDeleted(3L);
+    verify(entryRepository).markDeleted(7L);
+    verify(entryRepository).markDeleted(9L);
+    verify(entryRepository).deleteEntriesInBatch(eq(List.of(1L, 2L)));
+    verify(entryRepository, never())
+        .findByIdGreaterThanAndDeleteTimeBeforeAndDeletedFalseOrderByIdAsc(eq(9L), any(), any());
   }
 
   @Test
@@ -95,10 +210,65 @@ public class DeleteFileJobTest {
       assertTrue(newFile.exists(), "File was not created: " + newFile.getAbsolutePath());
     }
     Entry entry = new Entry(filename, requestTime.minus(2, ChronoUnit.MILLIS), OWNER, List.of());
-    when(entryRepository.findByDeleteTimeBeforeAndDeletedFalse(any())).thenReturn(List.of(entry));
-    when(entryRepository.findByCreatedBefore(any())).thenReturn(Collections.emptyList());
+    entry.setId(1L);
+    when(entryRepository.findByIdGreaterThanAndDeleteTimeBeforeAndDeletedFalseOrderByIdAsc(
+        eq(0L), any(), any())).thenReturn(List.of(entry));
+    when(entryRepository.findIdsByIdGreaterThanAndCreatedBefore(anyLong(), any(), any()))
+        .thenReturn(List.of());
     deleteFileJob.deleteOldFiles();
     assertFalse(newFile.exists(), "File was not deleted: " + newFile.getAbsolutePath());
-    verify(entryRepository, never()).delete(eq(entry));
+    verify(entryRepository, never()).deleteEntriesInBatch(any());
+  }
+
+  @Test
+  public void deleteFilesInParallelAndCheckMetrics() throws IOException {
+    List<Entry> entries = new ArrayList<>();
+    for (long id = 1; id <= pageSize; id++) {
+      File newFile = new File(
+          storagePath + File.separator + OWNER_PATH + File.separator + "metricsTestFile" + id);
+      assertTrue(newFile.exists() || newFile.createNewFile(), "Could not create file");
+      Entry entry = new Entry(newFile.getName(), LocalDateTime.now(), OWNER, List.of());
+      entry.setId(id);
+      entry.setSize(10L);
+      entries.add(entry);
+    }
+    when(entryRepository.findByIdGreaterThanAndDeleteTimeBeforeAndDeletedFalseOrderByIdAsc(
+        eq(0L), any(), any())).thenReturn(entries);
+    deleteFileJob.deleteOldFiles();
+    assertEquals(pageSize, meterRegistry.counter("kas.cleanup.files.deleted").count());
+    assertEquals(pageSize * 10, meterRegistry.counter("kas.cleanup.bytes.freed").count());
+    assertEquals(pageSize * 10, meterRegistry.get("kas.cleanup.last.bytes.freed").gauge().value());
+    assertTrue(meterRegistry.get("kas.cleanup.last.files.per.second").gauge().value() > 0);
+  }
+
+  @Test
+  public void leaveFreedBytesOfSegmentEntriesToTheCompaction() {
+    Entry entry = new Entry("segmentEntry", LocalDateTime.now(), OWNER, List.of());
+    entry.setId(1L);
+    entry.setSize(10L);
+    entry.setSegment(3L);
+    entry.setSegmentOffset(0L);
+
+    deleteFileJob.deleteExpiredEntries(List.of(entry));
+
+    assertEquals(1, meterRegistry.counter("kas.cleanup.files.deleted").count());
+    assertEquals(0, meterRegistry.counter("kas.cleanup.bytes.freed").count());
+    verify(attachmentCache).invalidate("segmentEntry");
   }
+
+  @Test
+  public void queueQuotaReleaseOfAllOwnersWithTheDeletion() {
+    String otherOwner = "other_owner@gematik.test";
+    Entry entry = new Entry("releaseQuotaFirst", LocalDateTime.now(), OWNER, List.of());
+    entry.setId(1L);
+    Entry otherEntry = new Entry("releaseQuotaSecond", LocalDateTime.now(), otherOwner, List.of());
+    otherEntry.setId(2L);
+    when(entryRepository.findByIdGreaterThanAndDeleteTimeBeforeAndDeletedFalseOrderByIdAsc(
+        eq(0L), any(), any())).thenReturn(List.of(entry, otherEntry));
+    deleteFileJob.deleteOldFiles();
+    verify(quotaReleaseQueue).enqueue(eq(Set.of(OWNER, otherOwner)), any());
+    verify(entryRepository).markDeleted(1L);
+    verify(entryRepository).markDeleted(2L);
+  }
+
 }
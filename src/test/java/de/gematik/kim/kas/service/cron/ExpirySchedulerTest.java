@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.service.cron;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import de.gematik.kim.kas.db.Entry;
+import de.gematik.kim.kas.db.EntryExpiry;
+import de.gematik.kim.kas.db.EntryRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.LocalDateTime;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+class ExpirySchedulerTest {
+
+  private static final long HORIZON = 3600000;
+
+  @Mock
+  private EntryRepository entryRepository;
+  @Mock
+  private DeleteFileJob deleteFileJob;
+
+  @Test
+  void rebuildIndexAndExpectDueEntriesToBeDeleted() {
+    LocalDateTime past = LocalDateTime.now().minusMinutes(1);
+    when(entryRepository.findExpiries(anyLong(), any(), any(), any()))
+        .thenReturn(List.of(expiry(1L, past), expiry(2L, LocalDateTime.now().plusMinutes(5))));
+    Entry entry = entry(1L, past);
+    when(entryRepository.findAllById(eq(List.of(1L)))).thenReturn(List.of(entry));
+    ExpiryScheduler scheduler = expiryScheduler(10);
+
+    scheduler.rebuildIndex();
+    assertEquals(2, scheduler.size());
+    scheduler.expireDueEntries();
+
+    verify(deleteFileJob).deleteExpiredEntries(List.of(entry));
+    assertEquals(1, scheduler.size());
+  }
+
+  @Test
+  void expireAtMostOneBatchPerRun() {
+    LocalDateTime past = LocalDateTime.now().minusMinutes(1);
+    ExpiryScheduler scheduler = expiryScheduler(10);
+    scheduler.rebuildIndex();
+    for (long id = 1; id <= 3; id++) {
+      scheduler.schedule(id, past);
+    }
+    when(entryRepository.findAllById(eq(List.of(1L, 2L))))
+        .thenReturn(List.of(entry(1L, past), entry(2L, past)));
+
+    scheduler.expireDueEntries();
+
+    assertEquals(1, scheduler.size());
+  }
+
+  @Test
+  void scheduleBeyondHorizonOrCapacityAndExpectEntryToBeSkipped() {
+    ExpiryScheduler scheduler = expiryScheduler(2);
+    scheduler.rebuildIndex();
+    scheduler.schedule(1L, LocalDateTime.now().plusDays(1));
+    assertEquals(0, scheduler.size());
+
+    scheduler.schedule(2L, LocalDateTime.now().plusMinutes(3));
+    scheduler.schedule(3L, LocalDateTime.now().plusMinutes(2));
+    scheduler.schedule(4L, LocalDateTime.now().plusMinutes(1));
+    assertEquals(2, scheduler.size());
+    scheduler.schedule(5L, LocalDateTime.now().plusMinutes(4));
+    assertEquals(2, scheduler.size());
+  }
+
+  @Test
+  void disabledAndExpectNothingToHappen() {
+    ExpiryScheduler scheduler = new ExpiryScheduler(entryRepository, deleteFileJob, false, 2,
+        HORIZON, 10, 100, new SimpleMeterRegistry());
+    scheduler.rebuildIndex();
+    scheduler.schedule(1L, LocalDateTime.now().minusMinutes(1));
+    scheduler.expireDueEntries();
+    verify(entryRepository, never()).findExpiries(anyLong(), any(), any(), any());
+    verify(deleteFileJob, never()).deleteExpiredEntries(any());
+  }
+
+  private ExpiryScheduler expiryScheduler(int capacity) {
+    return new ExpiryScheduler(entryRepository, deleteFileJob, true, 2, HORIZON, capacity, 100,
+        new SimpleMeterRegistry());
+  }
+
+  private static Entry entry(Long id, LocalDateTime deleteTime) {
+    Entry entry = new Entry("file" + id, deleteTime, "owner@gematik.test", List.of());
+    entry.setId(id);
+    return entry;
+  }
+
+  private static EntryExpiry expiry(Long id, LocalDateTime deleteTime) {
+    return new EntryExpiry() {
+      @Override
+      public Long getId() {
+        return id;
+      }
+
+      @Override
+      public LocalDateTime getDeleteTime() {
+        return deleteTime;
+      }
+    };
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.service.cron;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import de.gematik.kim.kas.controller.SegmentLocation;
+import de.gematik.kim.kas.controller.SegmentStore;
+import de.gematik.kim.kas.db.EntryRepository;
+import de.gematik.kim.kas.db.SegmentEntry;
+import de.gematik.kim.kas.db.SegmentUsage;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+class SegmentCompactorTest {
+
+  @TempDir
+  Path storage;
+  @Mock
+  private EntryRepository entryRepository;
+  private SegmentStore segmentStore;
+  private MeterRegistry meterRegistry;
+  private SegmentCompactor compactor;
+
+  @BeforeEach
+  void setUp() {
+    segmentStore = new SegmentStore(storage.toString(), 100, 20,
+        new AtomicLong()::getAndIncrement);
+    meterRegistry = new SimpleMeterRegistry();
+    compactor = new SegmentCompactor(entryRepository, segmentStore, 0.5, 10, meterRegistry);
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    segmentStore.close();
+  }
+
+  @Test
+  void copyLiveEntriesOfMostlyDeletedSegment() throws IOException {
+    segmentStore.append(write("dead", "0123456789abcdef"));
+    SegmentLocation live = segmentStore.append(write("live", "live"));
+    SegmentLocation active = segmentStore.append(write("next", "0123456789abcdef"));
+    when(entryRepository.sumSizeBySegment()).thenReturn(List.of(usage(live.getSegment(), 4)));
+    when(entryRepository.findSegmentEntries(eq(live.getSegment()), eq(0L), any()))
+        .thenReturn(List.of(entry(7L, live.getOffset(), 4)));
+    when(entryRepository.moveToSegment(eq(7L), eq(live.getSegment()), anyLong(), anyLong()))
+        .thenReturn(1);
+
+    compactor.compact();
+
+    verify(entryRepository).moveToSegment(7L, live.getSegment(), active.getSegment(), 16L);
+    assertEquals(4, meterRegistry.get("kas.segments.compacted.bytes").counter().count());
+  }
+
+  @Test
+  void deleteEmptySegmentOnlyInTheFollowingRun() throws IOException {
+    SegmentLocation empty = segmentStore.append(write("dead", "0123456789abcdef"));
+    segmentStore.append(write("next", "0123456789abcdef"));
+    when(entryRepository.sumSizeBySegment()).thenReturn(List.of());
+
+    compactor.compact();
+    assertEquals(List.of(0L, 1L), segmentStore.listSegments());
+    compactor.compact();
+
+    assertEquals(List.of(1L), segmentStore.listSegments());
+    assertEquals(16, meterRegistry.get("kas.segments.reclaimed.bytes").counter().count());
+    verify(entryRepository, never()).findSegmentEntries(eq(empty.getSegment()), any(), any());
+  }
+
+  @Test
+  void leaveActiveAndMostlyLiveSegmentsAlone() throws IOException {
+    SegmentLocation full = segmentStore.append(write("live", "0123456789abcdef"));
+    SegmentLocation active = segmentStore.append(write("active", "0123456789abcdef"));
+    when(entryRepository.sumSizeBySegment()).thenReturn(List.of(usage(full.getSegment(), 16)));
+
+    compactor.compact();
+    compactor.compact();
+
+    assertEquals(List.of(full.getSegment(), active.getSegment()), segmentStore.listSegments());
+    verify(entryRepository, never()).findSegmentEntries(any(), any(), any());
+  }
+
+  private Path write(String name, String content) throws IOException {
+    return Files.writeString(storage.resolve(name), content);
+  }
+
+  private static SegmentUsage usage(long segment, long liveBytes) {
+    return new SegmentUsage() {
+      @Override
+      public Long getSegment() {
+        return segment;
+      }
+
+      @Override
+      public Long getLiveBytes() {
+        return liveBytes;
+      }
+    };
+  }
+
+  private static SegmentEntry entry(Long id, long offset, long size) {
+    return new SegmentEntry() {
+      @Override
+      public Long getId() {
+        return id;
+      }
+
+      @Override
+      public Long getSegmentOffset() {
+        return offset;
+      }
+
+      @Override
+      public Long getSize() {
+        return size;
+      }
+    };
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.OptionalLong;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.Resource;
+
+class FileSystemStorageBackendTest {
+
+  @TempDir
+  Path storage;
+  private FileSystemStorageBackend backend;
+
+  @BeforeEach
+  void setUp() {
+    backend = new FileSystemStorageBackend(storage.toString());
+  }
+
+  @Test
+  void putMovesFileBelowStoragePath() throws IOException {
+    Path staged = Files.writeString(storage.resolve("staged"), "0123456789");
+
+    backend.put("owner/ab/cd/file", staged);
+
+    assertFalse(Files.exists(staged));
+    assertEquals("0123456789", Files.readString(storage.resolve("owner/ab/cd/file")));
+    assertEquals(OptionalLong.of(10), backend.stat("owner/ab/cd/file"));
+  }
+
+  @Test
+  void getWholeFileAndRange() throws IOException {
+    backend.put("owner/file", Files.writeString(storage.resolve("staged"), "0123456789"));
+
+    Resource file = backend.get("owner/file");
+    assertTrue(file.isFile());
+    assertEquals(10, file.contentLength());
+    try (InputStream range = backend.getRange("owner/file", 3, 4)) {
+      assertArrayEquals("3456".getBytes(), range.readAllBytes());
+    }
+    assertThrows(FileNotFoundException.class, () -> backend.get("owner/missing"));
+  }
+
+  @Test
+  void copyAndDelete() throws IOException {
+    backend.put("owner/file", Files.writeString(storage.resolve("staged"), "0123456789"));
+
+    backend.copy("owner/file", "owner/ab/cd/file");
+
+    assertTrue(backend.delete("owner/file"));
+    assertFalse(backend.delete("owner/file"));
+    assertEquals(OptionalLong.empty(), backend.stat("owner/file"));
+    assertEquals(OptionalLong.of(10), backend.stat("owner/ab/cd/file"));
+  }
+
+  @Test
+  void checkCreatesStoragePath() throws IOException {
+    Path path = storage.resolve("new/storage");
+
+    new FileSystemStorageBackend(path.toString()).check();
+
+    assertTrue(Files.isDirectory(path));
+  }
+}
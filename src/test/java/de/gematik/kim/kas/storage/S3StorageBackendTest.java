@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.OptionalLong;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.Resource;
+
+class S3StorageBackendTest {
+
+  private static final String BUCKET = "kas";
+  private static final String REGION = "eu-central-1";
+  private static final String ACCESS_KEY = "access";
+  private static final String SECRET_KEY = "secret";
+  private static final int PART_SIZE = 1024;
+
+  @TempDir
+  Path staging;
+  private S3StubServer server;
+  private S3StorageBackend backend;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    server = new S3StubServer(BUCKET, REGION, ACCESS_KEY, SECRET_KEY);
+    backend = backend(BUCKET, SECRET_KEY);
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    backend.close();
+    server.close();
+  }
+
+  @Test
+  void putSmallFileWithSinglePut() throws IOException {
+    byte[] data = data(100);
+
+    backend.put("owner/file", stage(data));
+
+    assertArrayEquals(data, server.getObject("owner/file"));
+    assertEquals(0, server.getUploadCount());
+    assertEquals(OptionalLong.of(100), backend.stat("owner/file"));
+  }
+
+  @Test
+  void putLargeFileWithMultipartUpload() throws IOException {
+    byte[] data = data(2 * PART_SIZE + 500);
+
+    backend.put("owner/ab/cd/file", stage(data));
+
+    assertArrayEquals(data, server.getObject("owner/ab/cd/file"));
+    assertEquals(1, server.getUploadCount());
+    assertEquals(3, server.getPartCount());
+    assertEquals(0, server.getOpenUploads());
+  }
+
+  @Test
+  void abortMultipartUploadWhenPartFails() throws IOException {
+    server.failPart(2);
+
+    assertThrows(IOException.class,
+        () -> backend.put("owner/file", stage(data(2 * PART_SIZE + 500))));
+
+    assertEquals(1, server.getAbortCount());
+    assertEquals(0, server.getOpenUploads());
+    assertNull(server.getObject("owner/file"));
+  }
+
+  @Test
+  void readObjectFromSkippedPositionWithRangedGet() throws IOException {
+    byte[] data = data(2000);
+    backend.put("owner/file", stage(data));
+
+    Resource object = backend.get("owner/file");
+    try (InputStream in = object.getInputStream()) {
+      assertEquals(1500, in.skip(1500));
+      assertArrayEquals(Arrays.copyOfRange(data, 1500, 2000), in.readAllBytes());
+    }
+    try (InputStream in = backend.getRange("owner/file", 10, 5)) {
+      assertArrayEquals(Arrays.copyOfRange(data, 10, 15), in.readAllBytes());
+    }
+
+    assertEquals(2000, object.contentLength());
+    assertFalse(object.isFile());
+    assertEquals(List.of("bytes=1500-1999", "bytes=10-14"), server.getRanges());
+  }
+
+  @Test
+  void readRegionWithBoundedRangedGet() throws IOException {
+    byte[] data = data(2000);
+    backend.put("owner/file", stage(data));
+
+    StorageObjectResource region = ((StorageObjectResource) backend.get("owner/file")).upTo(120);
+    try (InputStream in = region.getInputStream()) {
+      assertEquals(100, in.skip(100));
+      assertArrayEquals(Arrays.copyOfRange(data, 100, 120), in.readAllBytes());
+    }
+
+    assertEquals(2000, region.contentLength());
+    assertEquals(List.of("bytes=100-119"), server.getRanges());
+  }
+
+  @Test
+  void readingNothingSendsNoRequest() throws IOException {
+    backend.put("owner/file", stage(data(10)));
+
+    try (InputStream in = backend.get("owner/file").getInputStream()) {
+      assertEquals(10, in.skip(20));
+      assertEquals(-1, in.read());
+    }
+
+    assertTrue(server.getRanges().isEmpty());
+  }
+
+  @Test
+  void deleteReportsWhetherObjectExisted() throws IOException {
+    backend.put("owner/file", stage(data(10)));
+
+    assertTrue(backend.delete("owner/file"));
+    assertFalse(backend.delete("owner/file"));
+    assertEquals(OptionalLong.empty(), backend.stat("owner/file"));
+    assertThrows(FileNotFoundException.class, () -> backend.get("owner/file"));
+  }
+
+  @Test
+  void copyObjectWithinBucket() throws IOException {
+    byte[] data = data(10);
+    backend.put("owner/file", stage(data));
+
+    backend.copy("owner/file", "owner/ab/cd/file");
+
+    assertArrayEquals(data, server.getObject("owner/ab/cd/file"));
+    assertThrows(IOException.class, () -> backend.copy("owner/missing", "owner/copy"));
+  }
+
+  @Test
+  void checkBucketAndSignature() throws IOException {
+    backend.check();
+
+    try (S3StorageBackend missingBucket = backend("missing", SECRET_KEY);
+        S3StorageBackend wrongSecret = backend(BUCKET, "wrong")) {
+      assertThrows(IOException.class, missingBucket::check);
+      assertThrows(IOException.class, wrongSecret::check);
+    }
+  }
+
+  private S3StorageBackend backend(String bucket, String secretKey) {
+    return new S3StorageBackend(HttpClients.createDefault(), server.getEndpoint(), REGION,
+        bucket, ACCESS_KEY, secretKey, PART_SIZE);
+  }
+
+  private Path stage(byte[] data) throws IOException {
+    return Files.write(Files.createTempFile(staging, "staged", ".part"), data);
+  }
+
+  private static byte[] data(int size) {
+    byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte) i;
+    }
+    return data;
+  }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.storage;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory stand-in for an S3-compatible object store, like a MinIO server in tests. It checks
+ * the signature of every request and supports the requests of {@link S3StorageBackend}.
+ */
+class S3StubServer implements AutoCloseable {
+
+  private static final Pattern PART_NUMBER = Pattern.compile("<PartNumber>(\\d+)</PartNumber>");
+  private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter
+      .ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
+  private final HttpServer server;
+  private final String bucket;
+  private final S3RequestSigner signer;
+  private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+  private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+  private final List<String> ranges = new ArrayList<>();
+  private int uploadCount;
+  private int partCount;
+  private int abortCount;
+  private int failPart;
+
+  S3StubServer(String bucket, String region, String accessKey, String secretKey)
+      throws IOException {
+    this.bucket = bucket;
+    this.signer = new S3RequestSigner(region, accessKey, secretKey);
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", this::handle);
+    server.start();
+  }
+
+  String getEndpoint() {
+    return "http://localhost:" + server.getAddress().getPort();
+  }
+
+  byte[] getObject(String key) {
+    return objects.get(key);
+  }
+
+  synchronized List<String> getRanges() {
+    return new ArrayList<>(ranges);
+  }
+
+  synchronized int getUploadCount() {
+    return uploadCount;
+  }
+
+  synchronized int getPartCount() {
+    return partCount;
+  }
+
+  synchronized int getAbortCount() {
+    return abortCount;
+  }
+
+  int getOpenUploads() {
+    return uploads.size();
+  }
+
+  /**
+   * Answers the upload of the given part number with an error.
+   */
+  synchronized void failPart(int partNumber) {
+    failPart = partNumber;
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      byte[] body = exchange.getRequestBody().readAllBytes();
+      if (!isSigned(exchange)) {
+        send(exchange, 403, "<Error><Code>SignatureDoesNotMatch</Code></Error>");
+        return;
+      }
+      String path = exchange.getRequestURI().getPath().substring(1);
+      String query = exchange.getRequestURI().getRawQuery();
+      if (!path.startsWith(bucket)) {
+        send(exchange, 404, "<Error><Code>NoSuchBucket</Code></Error>");
+      } else if (path.equals(bucket)) {
+        send(exchange, 200, null);
+      } else {
+        handle(exchange, path.substring(bucket.length() + 1), query, body);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private synchronized void handle(HttpExchange exchange, String key, String query, byte[] body)
+      throws IOException {
+    String method = exchange.getRequestMethod();
+    String copySource = exchange.getRequestHeaders().getFirst("x-amz-copy-source");
+    if (method.equals("POST") && "uploads".equals(query)) {
+      String uploadId = "upload-" + (++uploadCount);
+      uploads.put(uploadId, new TreeMap<>());
+      send(exchange, 200, "<InitiateMultipartUploadResult><UploadId>" + uploadId
+          + "</UploadId></InitiateMultipartUploadResult>");
+    } else if (method.equals("PUT") && query != null) {
+      int partNumber = Integer.parseInt(parameter(query, "partNumber"));
+      Map<Integer, byte[]> parts = uploads.get(parameter(query, "uploadId"));
+      if (parts == null || partNumber == failPart) {
+        send(exchange, 500, "<Error><Code>InternalError</Code></Error>");
+        return;
+      }
+      partCount++;
+      parts.put(partNumber, body);
+      exchange.getResponseHeaders().set("ETag", "\"part" + partNumber + "\"");
+      send(exchange, 200, null);
+    } else if (method.equals("POST") && query != null) {
+      Map<Integer, byte[]> parts = uploads.remove(parameter(query, "uploadId"));
+      ByteArrayOutputStream object = new ByteArrayOutputStream();
+      Matcher partNumber = PART_NUMBER.matcher(new String(body, StandardCharsets.UTF_8));
+      while (partNumber.find()) {
+        object.write(parts.get(Integer.parseInt(partNumber.group(1))));
+      }
+      objects.put(key, object.toByteArray());
+      send(exchange, 200, "<CompleteMultipartUploadResult/>");
+    } else if (method.equals("DELETE") && query != null) {
+      abortCount++;
+      uploads.remove(parameter(query, "uploadId"));
+      send(exchange, 204, null);
+    } else if (method.equals("PUT") && copySource != null) {
+      byte[] source = objects.get(copySource.substring(bucket.length() + 2));
+      if (source == null) {
+        send(exchange, 404, "<Error><Code>NoSuchKey</Code></Error>");
+        return;
+      }
+      objects.put(key, source);
+      send(exchange, 200, "<CopyObjectResult/>");
+    } else if (method.equals("PUT")) {
+      objects.put(key, body);
+      send(exchange, 200, null);
+    } else if (method.equals("DELETE")) {
+      objects.remove(key);
+      send(exchange, 204, null);
+    } else if (!objects.containsKey(key)) {
+      send(exchange, 404, method.equals("HEAD") ? null : "<Error><Code>NoSuchKey</Code></Error>");
+    } else if (method.equals("HEAD")) {
+      exchange.getResponseHeaders().set("Content-Length",
+          String.valueOf(objects.get(key).length));
+      exchange.sendResponseHeaders(200, -1);
+    } else {
+      String range = exchange.getRequestHeaders().getFirst("Range");
+      ranges.add(range);
+      byte[] object = objects.get(key);
+      String[] bounds = range.substring("bytes=".length()).split("-");
+      int end = Math.min(Integer.parseInt(bounds[1]) + 1, object.length);
+      byte[] part = Arrays.copyOfRange(object, Integer.parseInt(bounds[0]), end);
+      exchange.sendResponseHeaders(206, part.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(part);
+      }
+    }
+  }
+
+  /**
+   * Signs the request again and compares the result with the authorization header.
+   */
+  private boolean isSigned(HttpExchange exchange) {
+    String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+    String date = exchange.getRequestHeaders().getFirst("x-amz-date");
+    if (authorization == null || date == null) {
+      return false;
+    }
+    SortedMap<String, String> headers = new TreeMap<>();
+    exchange.getRequestHeaders().forEach((name, values) -> {
+      String lowerCase = name.toLowerCase(Locale.ROOT);
+      if ((lowerCase.startsWith("x-amz-") && !lowerCase.equals("x-amz-date"))
+          || lowerCase.equals("range")) {
+        headers.put(lowerCase, values.get(0));
+      }
+    });
+    URI uri = URI.create(getEndpoint() + exchange.getRequestURI());
+    signer.sign(exchange.getRequestMethod(), uri, headers,
+        Instant.from(TIMESTAMP.parse(date)));
+    return authorization.equals(headers.get("authorization"));
+  }
+
+  private static String parameter(String query, String name) {
+    for (String parameter : query.split("&")) {
+      if (parameter.startsWith(name + "=")) {
+        return parameter.substring(name.length() + 1);
+      }
+    }
+    return null;
+  }
+
+  private static void send(HttpExchange exchange, int status, String body) throws IOException {
+    if (body == null) {
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+}
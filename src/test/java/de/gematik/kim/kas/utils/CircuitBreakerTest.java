@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import de.gematik.kim.kas.utils.CircuitBreaker.State;
+import org.junit.jupiter.api.Test;
+
+class CircuitBreakerTest {
+
+  @Test
+  void failRepeatedlyAndExpectCircuitToOpen() {
+    CircuitBreaker breaker = new CircuitBreaker(3, 1000);
+    for (int i = 0; i < 3; i++) {
+      assertTrue(breaker.tryAcquire(0));
+      breaker.onFailure(0);
+    }
+    assertEquals(State.OPEN, breaker.getState());
+    assertFalse(breaker.tryAcquire(500));
+    assertEquals(500, breaker.retryAfterMillis(500));
+  }
+
+  @Test
+  void succeedInBetweenAndExpectFailuresToBeReset() {
+    CircuitBreaker breaker = new CircuitBreaker(3, 1000);
+    breaker.onFailure(0);
+    breaker.onFailure(0);
+    breaker.onSuccess();
+    breaker.onFailure(0);
+    breaker.onFailure(0);
+    assertEquals(State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  void succeedTrialCallAndExpectCircuitToClose() {
+    CircuitBreaker breaker = new CircuitBreaker(1, 1000);
+    breaker.onFailure(0);
+    assertTrue(breaker.tryAcquire(1000));
+    assertEquals(State.HALF_OPEN, breaker.getState());
+    assertFalse(breaker.tryAcquire(1000), "Only one trial call is allowed");
+    breaker.onSuccess();
+    assertEquals(State.CLOSED, breaker.getState());
+    assertTrue(breaker.tryAcquire(1000));
+  }
+
+  @Test
+  void failTrialCallAndExpectCircuitToReopen() {
+    CircuitBreaker breaker = new CircuitBreaker(5, 1000);
+    for (int i = 0; i < 5; i++) {
+      breaker.onFailure(0);
+    }
+    assertTrue(breaker.tryAcquire(1000));
+    breaker.onFailure(1000);
+    assertEquals(State.OPEN, breaker.getState());
+    assertFalse(breaker.tryAcquire(1999));
+    assertTrue(breaker.tryAcquire(2000));
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.utils;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+
+class CountingBloomFilterTest {
+
+  @Test
+  void addedElementsAreAlwaysContained() {
+    CountingBloomFilter filter = new CountingBloomFilter(1000, 0.01);
+    List<String> elements = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      elements.add(UUID.randomUUID().toString());
+    }
+    elements.forEach(filter::add);
+
+    elements.forEach(element -> assertTrue(filter.mightContain(element), element));
+  }
+
+  @Test
+  void removedElementsAreGoneAndOthersStay() {
+    CountingBloomFilter filter = new CountingBloomFilter(1000, 0.01);
+    List<String> elements = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      elements.add(UUID.randomUUID().toString());
+    }
+    elements.forEach(filter::add);
+
+    List<String> removed = elements.subList(0, 500);
+    removed.forEach(filter::remove);
+
+    elements.subList(500, 1000)
+        .forEach(element -> assertTrue(filter.mightContain(element), element));
+    assertTrue(removed.stream().filter(filter::mightContain).count() < 25);
+  }
+
+  @Test
+  void falsePositiveRateStaysNearConfiguredRate() {
+    CountingBloomFilter filter = new CountingBloomFilter(10000, 0.01);
+    for (int i = 0; i < 10000; i++) {
+      filter.add(UUID.randomUUID().toString());
+    }
+
+    int falsePositives = 0;
+    for (int i = 0; i < 10000; i++) {
+      if (filter.mightContain(UUID.randomUUID().toString())) {
+        falsePositives++;
+      }
+    }
+    assertTrue(falsePositives < 200, "False positives: " + falsePositives);
+    assertTrue(filter.expectedFalsePositiveRate(10000) < 0.011);
+  }
+
+  @Test
+  void emptyFilterContainsNothing() {
+    CountingBloomFilter filter = new CountingBloomFilter(100, 0.01);
+
+    assertFalse(filter.mightContain("anything"));
+    filter.remove("anything");
+    assertFalse(filter.mightContain("anything"));
+  }
+}
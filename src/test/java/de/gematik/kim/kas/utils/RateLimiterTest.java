@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.utils;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class RateLimiterTest {
+
+  @Test
+  void acquireAndExpectPermitsToBeSpacedOut() throws InterruptedException {
+    RateLimiter limiter = new RateLimiter(100);
+    long start = System.nanoTime();
+    for (int i = 0; i < 21; i++) {
+      limiter.acquire();
+    }
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    assertTrue(elapsed >= 190, "Permits were handed out too fast: " + elapsed + "ms");
+  }
+
+  @Test
+  void acquireWithoutLimitAndExpectNoWaiting() throws InterruptedException {
+    RateLimiter limiter = new RateLimiter(0);
+    long start = System.nanoTime();
+    for (int i = 0; i < 10000; i++) {
+      limiter.acquire();
+    }
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    assertTrue(elapsed < 1000, "Unlimited limiter was waiting: " + elapsed + "ms");
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class TimingWheelTest {
+
+  @Test
+  void advanceAndExpectOnlyDueItems() {
+    TimingWheel<String> wheel = new TimingWheel<>(8, 10, 0);
+    wheel.schedule("a", 15);
+    wheel.schedule("b", 40);
+    List<String> due = new ArrayList<>();
+    wheel.advance(19, due::add);
+    assertEquals(List.of(), due);
+    wheel.advance(20, due::add);
+    assertEquals(List.of("a"), due);
+    wheel.advance(39, due::add);
+    assertEquals(List.of("a"), due);
+    wheel.advance(40, due::add);
+    assertEquals(List.of("a", "b"), due);
+  }
+
+  @Test
+  void scheduleBeyondOneRevolutionAndExpectItemAfterOneRevolution() {
+    TimingWheel<String> wheel = new TimingWheel<>(4, 10, 0);
+    wheel.schedule("far", 1000);
+    List<String> due = new ArrayList<>();
+    wheel.advance(30, due::add);
+    assertEquals(List.of(), due);
+    wheel.advance(40, due::add);
+    assertEquals(List.of("far"), due);
+  }
+
+  @Test
+  void advanceAfterLongPauseAndExpectAllItems() {
+    TimingWheel<String> wheel = new TimingWheel<>(4, 10, 0);
+    wheel.schedule("a", 10);
+    wheel.schedule("b", 30);
+    List<String> due = new ArrayList<>();
+    wheel.advance(10000, due::add);
+    assertEquals(List.of("a", "b"), due);
+    wheel.schedule("c", 0);
+    wheel.advance(10010, due::add);
+    assertEquals(List.of("a", "b", "c"), due);
+  }
+
+  @Test
+  void pollEarliestAndExpectItemsByDeadline() {
+    TimingWheel<String> wheel = new TimingWheel<>(8, 10, 0);
+    wheel.schedule("late", 50);
+    wheel.schedule("early", 20);
+    assertEquals("early", wheel.pollEarliest());
+    assertEquals("late", wheel.pollEarliest());
+    assertNull(wheel.pollEarliest());
+  }
+}
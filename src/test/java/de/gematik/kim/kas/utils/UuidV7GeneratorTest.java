@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2022 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the License);
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an 'AS IS' BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.kim.kas.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+class UuidV7GeneratorTest {
+
+  @Test
+  void generateIdAndExpectVersionVariantAndTimestamp() {
+    long before = System.currentTimeMillis();
+    UUID id = new UuidV7Generator().next();
+    long after = System.currentTimeMillis();
+
+    assertEquals(7, id.version());
+    assertEquals(2, id.variant());
+    long millis = id.getMostSignificantBits() >>> 16;
+    assertTrue(millis >= before && millis <= after + 1, "Unexpected timestamp " + millis);
+  }
+
+  @Test
+  void generateManyIdsAndExpectStringsOrderedByMillisecond() {
+    UuidV7Generator generator = new UuidV7Generator();
+    String previous = generator.next().toString();
+    for (int i = 0; i < 100000; i++) {
+      String next = generator.next().toString();
+      // The first 13 characters hold the 48 bit timestamp
+      assertTrue(next.substring(0, 13).compareTo(previous.substring(0, 13)) >= 0,
+          next + " is before " + previous);
+      previous = next;
+    }
+  }
+
+  @Test
+  void generateIdsAndExpectFreshRandomBitsInRandA() {
+    UuidV7Generator generator = new UuidV7Generator();
+    Set<Long> randA = new HashSet<>();
+    for (int i = 0; i < 1000; i++) {
+      randA.add(generator.next().getMostSignificantBits() & 0xFFF);
+    }
+    // 1000 draws of 12 random bits give about 890 distinct values
+    assertTrue(randA.size() > 800, "rand_a is not random: " + randA.size() + " distinct values");
+    assertTrue(randA.stream().anyMatch(value -> value >= 0x800), "rand_a top bit never set");
+  }
+
+  @Test
+  void generateIdsConcurrentlyAndExpectNoDuplicates() throws Exception {
+    UuidV7Generator generator = new UuidV7Generator();
+    Set<UUID> ids = ConcurrentHashMap.newKeySet();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<?>> results = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      results.add(executor.submit(() -> {
+        for (int i = 0; i < 20000; i++) {
+          ids.add(generator.next());
+        }
+      }));
+    }
+    for (Future<?> result : results) {
+      result.get();
+    }
+    executor.shutdown();
+    assertEquals(8 * 20000, ids.size());
+  }
+}